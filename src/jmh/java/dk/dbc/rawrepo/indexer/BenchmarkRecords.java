@@ -0,0 +1,90 @@
+package dk.dbc.rawrepo.indexer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * The records the benchmarks run against
+ * <p>
+ * A record is named by where it comes from:
+ * <ul>
+ * <li>fixture/NAME - src/test/resources/JavaScriptWorkerTest/NAME/record</li>
+ * <li>testsuite/SUITE/ID - testsuites/SUITE/input/ID.rr.xml</li>
+ * <li>synthetic/N - N datafields, all with subfields the rules index</li>
+ * <li>synthetic-unmapped/N - N datafields the rules skip</li>
+ * </ul>
+ * Comparing synthetic and synthetic-unmapped records of the same size
+ * separates the cost of reading a record from the cost of handing fields
+ * from the rules to the solr document.
+ */
+final class BenchmarkRecords {
+
+    private static final String SUBFIELD_TEXT = "Lorem ipsum dolor sit amet, consectetur";
+
+    private BenchmarkRecords() {
+    }
+
+    static byte[] load(String name) throws IOException {
+        final String[] parts = name.split("/");
+        switch (parts[0]) {
+            case "fixture":
+                return fixture(parts[1]);
+            case "testsuite":
+                return Files.readAllBytes(Paths.get("testsuites", parts[1], "input", parts[2] + ".rr.xml"));
+            case "synthetic":
+                return synthetic(Integer.parseInt(parts[1]), true);
+            case "synthetic-unmapped":
+                return synthetic(Integer.parseInt(parts[1]), false);
+            default:
+                throw new IllegalArgumentException("Unknown benchmark record: " + name);
+        }
+    }
+
+    private static byte[] fixture(String name) throws IOException {
+        final String resource = JavaScriptWorkerTest.class.getSimpleName() + "/" + name + "/record";
+        try (InputStream stream = BenchmarkRecords.class.getClassLoader().getResourceAsStream(resource)) {
+            if (stream == null) {
+                throw new IOException("Cannot find " + resource);
+            }
+            final byte[] buffer = new byte[8192];
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * @param datafields number of datafields besides 001
+     * @param mapped     true if the datafields are indexed, false if the rules skip them
+     * @return marcxchange record
+     */
+    static byte[] synthetic(int datafields, boolean mapped) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<marcx:record format=\"danMARC2\" type=\"Bibliographic\" xmlns:marcx=\"info:lc/xmlns/marcxchange-v1\">\n")
+                .append("  <marcx:leader>00000n    2200000   4500</marcx:leader>\n")
+                .append("  <marcx:datafield ind1=\"0\" ind2=\"0\" tag=\"001\">\n")
+                .append("    <marcx:subfield code=\"a\">12345678</marcx:subfield>\n")
+                .append("    <marcx:subfield code=\"b\">870970</marcx:subfield>\n")
+                .append("    <marcx:subfield code=\"c\">20080307130517</marcx:subfield>\n")
+                .append("    <marcx:subfield code=\"d\">19810106</marcx:subfield>\n")
+                .append("  </marcx:datafield>\n");
+        final String tag = mapped ? "245" : "504";
+        for (int i = 0; i < datafields; i++) {
+            sb.append("  <marcx:datafield ind1=\"0\" ind2=\"0\" tag=\"").append(tag).append("\">\n")
+                    .append("    <marcx:subfield code=\"a\">").append(SUBFIELD_TEXT).append(' ').append(i).append("</marcx:subfield>\n")
+                    .append("    <marcx:subfield code=\"g\">").append(SUBFIELD_TEXT).append("</marcx:subfield>\n")
+                    .append("    <marcx:subfield code=\"n\">").append(i).append("</marcx:subfield>\n")
+                    .append("  </marcx:datafield>\n");
+        }
+        sb.append("</marcx:record>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,95 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.rawrepo.dto.RecordDTO;
+import dk.dbc.rawrepo.dto.RecordIdDTO;
+import org.apache.solr.common.SolrInputDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of turning one record into a solr document
+ * <p>
+ * addFields measures the engine alone, for the javascript engine including
+ * the SolrFields bridge back to java for every field. createIndexDocument
+ * measures the whole document as built by the indexer. Run with
+ * {@code -prof gc} (the default in the benchmark profile) to get the
+ * allocation per record in gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark {
+
+    @Param({Indexer.INDEX_ENGINE_JAVASCRIPT, Indexer.INDEX_ENGINE_JAVA})
+    public String engine;
+
+    @Param({
+            "fixture/one",
+            "fixture/y08",
+            "testsuite/example1/870970.21921173",
+            "testsuite/example1/870970.27502148",
+            "synthetic/10",
+            "synthetic/100",
+            "synthetic/1000",
+            "synthetic-unmapped/1000"})
+    public String record;
+
+    @Param({Indexer.MIMETYPE_MARCXCHANGE, Indexer.MIMETYPE_ENRICHMENT})
+    public String mimetype;
+
+    private IndexEngine indexEngine;
+    private Indexer indexer;
+    private byte[] content;
+    private RecordDTO recordDTO;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        indexEngine = Indexer.INDEX_ENGINE_JAVA.equals(engine) ? new MarcXchangeIndexEngine() : new JavaScriptWorker();
+        content = BenchmarkRecords.load(record);
+
+        indexer = new Indexer();
+        indexer.worker = indexEngine;
+        indexer.metrics = new IndexerMetrics() {
+            @Override
+            public void transformed(Duration elapsed, String engine, String mimetype, int agencyId, boolean success) {
+                // Not part of what is measured
+            }
+        };
+
+        recordDTO = new RecordDTO();
+        recordDTO.setContent(content);
+        recordDTO.setMimetype(mimetype);
+        recordDTO.setRecordId(new RecordIdDTO("12345678", 870970));
+        recordDTO.setCreated("2019-04-05T01:37:44Z");
+        recordDTO.setModified("2019-04-05T01:37:44Z");
+        recordDTO.setTrackingId("benchmark");
+    }
+
+    @Benchmark
+    public SolrInputDocument addFields() throws Exception {
+        final SolrInputDocument document = new SolrInputDocument();
+        indexEngine.addFields(document, content, mimetype);
+        return document;
+    }
+
+    @Benchmark
+    public SolrInputDocument createIndexDocument() {
+        return indexer.createIndexDocument(recordDTO);
+    }
+}
@@ -0,0 +1,79 @@
+package dk.dbc.rawrepo.indexer;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/**
+ * A limit that follows solr's health, additive increase, multiplicative decrease
+ * <p>
+ * Every fast, successful solr response raises the limit by a fixed step, up
+ * to the configured maximum. A failed response, or one slower than the
+ * target latency, halves it, down to the minimum. Responses to requests
+ * sent before a decrease arrive right after it, so further decreases are
+ * ignored until one target latency has passed.
+ */
+class AimdLimit {
+
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private final String name;
+    private final int min;
+    private final int max;
+    private final int increaseStep;
+    private final long targetLatencyMs;
+    private final LongSupplier clock;
+
+    private int limit;
+    private long decreasedAt;
+
+    /**
+     * @param name            name used when logging
+     * @param min             lowest limit
+     * @param max             highest limit, and the initial limit
+     * @param increaseStep    added after every good response
+     * @param targetLatencyMs responses slower than this count as overload
+     * @param clock           current time in ms
+     */
+    AimdLimit(String name, int min, int max, int increaseStep, long targetLatencyMs, LongSupplier clock) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid range for " + name + " limit: " + min + " to " + max);
+        }
+        this.name = name;
+        this.min = min;
+        this.max = max;
+        this.increaseStep = Math.max(1, increaseStep);
+        this.targetLatencyMs = targetLatencyMs;
+        this.clock = clock;
+        this.limit = max;
+        this.decreasedAt = clock.getAsLong() - targetLatencyMs;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    synchronized int get() {
+        return limit;
+    }
+
+    /**
+     * Adjust the limit after a solr response
+     *
+     * @param latency time from request to response
+     * @param success false if solr failed the request
+     * @return true if the limit changed
+     */
+    synchronized boolean update(Duration latency, boolean success) {
+        final int previous = limit;
+        if (!success || latency.toMillis() > targetLatencyMs) {
+            final long now = clock.getAsLong();
+            if (now - decreasedAt >= targetLatencyMs) {
+                limit = Math.max(min, (int) (limit * DECREASE_FACTOR));
+                decreasedAt = now;
+            }
+        } else {
+            limit = Math.min(max, limit + increaseStep);
+        }
+        return limit != previous;
+    }
+}
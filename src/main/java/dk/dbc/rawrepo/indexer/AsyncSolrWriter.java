@@ -0,0 +1,133 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.client.solrj.util.AsyncListener;
+import org.apache.solr.common.util.NamedList;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends solr update requests without waiting for the response
+ * <p>
+ * At most a given number of requests are in flight at once. A caller
+ * sending one more is blocked until a response arrives, which keeps the
+ * stages in front of it from running ahead of solr. Over HTTP/2 the requests
+ * in flight share one multiplexed connection. The number can be changed
+ * while running, see {@link #setMaxInFlight(int)}.
+ * <p>
+ * The returned futures are completed on the writer's own threads, never on
+ * the threads of the http client, so the caller can do blocking work, like
+ * committing a database transaction, in a callback.
+ */
+class AsyncSolrWriter {
+
+    private final Http2SolrClient solrClient;
+    private final ExecutorService completionExecutor;
+    private int inFlight;
+    private int maxInFlight;
+
+    /**
+     * @param solrClient    client for the solr core
+     * @param maxInFlight   max number of requests waiting for a response
+     * @param threadFactory factory for the threads completing the requests
+     */
+    AsyncSolrWriter(Http2SolrClient solrClient, int maxInFlight, ThreadFactory threadFactory) {
+        this.solrClient = solrClient;
+        this.maxInFlight = maxInFlight;
+        // The queue never holds more than maxInFlight completions
+        this.completionExecutor = Executors.newFixedThreadPool(Math.min(maxInFlight, 4), threadFactory);
+    }
+
+    /**
+     * Send an update request, waiting if too many requests are in flight
+     *
+     * @param request update request
+     * @return completes when solr has accepted the request, or exceptionally if it failed
+     * @throws InterruptedException if interrupted while waiting for room, in which case nothing was sent
+     */
+    CompletableFuture<Void> send(UpdateRequest request) throws InterruptedException {
+        acquire();
+        final CompletableFuture<Void> response = new CompletableFuture<>();
+        try {
+            solrClient.asyncRequest(request, null, new AsyncListener<NamedList<Object>>() {
+                // Released once the completion is scheduled, so close() does not stop the threads before that
+                @Override
+                public void onSuccess(NamedList<Object> result) {
+                    try {
+                        completionExecutor.execute(() -> response.complete(null));
+                    } finally {
+                        release();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable failure) {
+                    try {
+                        completionExecutor.execute(() -> response.completeExceptionally(failure));
+                    } finally {
+                        release();
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            release();
+            response.completeExceptionally(ex);
+        }
+        return response;
+    }
+
+    /**
+     * @return number of requests waiting for a response
+     */
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Change the max number of requests in flight, without affecting those already sent
+     *
+     * @param maxInFlight max number of requests waiting for a response
+     */
+    synchronized void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the requests in flight, then stops the threads completing them
+     *
+     * @param timeoutMs max time to wait for the responses
+     * @return true if every request in flight got its response in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean close(long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (this) {
+            long remaining = timeoutMs;
+            while (inFlight > 0 && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        completionExecutor.shutdown();
+        return completionExecutor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+                && getInFlight() == 0;
+    }
+
+    private synchronized void acquire() throws InterruptedException {
+        while (inFlight >= maxInFlight) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+}
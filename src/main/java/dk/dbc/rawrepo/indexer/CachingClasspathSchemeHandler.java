@@ -0,0 +1,85 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.jslib.ClasspathSchemeHandler;
+import dk.dbc.jslib.Environment;
+import dk.dbc.jslib.ISchemeHandler;
+import dk.dbc.jslib.SchemeURI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Classpath modules for the javascript environments, resolved and read once per JVM
+ * <p>
+ * Every new environment resolves each use()'d module against all the search
+ * paths and reads the module from the classpath. The answers never change
+ * while the application runs, so the resolved module for each search path
+ * and name, and the source of each module, are cached and shared by all
+ * environments. Misses are cached too, as most search paths do not hold
+ * a given module. Only evaluating the modules is left for each environment.
+ */
+class CachingClasspathSchemeHandler implements ISchemeHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(CachingClasspathSchemeHandler.class);
+
+    private static final Map<String, Optional<SchemeURI>> lookups = new ConcurrentHashMap<>();
+    private static final Map<String, String> sources = new ConcurrentHashMap<>();
+
+    private final ISchemeHandler delegate;
+    private final ClassLoader classLoader;
+
+    CachingClasspathSchemeHandler(ClassLoader classLoader) {
+        this(new ClasspathSchemeHandler(classLoader), classLoader);
+    }
+
+    CachingClasspathSchemeHandler(ISchemeHandler delegate, ClassLoader classLoader) {
+        this.delegate = delegate;
+        this.classLoader = classLoader;
+    }
+
+    @Override
+    public List<String> schemes() {
+        return delegate.schemes();
+    }
+
+    @Override
+    public SchemeURI lookup(SchemeURI suri, String string) {
+        // A map cannot hold null, which is what a miss may be
+        return lookups.computeIfAbsent(suri + "\n" + string, key -> Optional.ofNullable(delegate.lookup(suri, string))).orElse(null);
+    }
+
+    @Override
+    public void load(SchemeURI sUri, Environment envir) throws Exception {
+        final String name = sUri.toString();
+        final String source = sources.computeIfAbsent(name, key -> read(sUri.getPath()));
+        envir.eval(new StringReader(source), name);
+    }
+
+    private String read(String path) {
+        log.debug("Reading javascript module {}", path);
+        try (InputStream stream = classLoader.getResourceAsStream(path)) {
+            if (stream == null) {
+                throw new IllegalArgumentException("Cannot find javascript module " + path);
+            }
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot read javascript module " + path, ex);
+        }
+    }
+
+    /**
+     * @return number of modules read so far
+     */
+    static int getCachedSourceCount() {
+        return sources.size();
+    }
+}
@@ -0,0 +1,62 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.rawrepo.queue.QueueItem;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The jobs of a dequeue window with duplicates for the same record collapsed
+ * <p>
+ * Dependency queueing often puts the same record on the queue several times
+ * in quick succession. Only one job per record needs to be indexed, but every
+ * original job still has to be acknowledged or failed.
+ */
+class CoalescedJobs {
+
+    private final List<QueueItem> jobs;
+    private final List<QueueItem> unique;
+
+    private CoalescedJobs(List<QueueItem> jobs, List<QueueItem> unique) {
+        this.jobs = jobs;
+        this.unique = unique;
+    }
+
+    /**
+     * Collapse jobs for the same bibliographicRecordId:agencyId, keeping the
+     * first job for each record in dequeue order
+     *
+     * @param jobs dequeued jobs
+     * @return coalesced jobs
+     */
+    static CoalescedJobs of(List<QueueItem> jobs) {
+        final Map<String, QueueItem> byId = new LinkedHashMap<>();
+        for (QueueItem job : jobs) {
+            byId.putIfAbsent(job.getBibliographicRecordId() + ":" + job.getAgencyId(), job);
+        }
+        return new CoalescedJobs(jobs, new ArrayList<>(byId.values()));
+    }
+
+    /**
+     * @return every dequeued job, including duplicates
+     */
+    List<QueueItem> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * @return one job per record
+     */
+    List<QueueItem> getUnique() {
+        return unique;
+    }
+
+    /**
+     * @return number of jobs that were coalesced away
+     */
+    int getCoalescedCount() {
+        return jobs.size() - unique.size();
+    }
+}
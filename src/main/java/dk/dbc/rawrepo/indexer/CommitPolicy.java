@@ -0,0 +1,149 @@
+package dk.dbc.rawrepo.indexer;
+
+import java.util.function.LongSupplier;
+
+/**
+ * When the indexer asks solr to make its updates visible
+ * <p>
+ * Every update from the queue carries commitWithin, if configured, so
+ * solr commits on its own within that time. On top of that the indexer can
+ * soft commit itself once a number of documents have been written, or once
+ * some time has passed since the first update that is not yet committed.
+ * <p>
+ * Bulk updates, such as a full reindex, can skip all of this and leave the
+ * commit to a single hard commit when they are done.
+ * <p>
+ * A commit takes the documents written so far before it is sent, so
+ * documents written by other threads while it is under way count toward
+ * the next commit, and are given back if the commit fails.
+ */
+class CommitPolicy {
+
+    static final String BULK_COMMIT_AT_END = "end";
+    static final String BULK_COMMIT_AS_QUEUE = "queue";
+
+    private final int commitWithinMs;
+    private final long softCommitDocuments;
+    private final long softCommitMs;
+    private final boolean bulkCommitAtEnd;
+    private final LongSupplier clock;
+
+    private long uncommittedDocuments;
+    private long firstUncommittedAt;
+
+    /**
+     * @param commitWithinMs      commitWithin sent with every update, or a negative number to leave it to the server
+     * @param softCommitDocuments soft commit when this many documents have been written since the last commit, 0 to disable
+     * @param softCommitMs        soft commit when the oldest uncommitted update is this old, 0 to disable
+     * @param bulkCommit          {@link #BULK_COMMIT_AT_END} or {@link #BULK_COMMIT_AS_QUEUE}
+     * @param clock               current time in ms
+     */
+    CommitPolicy(int commitWithinMs, long softCommitDocuments, long softCommitMs, String bulkCommit, LongSupplier clock) {
+        if (!BULK_COMMIT_AT_END.equals(bulkCommit) && !BULK_COMMIT_AS_QUEUE.equals(bulkCommit)) {
+            throw new IllegalArgumentException("Unknown bulk commit mode: " + bulkCommit);
+        }
+        this.commitWithinMs = commitWithinMs;
+        this.softCommitDocuments = softCommitDocuments;
+        this.softCommitMs = softCommitMs;
+        this.bulkCommitAtEnd = BULK_COMMIT_AT_END.equals(bulkCommit);
+        this.clock = clock;
+    }
+
+    /**
+     * @param bulk true for bulk updates
+     * @return commitWithin for an update request, -1 for none
+     */
+    int getCommitWithin(boolean bulk) {
+        if (bulk && bulkCommitAtEnd) {
+            return -1;
+        }
+        return commitWithinMs < 0 ? -1 : commitWithinMs;
+    }
+
+    /**
+     * Register documents written to solr
+     *
+     * @param documents number of documents added or deleted
+     * @param bulk      true for bulk updates
+     * @return true if the caller should soft commit now
+     */
+    synchronized boolean written(int documents, boolean bulk) {
+        if (documents == 0 || bulk && bulkCommitAtEnd) {
+            return false;
+        }
+        if (uncommittedDocuments == 0) {
+            firstUncommittedAt = clock.getAsLong();
+        }
+        uncommittedDocuments += documents;
+        return isSoftCommitDue();
+    }
+
+    /**
+     * @return true if a soft commit is due, without writing anything
+     */
+    synchronized boolean isSoftCommitDue() {
+        if (uncommittedDocuments == 0) {
+            return false;
+        }
+        if (softCommitDocuments > 0 && uncommittedDocuments >= softCommitDocuments) {
+            return true;
+        }
+        return softCommitMs > 0 && clock.getAsLong() - firstUncommittedAt >= softCommitMs;
+    }
+
+    /**
+     * Take the documents written so far for a soft commit, if one is due
+     * <p>
+     * Checking and taking is one step, so only one of the threads that
+     * find a soft commit due sends it.
+     *
+     * @return the documents the commit covers, or null if no soft commit is due
+     */
+    synchronized Uncommitted takeSoftCommit() {
+        return isSoftCommitDue() ? take() : null;
+    }
+
+    /**
+     * Take the documents written so far for a commit
+     *
+     * @return the documents the commit covers
+     */
+    synchronized Uncommitted take() {
+        final Uncommitted taken = new Uncommitted(uncommittedDocuments, firstUncommittedAt);
+        uncommittedDocuments = 0;
+        return taken;
+    }
+
+    /**
+     * Give back the documents taken by a commit that failed, so the next update tries again
+     *
+     * @param taken documents from {@link #take()} or {@link #takeSoftCommit()}
+     */
+    synchronized void commitFailed(Uncommitted taken) {
+        if (taken.documents == 0) {
+            return;
+        }
+        if (uncommittedDocuments == 0 || taken.since < firstUncommittedAt) {
+            firstUncommittedAt = taken.since;
+        }
+        uncommittedDocuments += taken.documents;
+    }
+
+    /**
+     * Documents written to solr and not yet committed
+     */
+    static class Uncommitted {
+
+        private final long documents;
+        private final long since;
+
+        private Uncommitted(long documents, long since) {
+            this.documents = documents;
+            this.since = since;
+        }
+
+        long getDocuments() {
+            return documents;
+        }
+    }
+}
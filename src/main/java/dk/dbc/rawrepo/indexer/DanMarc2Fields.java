@@ -0,0 +1,249 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.apache.solr.common.SolrInputDocument;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Java implementation of the danMARC2 RULES table in indexer.js
+ * <p>
+ * An instance collects the fields of one record, in the same order as the
+ * javascript object built by the index function, and adds them to the solr
+ * document once the whole record has been read.
+ */
+class DanMarc2Fields {
+
+    static final String FORMAT = "danMARC2";
+    static final String COLLECTION_IDENTIFIER = "rec.collectionIdentifier";
+
+    private static final String TAG_001 = "001";
+    private static final String TAG_S11 = "s11";
+    private static final String AGENCY_COMMON = "870970";
+    private static final String AGENCY_DBC = "191919";
+
+    // setup_danmarc_field in indexer.js. s11a is left out, as the s11 rule is a
+    // function and the script never reads the subfields of an s11 datafield
+    private static final Map<String, Map<String, String>> SUBFIELD_MAPPINGS = createMappings(
+            "002a", "002b", "002c", "002x",
+            "004a",
+            "008a",
+            "009a", "009g",
+            "014a",
+            "021a", "021e",
+            "022a",
+            "023a", "023b",
+            "024a",
+            "028a",
+            "100a",
+            "110a",
+            "245a", "245g", "245n", "245ø",
+            "250a",
+            "260b",
+            "300e",
+            "538g",
+            "652m",
+            "y08a");
+
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("uuuuMMdd").withResolverStyle(ResolverStyle.STRICT);
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("uuuuMMddHHmmss").withResolverStyle(ResolverStyle.STRICT);
+    private static final DateTimeFormatter SOLR_TIME = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss'Z'");
+
+    private final Map<String, List<String>> fields = new LinkedHashMap<>();
+    private String record;
+    private String agency;
+
+    DanMarc2Fields() {
+        setCollectionIdentifier("any");
+    }
+
+    /**
+     * @param tag datafield tag
+     * @return true if datafields with this tag contribute to the document
+     */
+    static boolean hasRule(String tag) {
+        return TAG_001.equals(tag) || TAG_S11.equals(tag) || SUBFIELD_MAPPINGS.containsKey(tag);
+    }
+
+    /**
+     * @param tag datafield tag
+     * @return true if the rule for this tag applies to the datafield as a whole, so the subfields are not read
+     */
+    static boolean isDatafieldRule(String tag) {
+        return TAG_S11.equals(tag);
+    }
+
+    /**
+     * @param tag  datafield tag
+     * @param code subfield code
+     * @return true if subfields with this code contribute to the document
+     */
+    static boolean hasSubfieldRule(String tag, String code) {
+        if (TAG_001.equals(tag)) {
+            switch (code) {
+                case "a":
+                case "b":
+                case "c":
+                case "d":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        final Map<String, String> mapping = SUBFIELD_MAPPINGS.get(tag);
+        return mapping != null && mapping.containsKey(code);
+    }
+
+    /**
+     * Apply the rule for a datafield as a whole
+     *
+     * @param tag datafield tag
+     */
+    void datafield(String tag) {
+        if (TAG_S11.equals(tag) && AGENCY_DBC.equals(agency)) {
+            setCollectionIdentifier("dk.dbc");
+        }
+    }
+
+    /**
+     * Apply the rule for a subfield
+     *
+     * @param tag   datafield tag
+     * @param code  subfield code
+     * @param value text of the subfield
+     */
+    void subfield(String tag, String code, String value) {
+        if (TAG_001.equals(tag)) {
+            subfield001(code, value);
+        } else {
+            final Map<String, String> mapping = SUBFIELD_MAPPINGS.get(tag);
+            if (mapping != null) {
+                final String name = mapping.get(code);
+                if (name != null) {
+                    add(name, value);
+                }
+            }
+        }
+    }
+
+    private void subfield001(String code, String value) {
+        switch (code) {
+            case "a":
+                record = value;
+                add("marc.001a", value);
+                if (agency != null) {
+                    add("marc.001a001b", record + ':' + agency);
+                }
+                break;
+            case "b":
+                agency = value;
+                if (AGENCY_COMMON.equals(value)) {
+                    setCollectionIdentifier("common");
+                }
+                add("marc.001b", value);
+                if (record != null) {
+                    add("marc.001a001b", record + ':' + agency);
+                }
+                break;
+            case "c":
+                addSolrTime("marc.001c", value);
+                break;
+            case "d":
+                addSolrTime("marc.001d", value);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Add all collected fields to a solr document
+     *
+     * @param solrInputDocument target
+     */
+    void addTo(SolrInputDocument solrInputDocument) {
+        for (Map.Entry<String, List<String>> field : fields.entrySet()) {
+            for (String value : field.getValue()) {
+                solrInputDocument.addField(field.getKey(), value);
+            }
+        }
+    }
+
+    private void add(String name, String value) {
+        fields.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+    }
+
+    private void setCollectionIdentifier(String collectionIdentifier) {
+        // Replacing the value keeps the original position, like reassigning a javascript property
+        final List<String> values = new ArrayList<>(1);
+        values.add(collectionIdentifier);
+        fields.put(COLLECTION_IDENTIFIER, values);
+    }
+
+    private void addSolrTime(String name, String value) {
+        final String solrTime = toSolrTime(value);
+        if (solrTime != null) {
+            add(name, solrTime);
+        }
+    }
+
+    /**
+     * Convert a danMARC2 date (yyyyMMdd) or timestamp (yyyyMMddHHmmss) to solr format
+     * <p>
+     * Like addSolrTime in indexer.js, only values that are valid dates and
+     * survive a round trip through the date are accepted. That excludes years
+     * before 1000, as the javascript round trip does not pad the year.
+     *
+     * @param value danMARC2 value
+     * @return solr time, or null if the value is not valid
+     */
+    static String toSolrTime(String value) {
+        final DateTimeFormatter formatter;
+        if (value.length() == 8) {
+            formatter = DATE;
+        } else if (value.length() == 14) {
+            formatter = DATE_TIME;
+        } else {
+            return null;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return null;
+            }
+        }
+        try {
+            final LocalDateTime dateTime = value.length() == 8 ?
+                    LocalDate.parse(value, formatter).atStartOfDay() :
+                    LocalDateTime.parse(value, formatter);
+            if (dateTime.getYear() < 1000) {
+                return null;
+            }
+            return SOLR_TIME.format(dateTime);
+        } catch (DateTimeParseException ex) {
+            return null;
+        }
+    }
+
+    private static Map<String, Map<String, String>> createMappings(String... specs) {
+        final Map<String, Map<String, String>> mappings = new HashMap<>();
+        for (String spec : specs) {
+            final String tag = spec.substring(0, 3);
+            final String code = spec.substring(3);
+            mappings.computeIfAbsent(tag, k -> new HashMap<>()).put(code, "marc." + spec);
+        }
+        for (Map.Entry<String, Map<String, String>> mapping : mappings.entrySet()) {
+            mapping.setValue(Collections.unmodifiableMap(mapping.getValue()));
+        }
+        return Collections.unmodifiableMap(mappings);
+    }
+}
@@ -0,0 +1,242 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The fingerprint of the last document written to solr, per document id
+ * <p>
+ * Many queued changes do not touch any indexed field. When a regenerated
+ * document has the same fingerprint as the last one written, sending it to
+ * solr again only causes segment merges, so the write can be skipped.
+ * <p>
+ * The cache is bounded, evicting the least recently used ids, and can be
+ * saved to and loaded from a file, so a restart does not start out cold.
+ * A fingerprint is only stored once the document has been written, and is
+ * dropped when the document is deleted.
+ * <p>
+ * The cache only holds while this indexer is the only one writing the
+ * documents, which is why it needs queue partitions, see {@link QueuePartitions},
+ * and is cleared when partitions another indexer may have written to are claimed.
+ */
+class FingerprintCache {
+
+    private static final Logger log = LoggerFactory.getLogger(FingerprintCache.class);
+
+    private static final String ALGORITHM = "SHA-256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int capacity;
+    private final Set<String> excludedFields;
+    private final Map<String, String> fingerprints;
+    private boolean dirty;
+
+    /**
+     * @param capacity       max number of document ids to remember
+     * @param excludedFields fields left out of the fingerprint, such as timestamps that change on every update
+     */
+    FingerprintCache(int capacity, Collection<String> excludedFields) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be at least 1, was " + capacity);
+        }
+        this.capacity = capacity;
+        this.excludedFields = new HashSet<>(excludedFields);
+        this.fingerprints = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > FingerprintCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Compute a fingerprint of a document
+     * <p>
+     * Fields are taken in name order and every name and value is length
+     * prefixed, so the fingerprint does not depend on the order the fields
+     * were added in, and different documents cannot produce the same input
+     * to the digest.
+     *
+     * @param document solr document
+     * @return hex encoded digest
+     */
+    String fingerprint(SolrInputDocument document) {
+        final List<String> names = new ArrayList<>(document.getFieldNames());
+        Collections.sort(names);
+        final MessageDigest digest = createDigest();
+        for (String name : names) {
+            if (excludedFields.contains(name)) {
+                continue;
+            }
+            update(digest, name);
+            final Collection<Object> values = document.getFieldValues(name);
+            update(digest, Integer.toString(values.size()));
+            for (Object value : values) {
+                update(digest, value instanceof Date ? Long.toString(((Date) value).getTime()) : String.valueOf(value));
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param id          solr document id
+     * @param fingerprint fingerprint of the regenerated document
+     * @return true if the last document written for the id had the same fingerprint
+     */
+    synchronized boolean isUnchanged(String id, String fingerprint) {
+        return fingerprint.equals(fingerprints.get(id));
+    }
+
+    /**
+     * Remember the fingerprint of a document that has been written to solr
+     *
+     * @param id          solr document id
+     * @param fingerprint fingerprint of the written document
+     */
+    synchronized void put(String id, String fingerprint) {
+        if (!fingerprint.equals(fingerprints.put(id, fingerprint))) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forget a document that has been deleted from solr
+     *
+     * @param id solr document id
+     */
+    synchronized void remove(String id) {
+        if (fingerprints.remove(id) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forget every document, as someone else may have written to solr since
+     */
+    synchronized void clear() {
+        if (!fingerprints.isEmpty()) {
+            fingerprints.clear();
+            dirty = true;
+        }
+    }
+
+    synchronized int size() {
+        return fingerprints.size();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Load fingerprints saved by {@link #save(Path)}, if the file exists
+     *
+     * @param path file to read
+     * @throws IOException if the file could not be read
+     */
+    synchronized void load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            log.info("No fingerprint file at {}, starting with an empty cache", path);
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    fingerprints.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        }
+        dirty = false;
+        log.info("Loaded {} fingerprints from {}", fingerprints.size(), path);
+    }
+
+    /**
+     * Save the fingerprints, if any have changed since the last load or save
+     * <p>
+     * The file is written next to the target and moved into place, so a
+     * crash while saving leaves the previous file intact. Entries are
+     * written least recently used first, so loading restores the eviction
+     * order.
+     *
+     * @param path file to write
+     * @throws IOException if the file could not be written
+     */
+    void save(Path path) throws IOException {
+        final List<Map.Entry<String, String>> entries;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            entries = new ArrayList<>(fingerprints.size());
+            for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+            dirty = false;
+        }
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, String> entry : entries) {
+                    writer.write(entry.getKey());
+                    writer.write('\t');
+                    writer.write(entry.getValue());
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw ex;
+        }
+        log.debug("Saved {} fingerprints to {}", entries.size(), path);
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        final int length = bytes.length;
+        digest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        digest.update(bytes);
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ALGORITHM + " is not supported", ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
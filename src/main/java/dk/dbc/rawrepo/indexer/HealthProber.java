@@ -0,0 +1,180 @@
+package dk.dbc.rawrepo.indexer;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import jakarta.ejb.ConcurrencyManagement;
+import jakarta.ejb.ConcurrencyManagementType;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.enterprise.concurrent.ManagedThreadFactory;
+import jakarta.inject.Inject;
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Probes the database and solr in the background
+ * <p>
+ * The status endpoint and the indexer read the result of the last probe
+ * instead of checking for themselves, so health checks no longer take
+ * connections and solr requests away from indexing, however often they are
+ * called. Each probe is given HEALTH_PROBE_TIMEOUT_MS, and a result older
+ * than HEALTH_MAX_AGE_MS counts as a failure, in case probing has stalled.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class HealthProber {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(HealthProber.class);
+    private static final String IM_ALIVE_QUERY = "select 1 alive";
+
+    @Inject
+    @ConfigProperty(name = "SOLR_URL", defaultValue = "SOLR_URL not set")
+    protected String SOLR_URL;
+
+    @Inject
+    @ConfigProperty(name = "SOLR_HTTP2", defaultValue = "false")
+    protected boolean SOLR_HTTP2;
+
+    @Inject
+    @ConfigProperty(name = "HEALTH_PROBE_INTERVAL_MS", defaultValue = "5000")
+    protected long HEALTH_PROBE_INTERVAL_MS;
+
+    @Inject
+    @ConfigProperty(name = "HEALTH_PROBE_TIMEOUT_MS", defaultValue = "2000")
+    protected long HEALTH_PROBE_TIMEOUT_MS;
+
+    @Inject
+    @ConfigProperty(name = "HEALTH_MAX_AGE_MS", defaultValue = "30000")
+    protected long HEALTH_MAX_AGE_MS;
+
+    @Resource(lookup = "jdbc/rawrepo")
+    protected DataSource rawrepoDataSource;
+
+    @Resource
+    protected ManagedThreadFactory threadFactory;
+
+    protected Http2SolrClient solrClient;
+
+    ExecutorService probeExecutor;
+    private volatile boolean running;
+    private Thread thread;
+    private volatile HealthStatus dbStatus = HealthStatus.unknown();
+    private volatile HealthStatus solrStatus = HealthStatus.unknown();
+
+    @PostConstruct
+    public void create() {
+        LOGGER.info("Probing database and solr every {} ms", HEALTH_PROBE_INTERVAL_MS);
+        solrClient = new Http2SolrClient.Builder(SOLR_URL).useHttp1_1(!SOLR_HTTP2).build();
+        // A probe that does not return within the timeout keeps its thread, so the pool can not be fixed
+        probeExecutor = Executors.newCachedThreadPool(threadFactory);
+        // Probe once before startup completes, so the first status check has a result
+        probe();
+        running = true;
+        thread = threadFactory.newThread(this::run);
+        thread.setName("health-prober");
+        thread.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        probeExecutor.shutdownNow();
+        solrClient.close();
+    }
+
+    public boolean isDbAlive() {
+        return dbStatus.isAlive(HEALTH_MAX_AGE_MS);
+    }
+
+    public boolean isSolrAlive() {
+        return solrStatus.isAlive(HEALTH_MAX_AGE_MS);
+    }
+
+    public HealthStatus getDbStatus() {
+        return dbStatus;
+    }
+
+    public HealthStatus getSolrStatus() {
+        return solrStatus;
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                Thread.sleep(HEALTH_PROBE_INTERVAL_MS);
+                probe();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            LOGGER.info("Health prober stopped");
+        }
+    }
+
+    /**
+     * Probe the database and solr at the same time and wait for both
+     */
+    void probe() {
+        final long started = System.nanoTime();
+        final Future<?> db = probeExecutor.submit(this::probeDb);
+        final Future<?> solr = probeExecutor.submit(() -> solrClient.ping());
+        dbStatus = await("db", dbStatus, db, started);
+        solrStatus = await("solr", solrStatus, solr, started);
+    }
+
+    private Void probeDb() throws Exception {
+        try (Connection connection = rawrepoDataSource.getConnection();
+             Statement stmt = connection.createStatement()) {
+            stmt.setQueryTimeout((int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(HEALTH_PROBE_TIMEOUT_MS)));
+            try (ResultSet resultSet = stmt.executeQuery(IM_ALIVE_QUERY)) {
+                resultSet.next();
+            }
+        }
+        return null;
+    }
+
+    private HealthStatus await(String name, HealthStatus previous, Future<?> probe, long started) {
+        final long remaining = HEALTH_PROBE_TIMEOUT_MS - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        String error = null;
+        try {
+            probe.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            probe.cancel(true);
+            error = "No response within " + HEALTH_PROBE_TIMEOUT_MS + " ms";
+        } catch (ExecutionException ex) {
+            error = String.valueOf(ex.getCause().getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            probe.cancel(true);
+            return previous;
+        }
+        final long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        final HealthStatus status = new HealthStatus(error == null, Instant.now(), latency, error);
+        if (status.isAlive() != previous.isAlive()) {
+            if (status.isAlive()) {
+                LOGGER.info("Status check {} alive, responded in {} ms", name, latency);
+            } else {
+                LOGGER.error("Status check {} alive failed: {}", name, error);
+            }
+        }
+        return status;
+    }
+}
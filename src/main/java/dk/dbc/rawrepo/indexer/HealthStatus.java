@@ -0,0 +1,63 @@
+package dk.dbc.rawrepo.indexer;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Result of the last probe of a dependency, as reported by the health endpoint
+ */
+public class HealthStatus {
+
+    private final boolean alive;
+    private final Instant checkedAt;
+    private final long latencyMs;
+    private final String error;
+
+    HealthStatus(boolean alive, Instant checkedAt, long latencyMs, String error) {
+        this.alive = alive;
+        this.checkedAt = checkedAt;
+        this.latencyMs = latencyMs;
+        this.error = error;
+    }
+
+    /**
+     * @return status before the first probe has completed
+     */
+    static HealthStatus unknown() {
+        return new HealthStatus(false, null, 0, "Not probed yet");
+    }
+
+    public boolean isAlive() {
+        return alive;
+    }
+
+    /**
+     * @return time of the probe, null if there has not been one
+     */
+    public String getCheckedAt() {
+        return checkedAt == null ? null : checkedAt.toString();
+    }
+
+    /**
+     * @return ms since the probe, -1 if there has not been one
+     */
+    public long getAgeMs() {
+        return checkedAt == null ? -1 : Duration.between(checkedAt, Instant.now()).toMillis();
+    }
+
+    public long getLatencyMs() {
+        return latencyMs;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @param maxAgeMs results older than this no longer count
+     * @return true if the dependency was alive at a probe no older than maxAgeMs
+     */
+    boolean isAlive(long maxAgeMs) {
+        return alive && checkedAt != null && getAgeMs() <= maxAgeMs;
+    }
+}
@@ -0,0 +1,29 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Extracts the marc fields of a record into a solr document
+ */
+public interface IndexEngine {
+
+    /**
+     * Name of the engine, used in log output
+     *
+     * @return name
+     */
+    String getName();
+
+    /**
+     * Add the fields extracted from content to solrInputDocument
+     * <p>
+     * The content is the raw record as stored in rawrepo, so engines that can
+     * read bytes directly do not need a decoded copy of the record.
+     *
+     * @param solrInputDocument target
+     * @param content           UTF-8 encoded marcxchange
+     * @param mimetype          mimetype of marcxchange
+     * @throws Exception if the content could not be indexed
+     */
+    void addFields(SolrInputDocument solrInputDocument, byte[] content, String mimetype) throws Exception;
+}
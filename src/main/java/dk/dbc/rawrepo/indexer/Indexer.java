@@ -1,6 +1,7 @@
 package dk.dbc.rawrepo.indexer;
 
 import dk.dbc.rawrepo.dto.RecordDTO;
+import dk.dbc.rawrepo.dto.RecordIdCollectionDTO;
 import dk.dbc.rawrepo.dto.RecordIdDTO;
 import dk.dbc.rawrepo.exception.SolrIndexerRawRepoException;
 import dk.dbc.rawrepo.exception.SolrIndexerSolrException;
@@ -9,6 +10,7 @@ import dk.dbc.rawrepo.queue.QueueItem;
 import dk.dbc.rawrepo.queue.RawRepoQueueDAO;
 import dk.dbc.rawrepo.record.RecordServiceConnector;
 import dk.dbc.rawrepo.record.RecordServiceConnectorException;
+import dk.dbc.rawrepo.record.RecordServiceConnectorNoContentStatusCodeException;
 import dk.dbc.util.Stopwatch;
 import dk.dbc.util.Timed;
 import jakarta.annotation.PostConstruct;
@@ -20,7 +22,7 @@ import jakarta.ejb.TransactionAttributeType;
 import jakarta.inject.Inject;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.BaseHttpSolrClient;
-import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
@@ -33,84 +35,205 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 @Stateless
 public class Indexer {
     private static final XLogger LOGGER = XLoggerFactory.getXLogger(Indexer.class);
-    private static final XLogger LOGGER_STOPWATCH = XLoggerFactory.getXLogger("dk.dbc.rawrepo.indexer.stopwatch");
 
     private static final String TRACKING_ID = "trackingId";
 
-    @Inject
-    @ConfigProperty(name = "SOLR_URL", defaultValue = "SOLR_URL not set")
-    protected String SOLR_URL;
-
     @Inject
     @ConfigProperty(name = "WORKER", defaultValue = "WORKER not set")
     protected String WORKER;
 
+    @Inject
+    @ConfigProperty(name = "WORKERS")
+    protected Optional<List<String>> WORKERS;
+
+    @Inject
+    @ConfigProperty(name = "BATCH_SIZE", defaultValue = "1")
+    protected int BATCH_SIZE;
+
+    @Inject
+    @ConfigProperty(name = "BATCH_LINGER_MS", defaultValue = "0")
+    protected long BATCH_LINGER_MS;
+
+    @Inject
+    @ConfigProperty(name = "INDEX_ENGINE", defaultValue = INDEX_ENGINE_JAVASCRIPT)
+    protected String INDEX_ENGINE;
+
+    @Inject
+    @ConfigProperty(name = "PIPELINE_CAPACITY", defaultValue = "4")
+    protected int PIPELINE_CAPACITY;
+
+    @Inject
+    @ConfigProperty(name = "SPOOL_REPLAY_SIZE", defaultValue = "1000")
+    protected int SPOOL_REPLAY_SIZE;
+
     @Resource(lookup = "jdbc/rawrepo")
     protected DataSource rawrepoDataSource;
 
     @Inject
-    private RecordServiceConnector recordServiceConnector;
+    RecordServiceConnector recordServiceConnector;
+
+    @Inject
+    IndexerMetrics metrics;
+
+    @EJB
+    RawRepoQueueBean queueBean;
+
+    @EJB
+    HealthProber healthProber;
+
+    @EJB
+    private QueuePartitions queuePartitions;
+
+    @EJB
+    private WarmUp warmUp;
+
+    @EJB
+    JobRetries retries;
 
     @EJB
-    private RawRepoQueueBean queueBean;
+    IndexerResources resources;
 
     static final String MIMETYPE_MARCXCHANGE = "text/marcxchange";
     static final String MIMETYPE_ENRICHMENT = "text/enrichment+marcxchange";
     static final String MIMETYPE_ARTICLE = "text/article+marcxchange";
     static final String MIMETYPE_AUTHORITY = "text/authority+marcxchange";
 
-    JavaScriptWorker worker;
+    static final String INDEX_ENGINE_JAVASCRIPT = "javascript";
+    static final String INDEX_ENGINE_JAVA = "java";
 
-    private static Http2SolrClient solrClient;
+    private static final long LINGER_POLL_INTERVAL_MS = 50;
+
+    IndexEngine worker;
+
+    private WorkerLanes lanes;
 
     @PostConstruct
     public void create() {
-        LOGGER.info("Initializing with url {}", SOLR_URL);
-        synchronized (Indexer.class) {
-            if(solrClient == null) {
-                LOGGER.info("Initializing Solr client for: {}", SOLR_URL);
-                solrClient = new Http2SolrClient.Builder(SOLR_URL).useHttp1_1(true).build();
-            }
+        worker = createIndexEngine();
+        lanes = WorkerLanes.of(WORKERS.orElse(Collections.emptyList()), WORKER);
+    }
+
+    private IndexEngine createIndexEngine() {
+        switch (INDEX_ENGINE) {
+            case INDEX_ENGINE_JAVASCRIPT:
+                return new JavaScriptWorker();
+            case INDEX_ENGINE_JAVA:
+                return new MarcXchangeIndexEngine();
+            default:
+                throw new IllegalArgumentException("Unknown INDEX_ENGINE: " + INDEX_ENGINE);
         }
-        worker = new JavaScriptWorker();
     }
 
+    /**
+     * Indexes queued jobs until the queues of all workers are empty, sharing
+     * the capacity between the workers by weight, see {@link WorkerLanes}
+     *
+     * @return number of jobs processed
+     */
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
-    public void performWork() throws SolrIndexerRawRepoException, SolrIndexerSolrException, RecordServiceConnectorException {
-        boolean moreWork = true;
-        int processedJobs = 0;
+    public int performWork() throws SolrIndexerRawRepoException, SolrIndexerSolrException, RecordServiceConnectorException {
+        // The queue waits until the index engine has warmed up
+        if (!warmUp.isDone()) {
+            return 0;
+        }
+        // Return proper error if the last health probe could not reach solr, unless updates can be spooled meanwhile
+        final boolean solrAlive = healthProber.isSolrAlive();
+        if (!solrAlive && resources.spool == null) {
+            throw new SolrIndexerSolrException("Could not connect to the solr server. " + healthProber.getSolrStatus().getError());
+        }
+        if (solrAlive && resources.spool != null) {
+            replaySpool();
+        }
 
-        // Test connection and return proper error if there is a problem
+        int processedJobs;
+        queuePartitions.beginRun();
         try {
-            solrClient.ping();
-        } catch (SolrServerException | IOException ex) {
-            throw new SolrIndexerSolrException("Could not connect to the solr server. " + ex.getMessage(), ex);
+            processedJobs = retryDueJobs();
+            processedJobs += resources.pipeline != null ? performPipelinedWork() : performSequentialWork();
+        } finally {
+            queuePartitions.endRun();
+        }
+        if (processedJobs > 0) {
+            LOGGER.info("Done indexing {} jobs from {}", processedJobs, lanes);
+        }
+        // A time based soft commit may have come due while the queue was empty
+        softCommit(resources.commitPolicy.isSoftCommitDue());
+        resources.saveFingerprints();
+        return processedJobs;
+    }
+
+    /**
+     * Soft commits solr, making the documents written so far visible without flushing segments
+     * <p>
+     * The documents have already been accepted by solr, so a failed soft
+     * commit does not fail the jobs. It is retried on the next update.
+     *
+     * @param due true if the commit policy says a soft commit is due
+     */
+    private void softCommit(boolean due) {
+        if (!due) {
+            return;
+        }
+        final CommitPolicy.Uncommitted taken = resources.commitPolicy.takeSoftCommit();
+        if (taken == null) {
+            // Another thread is committing them
+            return;
+        }
+        try {
+            resources.solrClient.commit(false, false, true);
+            LOGGER.debug("Soft committed {} documents", taken.getDocuments());
+        } catch (SolrServerException | IOException | SolrException ex) {
+            resources.commitPolicy.commitFailed(taken);
+            LOGGER.warn("Could not soft commit solr", ex);
         }
+    }
+
+    private int performSequentialWork() throws SolrIndexerRawRepoException, SolrIndexerSolrException, RecordServiceConnectorException {
+        final WorkerLanes.Schedule schedule = lanes.schedule();
+        boolean moreWork = true;
+        int processedJobs = 0;
+        WorkerLanes.Lane lane;
 
-        while (moreWork) {
+        while (moreWork && !queuePartitions.isHandoffPending() && (lane = schedule.next()) != null) {
             try (Connection connection = getConnection()) {
                 final RawRepoQueueDAO dao = createDAO(connection);
                 try {
-                    final QueueItem job = queueBean.dequeueJob(dao, WORKER);
+                    final List<QueueItem> jobs = dequeueJobs(connection, dao, lane.getWorker());
+                    schedule.done(lane, !jobs.isEmpty());
 
-                    if (job != null) {
+                    if (!jobs.isEmpty()) {
                         MDC.put(TRACKING_ID, createTrackingId()); // Early trackingId as we don't yet have the record
-                        processJob(job, dao);
-                        commit(connection);
-                        processedJobs++;
-                        if (processedJobs % 1000 == 0) {
-                            LOGGER.info("Still indexing {} jobs from '{}'", processedJobs, WORKER);
+                        if (jobs.size() == 1) {
+                            processJob(jobs.get(0), dao);
+                        } else {
+                            processBatch(jobs, dao);
                         }
-                    } else {
-                        moreWork = false;
+                        commit(connection);
+                        metrics.indexed(jobs.size());
+                        processedJobs = logProgress(processedJobs, jobs.size());
                     }
-                } catch (QueueException | IllegalArgumentException | SQLException ex) {
+                } catch (QueueException | IllegalArgumentException | IllegalStateException | SQLException ex) {
                     connection.rollback();
                     throw ex;
                 }
@@ -125,9 +248,136 @@ public class Indexer {
                 MDC.remove(TRACKING_ID);
             }
         }
-        if (processedJobs > 0) {
-            LOGGER.info("Done indexing {} jobs from '{}'", processedJobs, WORKER);
+        return processedJobs;
+    }
+
+    /**
+     * Dequeues batches and hands them to the indexing pipeline until the queues
+     * are empty or a batch fails
+     * <p>
+     * Each batch owns its connection until the pipeline has committed or
+     * rolled back its transaction.
+     */
+    private int performPipelinedWork() throws SolrIndexerRawRepoException, SolrIndexerSolrException, RecordServiceConnectorException {
+        final IndexingPipeline.Run run = resources.pipeline.newRun(new PipelineStages(), PIPELINE_CAPACITY);
+        final WorkerLanes.Schedule schedule = lanes.schedule();
+        int processedJobs = 0;
+        WorkerLanes.Lane lane;
+        try {
+            while (!run.hasFailed() && !queuePartitions.isHandoffPending() && (lane = schedule.next()) != null) {
+                final Connection connection = getConnection();
+                boolean submitted = false;
+                try {
+                    final RawRepoQueueDAO dao = createDAO(connection);
+                    final List<QueueItem> jobs = dequeueJobs(connection, dao, lane.getWorker());
+                    schedule.done(lane, !jobs.isEmpty());
+                    if (jobs.isEmpty()) {
+                        continue;
+                    }
+                    run.submit(new IndexingPipeline.Batch(coalesce(jobs), connection, dao));
+                    submitted = true;
+                    processedJobs = logProgress(processedJobs, jobs.size());
+                } catch (QueueException | RuntimeException ex) {
+                    LOGGER.error("Error getting job from database", ex);
+                    connection.rollback();
+                    break;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    LOGGER.error("Interrupted while handing jobs to the pipeline", ex);
+                    connection.rollback();
+                    break;
+                } finally {
+                    if (!submitted) {
+                        connection.close();
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            // If we get a SQLException there is something wrong which we can't do anything about.
+            LOGGER.error("SQLException: ", ex);
+            awaitPipeline(run);
+            throw new SolrIndexerRawRepoException("SQL exception from rawrepo:" + ex, ex);
+        }
+        awaitPipeline(run);
+
+        final Throwable failure = run.getFailure();
+        if (failure instanceof SolrIndexerSolrException) {
+            throw (SolrIndexerSolrException) failure;
+        } else if (failure instanceof RecordServiceConnectorException) {
+            throw (RecordServiceConnectorException) failure;
+        } else if (failure instanceof QueueException || failure instanceof SQLException) {
+            throw new SolrIndexerRawRepoException("Exception from rawrepo:" + failure, failure);
+        }
+        return processedJobs;
+    }
+
+    private void awaitPipeline(IndexingPipeline.Run run) {
+        try {
+            run.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.error("Interrupted while waiting for the pipeline to drain", ex);
+        }
+    }
+
+    private int logProgress(int processedJobs, int newJobs) {
+        final int total = processedJobs + newJobs;
+        if (total / 1000 > processedJobs / 1000) {
+            LOGGER.info("Still indexing {} jobs from {}", total, lanes);
+        }
+        return total;
+    }
+
+    /**
+     * Dequeues the next jobs for a worker within the current transaction
+     * <p>
+     * With a batch size above one, the dequeue is repeated until the batch is
+     * full or the linger time has passed since the first job was found. With
+     * ADAPTIVE_LIMITS_ENABLED the batch size shrinks while solr is struggling.
+     * With PARTITION_COUNT set, only jobs in the partitions this indexer owns
+     * are dequeued.
+     *
+     * @param connection connection with the current transaction
+     * @param dao        queue dao bound to the current transaction
+     * @param worker     the worker to dequeue for
+     * @return the dequeued jobs, empty if the queue is empty
+     * @throws QueueException if the queue could not be read
+     * @throws SQLException   if the partitioned queue could not be read
+     */
+    List<QueueItem> dequeueJobs(Connection connection, RawRepoQueueDAO dao, String worker) throws QueueException, SQLException {
+        final int batchSize = resources.batchSizeLimit == null ? BATCH_SIZE : resources.batchSizeLimit.get();
+        if (batchSize <= 1) {
+            return dequeue(connection, dao, worker, 1);
+        }
+
+        final List<QueueItem> jobs = new ArrayList<>(dequeue(connection, dao, worker, batchSize));
+        if (jobs.isEmpty()) {
+            return jobs;
+        }
+        final long deadline = System.currentTimeMillis() + BATCH_LINGER_MS;
+        long remaining = deadline - System.currentTimeMillis();
+        while (jobs.size() < batchSize && remaining > 0) {
+            try {
+                Thread.sleep(Math.min(LINGER_POLL_INTERVAL_MS, remaining));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            jobs.addAll(dequeue(connection, dao, worker, batchSize - jobs.size()));
+            remaining = deadline - System.currentTimeMillis();
         }
+        return jobs;
+    }
+
+    private List<QueueItem> dequeue(Connection connection, RawRepoQueueDAO dao, String worker, int wanted) throws QueueException, SQLException {
+        if (queuePartitions.isEnabled()) {
+            return queueBean.dequeueJobs(connection, worker, queuePartitions.getPartitionCount(), queuePartitions.getOwned(), wanted);
+        }
+        if (wanted == 1) {
+            final QueueItem job = queueBean.dequeueJob(dao, worker);
+            return job == null ? Collections.emptyList() : Collections.singletonList(job);
+        }
+        return queueBean.dequeueJobs(dao, worker, wanted);
     }
 
     protected Connection getConnection() throws SQLException {
@@ -142,69 +392,827 @@ public class Indexer {
 
     @Timed
     public void processJob(QueueItem job, RawRepoQueueDAO dao) throws QueueException, RecordServiceConnectorException, SolrIndexerSolrException {
+        processJob(job, 0, dao);
+    }
+
+    /**
+     * @param attempt number of retries of the job so far, see {@link JobRetries}
+     * @return the error if the job failed, null if it was indexed, is missing or was spooled
+     */
+    private Exception processJob(QueueItem job, int attempt, RawRepoQueueDAO dao) throws QueueException, RecordServiceConnectorException, SolrIndexerSolrException {
         LOGGER.info("Indexing {}", job);
         final Stopwatch stopwatch = new Stopwatch();
 
         LOGGER.info("---------------------------------------------------------------");
+        final SolrBatch update = new SolrBatch();
         try {
             RecordIdDTO recordId = new RecordIdDTO(job.getBibliographicRecordId(), job.getAgencyId());
             final RecordDTO record = fetchRecord(recordId);
             if (record == null) {
                 LOGGER.info("record from {} does not exist, most likely queued by dependency", job);
-                return;
+                metrics.record(IndexerMetrics.OUTCOME_MISSING, null, job.getAgencyId());
+                return null;
             }
             MDC.put(TRACKING_ID, createTrackingId(record));
             if (record.isDeleted()) {
-                deleteSolrDocument(recordId);
+                metrics.record(IndexerMetrics.OUTCOME_DELETED, record.getMimetype(), job.getAgencyId());
+                update.delete(createSolrDocumentId(recordId));
+                if (!spoolIfBehind(update, Collections.singletonList(job))) {
+                    deleteSolrDocument(recordId);
+                }
             } else {
                 SolrInputDocument doc = createIndexDocument(record);
-                updateSolr(record, doc);
+                update.add(doc);
+                if (!spoolIfBehind(update, Collections.singletonList(job))) {
+                    updateSolr(record, doc);
+                }
             }
             LOGGER.info("Indexed {}", job);
+            return null;
         } catch (BaseHttpSolrClient.RemoteSolrException ex) {
             // Index is missing on the solr server, so we need to stop now
             if (ex.getMessage().contains("unknown field")) {
                 throw new SolrIndexerSolrException("Missing index: " + ex.getMessage(), ex);
             }
-            LOGGER.error("Error processing {}", job, ex);
-            queueBean.queueFail(dao, job, ex.getMessage());
+            if (spoolIfUnavailable(update, Collections.singletonList(job), ex)) {
+                return null;
+            }
+            retryOrFail(job, attempt, ex, dao);
+            return ex;
         } catch (SolrException | SolrServerException | IOException ex) {
-            LOGGER.error("Error processing {}", job, ex);
-            queueBean.queueFail(dao, job, ex.getMessage());
+            if (spoolIfUnavailable(update, Collections.singletonList(job), ex)) {
+                return null;
+            }
+            retryOrFail(job, attempt, ex, dao);
+            return ex;
         } finally {
             MDC.remove(TRACKING_ID);
-            LOGGER_STOPWATCH.info("processJob took {} ms", stopwatch.getElapsedTime(TimeUnit.MILLISECONDS));
+            metrics.processed(elapsed(stopwatch), 1);
         }
     }
 
-    private RecordDTO fetchRecord(RecordIdDTO recordId) throws RecordServiceConnectorException {
-        RecordServiceConnector.Params params = new RecordServiceConnector.Params();
-        params.withAllowDeleted(true);
+    /**
+     * Indexes a batch of jobs, sending all adds and deletes to solr in a single request
+     * <p>
+     * If solr rejects the request, every job in the batch is marked as failed.
+     *
+     * @param jobs jobs dequeued in the current transaction
+     * @param dao  queue dao bound to the current transaction
+     * @throws QueueException                  if the jobs could not be marked as failed
+     * @throws RecordServiceConnectorException if a record could not be fetched
+     * @throws SolrIndexerSolrException        if the solr index is missing a field
+     */
+    @Timed
+    public void processBatch(List<QueueItem> jobs, RawRepoQueueDAO dao) throws QueueException, RecordServiceConnectorException, SolrIndexerSolrException {
+        LOGGER.info("Indexing batch of {} jobs", jobs.size());
+        final Stopwatch stopwatch = new Stopwatch();
 
-        if (!recordServiceConnector.recordExists(recordId.getAgencyId(), recordId.getBibliographicRecordId(), params)) {
-            return null;
+        LOGGER.info("---------------------------------------------------------------");
+        try {
+            final List<QueueItem> unique = coalesce(jobs).getUnique();
+            final SolrBatch batch = new SolrBatch();
+            final List<RecordDTO> records = new ArrayList<>();
+            final List<RecordDTO> fetched = fetchRecords(unique);
+            for (int i = 0; i < unique.size(); i++) {
+                final QueueItem job = unique.get(i);
+                final RecordIdDTO recordId = new RecordIdDTO(job.getBibliographicRecordId(), job.getAgencyId());
+                final RecordDTO record = fetched.get(i);
+                if (record == null) {
+                    LOGGER.info("record from {} does not exist, most likely queued by dependency", job);
+                    metrics.record(IndexerMetrics.OUTCOME_MISSING, null, job.getAgencyId());
+                    continue;
+                }
+                if (record.isDeleted()) {
+                    MDC.put(TRACKING_ID, createTrackingId(record));
+                    metrics.record(IndexerMetrics.OUTCOME_DELETED, record.getMimetype(), job.getAgencyId());
+                    batch.delete(createSolrDocumentId(recordId));
+                } else {
+                    records.add(record);
+                }
+            }
+            for (SolrInputDocument doc : createIndexDocuments(records)) {
+                batch.add(doc);
+            }
+            writeBatch(jobs, batch, dao);
+        } finally {
+            MDC.remove(TRACKING_ID);
+            metrics.processed(elapsed(stopwatch), jobs.size());
+        }
+    }
+
+    /**
+     * Indexes records directly from rawrepo, bypassing the queue
+     * <p>
+     * Used by the full reindex. All records are fetched in one call, and all
+     * documents and deletes are sent to solr in one update. Unless
+     * REINDEX_COMMIT is 'queue' the update has no commitWithin and no soft
+     * commits follow, leaving it to {@link #commitSolr()} when done.
+     * Every document is written, even if the fingerprint cache has seen it,
+     * as the core may have been emptied.
+     * <p>
+     * A record that cannot be transformed is left out, and if solr rejects
+     * the update, it is split to leave out only the documents and deletes
+     * solr rejects, see {@link #bisect}. Those records are logged and
+     * counted, so one bad record does not stop a reindex of millions.
+     *
+     * @param recordIds records to index
+     * @return number of records left out, as they could not be transformed or solr rejected them
+     * @throws RecordServiceConnectorException if the records could not be fetched
+     * @throws SolrIndexerSolrException        if solr could not be reached or is missing a field
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public int reindex(List<RecordIdDTO> recordIds) throws RecordServiceConnectorException, SolrIndexerSolrException {
+        final Stopwatch stopwatch = new Stopwatch();
+        MDC.put(TRACKING_ID, createTrackingId());
+        try {
+            final SolrBatch batch = new SolrBatch();
+            final List<RecordDTO> records = new ArrayList<>(recordIds.size());
+            for (RecordDTO record : fetchRecordsById(recordIds)) {
+                if (record == null) {
+                    continue;
+                }
+                if (record.isDeleted()) {
+                    metrics.record(IndexerMetrics.OUTCOME_DELETED, record.getMimetype(), record.getRecordId().getAgencyId());
+                    batch.delete(createSolrDocumentId(record.getRecordId()));
+                } else {
+                    records.add(record);
+                }
+            }
+            final Map<String, String> failed = new HashMap<>();
+            for (SolrInputDocument doc : createIndexDocuments(records, failed)) {
+                batch.add(doc);
+            }
+            writeReindexBatch(batch, failed);
+            for (Map.Entry<String, String> failure : failed.entrySet()) {
+                LOGGER.error("Could not reindex {}, leaving it out: {}", failure.getKey(), failure.getValue());
+            }
+            return failed.size();
+        } finally {
+            MDC.remove(TRACKING_ID);
+            metrics.processed(elapsed(stopwatch), recordIds.size());
+        }
+    }
+
+    /**
+     * Sends a reindex batch to solr, leaving out the documents and deletes solr rejects
+     *
+     * @param batch  documents and deletes
+     * @param failed receives the error for each document or delete solr rejects, by id
+     * @throws SolrIndexerSolrException if solr could not be reached or is missing a field
+     */
+    private void writeReindexBatch(SolrBatch batch, Map<String, String> failed) throws SolrIndexerSolrException {
+        try {
+            try {
+                updateSolr(batch, true);
+            } catch (SolrException ex) {
+                if (isMissingIndex(ex)) {
+                    throw new SolrIndexerSolrException("Missing index: " + ex.getMessage(), ex);
+                }
+                if (isTransient(ex)) {
+                    throw ex;
+                }
+                if (batch.size() == 1) {
+                    failed.put(batch.getIds().get(0), ex.getMessage());
+                    return;
+                }
+                LOGGER.warn("Solr rejected reindex batch of {} documents and deletes, splitting it to find those at fault: {}", batch.size(), ex.getMessage());
+                bisect(batch, true, failed, new HashSet<>());
+            }
+        } catch (SolrException | SolrServerException | IOException ex) {
+            throw new SolrIndexerSolrException("Could not write reindex batch: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Commits the solr core, making everything written so far visible
+     *
+     * @throws SolrIndexerSolrException if the commit failed
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void commitSolr() throws SolrIndexerSolrException {
+        final CommitPolicy.Uncommitted taken = resources.commitPolicy.take();
+        try {
+            resources.solrClient.commit();
+        } catch (SolrServerException | IOException ex) {
+            resources.commitPolicy.commitFailed(taken);
+            throw new SolrIndexerSolrException("Could not commit solr: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Collapses duplicate jobs for the same record, counting the jobs coalesced away
+     *
+     * @param jobs jobs dequeued in one transaction
+     * @return coalesced jobs
+     */
+    CoalescedJobs coalesce(List<QueueItem> jobs) {
+        final CoalescedJobs coalesced = CoalescedJobs.of(jobs);
+        if (coalesced.getCoalescedCount() > 0) {
+            LOGGER.info("Coalesced {} duplicate jobs in batch of {} jobs", coalesced.getCoalescedCount(), jobs.size());
+            metrics.coalesced(coalesced.getCoalescedCount());
+        }
+        return coalesced;
+    }
+
+    /**
+     * Sends a batch to solr, marking every job in it as failed if solr rejects it
+     *
+     * @param jobs  the jobs the batch was built from
+     * @param batch documents and deletes
+     * @param dao   queue dao bound to the transaction of the jobs
+     * @throws QueueException           if the jobs could not be marked as failed
+     * @throws SolrIndexerSolrException if the solr index is missing a field
+     */
+    private void writeBatch(List<QueueItem> jobs, SolrBatch batch, RawRepoQueueDAO dao) throws QueueException, SolrIndexerSolrException {
+        try {
+            if (spoolIfBehind(batch, jobs)) {
+                LOGGER.info("Spooled batch of {} jobs", jobs.size());
+                return;
+            }
+            updateSolr(batch);
+            LOGGER.info("Indexed batch of {} jobs", jobs.size());
+        } catch (SolrException | SolrServerException | IOException ex) {
+            if (!spoolIfUnavailable(batch, jobs, ex)) {
+                failBatch(jobs, batch, ex, dao);
+            }
+        }
+    }
+
+    /**
+     * @return true if updates have to go to the spool, because solr is down
+     * or earlier updates are still spooled and must reach solr first
+     */
+    private boolean isSpoolBehind() {
+        return resources.spool != null && (!resources.spool.isEmpty() || !healthProber.isSolrAlive());
+    }
+
+    /**
+     * Spools an update instead of sending it, if solr is not caught up with the spool
+     *
+     * @param update documents and deletes
+     * @param jobs   the jobs the update was built from
+     * @return true if the update was spooled
+     * @throws SolrIndexerSolrException if the spool is full
+     */
+    private boolean spoolIfBehind(SolrBatch update, List<QueueItem> jobs) throws SolrIndexerSolrException {
+        if (!isSpoolBehind()) {
+            return false;
+        }
+        spool(update, jobs);
+        return true;
+    }
+
+    /**
+     * Spools an update that solr did not take because it is unavailable
+     *
+     * @param update documents and deletes
+     * @param jobs   the jobs the update was built from
+     * @param error  the error from solr
+     * @return true if the update was spooled, false if there is no spool or solr rejected the update itself
+     * @throws SolrIndexerSolrException if the spool is full
+     */
+    private boolean spoolIfUnavailable(SolrBatch update, List<QueueItem> jobs, Throwable error) throws SolrIndexerSolrException {
+        if (resources.spool == null || update.isEmpty() || !isUnavailable(error)) {
+            return false;
+        }
+        LOGGER.warn("Solr is unavailable, spooling {} documents and {} deletes: {}", update.getDocuments().size(), update.getDeletedIds().size(), error.getMessage());
+        spool(update, jobs);
+        return true;
+    }
+
+    /**
+     * Appends an update to the spool, durably, so its jobs can be acknowledged
+     * <p>
+     * The fingerprints of the documents and deletes are forgotten, as solr
+     * does not have them until the spool is replayed. A delete that kept its
+     * fingerprint would leave an identical document queued after the replay
+     * out of solr for good.
+     *
+     * @param update documents and deletes
+     * @param jobs   the jobs the update was built from, kept to be marked as failed if solr rejects the update
+     * @throws SolrIndexerSolrException if the spool is full or cannot be written,
+     *                                  which stops the run and leaves the jobs on the queue
+     */
+    private void spool(SolrBatch update, List<QueueItem> jobs) throws SolrIndexerSolrException {
+        try {
+            if (!resources.spool.append(update, jobs)) {
+                throw new SolrIndexerSolrException("Solr is unavailable and the spool is full, holding " + resources.spool.getEntries() + " updates");
+            }
+        } catch (IOException ex) {
+            throw new SolrIndexerSolrException("Could not spool update: " + ex.getMessage(), ex);
+        }
+        if (resources.fingerprintCache != null) {
+            for (String id : update.getIds()) {
+                resources.fingerprintCache.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Sends the spooled updates to solr, oldest first, merging up to SPOOL_REPLAY_SIZE documents and deletes per request
+     * <p>
+     * Stops at the first sign that solr is unavailable, leaving the rest for
+     * the next run. An update solr rejects on its own is dropped, as it would
+     * otherwise block the spool for good, and the jobs it was built from are
+     * marked as failed, as they would have been if solr had rejected the
+     * update in the first place.
+     *
+     * @throws SolrIndexerSolrException if the solr index is missing a field
+     */
+    void replaySpool() throws SolrIndexerSolrException {
+        // Only one replay at a time, the others can get on with the queue
+        if (resources.spool.isEmpty() || !resources.spoolReplay.tryLock()) {
+            return;
+        }
+        try {
+            LOGGER.info("Replaying {} spooled updates", resources.spool.getEntries());
+            int replaySize = SPOOL_REPLAY_SIZE;
+            SolrSpool.Replay replay;
+            while ((replay = resources.spool.peek(replaySize)) != null) {
+                final SolrBatch batch = replay.getBatch();
+                final Stopwatch stopwatch = new Stopwatch();
+                boolean success = false;
+                try {
+                    createUpdateRequest(batch, false).process(resources.solrClient);
+                    success = true;
+                } catch (SolrException | SolrServerException | IOException ex) {
+                    if (isUnavailable(ex)) {
+                        LOGGER.warn("Solr is unavailable, leaving {} spooled updates for later: {}", resources.spool.getEntries(), ex.getMessage());
+                        return;
+                    }
+                    if (ex.getMessage() != null && ex.getMessage().contains("unknown field")) {
+                        throw new SolrIndexerSolrException("Missing index: " + ex.getMessage(), ex);
+                    }
+                    if (replay.getEntries() > 1) {
+                        LOGGER.warn("Solr rejected {} spooled updates, sending them one at a time: {}", replay.getEntries(), ex.getMessage());
+                        replaySize = 1;
+                        continue;
+                    }
+                    LOGGER.error("Solr rejected spooled update of documents {} and deletes {}, dropping it and marking its {} jobs as failed",
+                            batch.getDocuments().stream().map(doc -> doc.getFieldValue("id")).collect(Collectors.toList()), batch.getDeletedIds(),
+                            replay.getJobs().size(), ex);
+                    try {
+                        queueFailSpooled(replay.getJobs(), ex.getMessage());
+                    } catch (SQLException | QueueException failure) {
+                        LOGGER.error("Could not mark jobs of rejected spooled update as failed, leaving it for later", failure);
+                        return;
+                    }
+                } finally {
+                    solrResponded(elapsed(stopwatch), batch.getDocuments().size(), batch.getDeletedIds().size(), success);
+                }
+                resources.spool.consumed(replay);
+                softCommit(resources.commitPolicy.written(batch.size(), false));
+            }
+            LOGGER.info("Replayed the spool");
+        } catch (IOException ex) {
+            LOGGER.error("Could not read the spool", ex);
+        } finally {
+            resources.spoolReplay.unlock();
+        }
+    }
+
+    /**
+     * Marks the jobs of a spooled update as failed, in a transaction of their own
+     *
+     * @param jobs  the jobs the update was built from
+     * @param error the error from solr
+     * @throws SQLException   if the transaction failed
+     * @throws QueueException if the jobs could not be marked as failed
+     */
+    private void queueFailSpooled(List<QueueItem> jobs, String error) throws SQLException, QueueException {
+        try (Connection connection = getConnection()) {
+            try {
+                queueFail(createDAO(connection), jobs, error);
+                commit(connection);
+            } catch (QueueException | RuntimeException ex) {
+                connection.rollback();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * @return true if the error means solr could not be reached, rather than that it rejected the update
+     */
+    private static boolean isUnavailable(Throwable error) {
+        if (error instanceof SolrException) {
+            final int code = ((SolrException) error).code();
+            // 502 and 504 come from a proxy in front of solr
+            return code == SolrException.ErrorCode.SERVICE_UNAVAILABLE.code || code == 502 || code == 504;
+        }
+        return error instanceof SolrServerException || error instanceof IOException;
+    }
+
+    /**
+     * Tries the jobs whose retry is due again, each in a transaction of its own
+     * <p>
+     * The failure written for a job is cleared in the same transaction as
+     * the retry that succeeds, and counted as recovered. A retry that fails
+     * replaces the error of the failure with its own. Jobs not tried because
+     * of an error wait for the next run.
+     *
+     * @return number of jobs tried
+     */
+    int retryDueJobs() throws SolrIndexerRawRepoException, SolrIndexerSolrException, RecordServiceConnectorException {
+        final List<JobRetries.Retry> due = retries.takeDue(Math.max(1, BATCH_SIZE));
+        int tried = 0;
+        try {
+            for (; tried < due.size(); tried++) {
+                final JobRetries.Retry retry = due.get(tried);
+                try (Connection connection = getConnection()) {
+                    try {
+                        final RawRepoQueueDAO dao = createDAO(connection);
+                        final Exception failure = processJob(retry.getJob(), retry.getAttempt(), dao);
+                        if (failure == null) {
+                            queueBean.clearFailed(connection, retry.getJob());
+                        } else {
+                            queueBean.updateFailed(connection, dao, retry.getJob(), failure.getMessage());
+                        }
+                        commit(connection);
+                        if (failure == null) {
+                            metrics.recovered(retry.getJob().getAgencyId());
+                        }
+                    } catch (QueueException | SQLException | RuntimeException ex) {
+                        connection.rollback();
+                        throw ex;
+                    }
+                }
+                metrics.indexed(1);
+            }
+        } catch (SQLException | QueueException ex) {
+            LOGGER.error("Exception while retrying jobs: ", ex);
+            throw new SolrIndexerRawRepoException("SQL exception from rawrepo:" + ex, ex);
+        } finally {
+            due.subList(tried, due.size()).forEach(retries::putBack);
+        }
+        return tried;
+    }
+
+    /**
+     * Marks a job as failed, scheduling a retry if the error may pass
+     * <p>
+     * The failure is written before the retry is scheduled, and cleared when
+     * a retry succeeds, so the job is not lost if the indexer stops before
+     * that. A job being retried has been marked as failed already, and its
+     * error is updated by {@link #retryDueJobs()}.
+     *
+     * @param job     the job that failed
+     * @param attempt number of retries of the job so far
+     * @param error   the error
+     * @param dao     queue dao bound to the transaction of the job
+     * @throws QueueException if the job could not be marked as failed
+     */
+    private void retryOrFail(QueueItem job, int attempt, Exception error, RawRepoQueueDAO dao) throws QueueException {
+        if (attempt == 0) {
+            queueBean.queueFail(dao, job, error.getMessage());
+        }
+        if (isTransient(error) && retries.retry(job, attempt + 1, error.getMessage())) {
+            LOGGER.warn("Error processing {}, retry {} is scheduled: {}", job, attempt + 1, error.getMessage());
+            return;
+        }
+        LOGGER.error("Error processing {}", job, error);
+    }
+
+    /**
+     * @return true if the error may pass if the job is tried again later
+     */
+    private static boolean isTransient(Throwable error) {
+        return isUnavailable(error) || error instanceof SolrException && ((SolrException) error).code() >= 500;
+    }
+
+    /**
+     * Handles a batch solr did not accept
+     * <p>
+     * If solr rejected the batch, it is split to find the documents and
+     * deletes at fault, see {@link #bisectBatch}. If the error may pass, the
+     * jobs are retried later. Otherwise every job is marked as failed.
+     *
+     * @param jobs  the jobs the batch was built from
+     * @param batch the documents and deletes sent
+     * @param error the error from solr
+     * @param dao   queue dao bound to the transaction of the jobs
+     * @throws QueueException           if the jobs could not be marked as failed
+     * @throws SolrIndexerSolrException if the solr index is missing a field
+     */
+    private void failBatch(List<QueueItem> jobs, SolrBatch batch, Throwable error, RawRepoQueueDAO dao) throws QueueException, SolrIndexerSolrException {
+        // Index is missing on the solr server, so we need to stop now
+        if (isMissingIndex(error)) {
+            throw new SolrIndexerSolrException("Missing index: " + error.getMessage(), error);
+        }
+        if (!isTransient(error) && batch.size() > 1) {
+            bisectBatch(jobs, batch, error, dao);
+            return;
+        }
+        retryOrFailBatch(jobs, error, dao);
+    }
+
+    /**
+     * Finds the documents and deletes at fault in a batch solr rejected
+     * <p>
+     * The halves of the batch are sent on their own, and those solr rejects
+     * are split again, until the rejected documents and deletes are found.
+     * Only the jobs of those are marked as failed, with the error from solr,
+     * while the rest is written. If solr becomes unavailable on the way, the
+     * jobs not yet written are handled as a batch that failed with that error.
+     *
+     * @param jobs  the jobs the batch was built from
+     * @param batch the rejected documents and deletes
+     * @param error the error from solr
+     * @param dao   queue dao bound to the transaction of the jobs
+     * @throws QueueException           if the jobs could not be marked as failed
+     * @throws SolrIndexerSolrException if the solr index is missing a field
+     */
+    private void bisectBatch(List<QueueItem> jobs, SolrBatch batch, Throwable error, RawRepoQueueDAO dao) throws QueueException, SolrIndexerSolrException {
+        LOGGER.warn("Solr rejected batch of {} documents and deletes, splitting it to find those at fault: {}", batch.size(), error.getMessage());
+        final Map<String, String> rejected = new HashMap<>();
+        final Set<String> written = new HashSet<>();
+        Exception interruption = null;
+        try {
+            bisect(batch, false, rejected, written);
+        } catch (SolrException | SolrServerException | IOException ex) {
+            interruption = ex;
+        }
+
+        final Set<String> ids = new HashSet<>(batch.getIds());
+        final List<QueueItem> unresolved = new ArrayList<>();
+        for (QueueItem job : jobs) {
+            final String id = createSolrDocumentId(new RecordIdDTO(job.getBibliographicRecordId(), job.getAgencyId()));
+            final String rejection = rejected.get(id);
+            if (rejection != null) {
+                LOGGER.error("Solr rejected the document for {}: {}", job, rejection);
+                queueBean.queueFail(dao, job, rejection);
+            } else if (interruption != null && ids.contains(id) && !written.contains(id)) {
+                unresolved.add(job);
+            }
+        }
+        LOGGER.info("Found {} documents and deletes solr rejects in batch of {}", rejected.size(), batch.size());
+        if (!unresolved.isEmpty()) {
+            retryOrFailBatch(unresolved, interruption, dao);
+        }
+    }
+
+    /**
+     * Sends each half of a rejected batch, splitting the halves solr rejects
+     *
+     * @param batch    documents and deletes, more than one
+     * @param bulk     true for a full reindex, see {@link #updateSolr(SolrBatch, boolean)}
+     * @param rejected receives the error from solr for each rejected id
+     * @param written  receives the ids solr accepted
+     * @throws SolrIndexerSolrException if the solr index is missing a field
+     * @throws SolrException            if solr failed with an error that may pass
+     * @throws SolrServerException      if solr could not be reached
+     * @throws IOException              if solr could not be reached
+     */
+    private void bisect(SolrBatch batch, boolean bulk, Map<String, String> rejected, Set<String> written) throws SolrIndexerSolrException, SolrServerException, IOException {
+        for (SolrBatch half : batch.split()) {
+            try {
+                updateSolr(half, bulk);
+                written.addAll(half.getIds());
+            } catch (SolrException ex) {
+                if (isMissingIndex(ex)) {
+                    throw new SolrIndexerSolrException("Missing index: " + ex.getMessage(), ex);
+                }
+                if (isTransient(ex)) {
+                    throw ex;
+                }
+                if (half.size() == 1) {
+                    rejected.put(half.getIds().get(0), ex.getMessage());
+                } else {
+                    bisect(half, bulk, rejected, written);
+                }
+            }
+        }
+    }
+
+    private static boolean isMissingIndex(Throwable error) {
+        return error instanceof BaseHttpSolrClient.RemoteSolrException && error.getMessage().contains("unknown field");
+    }
+
+    /**
+     * Marks the jobs of a failed batch as failed, scheduling retries if the error may pass
+     * <p>
+     * As for a single job, see {@link #retryOrFail}, the failures are written
+     * first and cleared by the retries that succeed. Only one job per record
+     * is marked as failed and retried, and its duplicates are acknowledged
+     * with it, see {@link CoalescedJobs}.
+     *
+     * @param jobs  the jobs
+     * @param error the error from solr
+     * @param dao   queue dao bound to the transaction of the jobs
+     * @throws QueueException if the jobs could not be marked as failed
+     */
+    private void retryOrFailBatch(List<QueueItem> jobs, Throwable error, RawRepoQueueDAO dao) throws QueueException {
+        if (!isTransient(error)) {
+            LOGGER.error("Error processing batch of {} jobs", jobs.size(), error);
+            queueFail(dao, jobs, error.getMessage());
+            return;
+        }
+        final List<QueueItem> unique = CoalescedJobs.of(jobs).getUnique();
+        queueFail(dao, unique, error.getMessage());
+        int scheduled = 0;
+        for (QueueItem job : unique) {
+            if (retries.retry(job, 1, error.getMessage())) {
+                scheduled++;
+            }
+        }
+        if (scheduled == unique.size()) {
+            LOGGER.warn("Error processing batch of {} jobs, retries of {} records are scheduled: {}", jobs.size(), scheduled, error.getMessage());
         } else {
-            return recordServiceConnector.getRecordData(recordId.getAgencyId(), recordId.getBibliographicRecordId(), params);
+            LOGGER.error("Error processing batch of {} jobs, retries of {} of {} records are scheduled", jobs.size(), scheduled, unique.size(), error);
+        }
+    }
+
+    private void queueFail(RawRepoQueueDAO dao, List<QueueItem> jobs, String error) throws QueueException {
+        for (QueueItem job : jobs) {
+            queueBean.queueFail(dao, job, error);
         }
     }
 
+    /**
+     * Fetches a record, including deleted records, in a single call to the record service
+     *
+     * @param recordId id of the record
+     * @return the record, or null if it does not exist
+     * @throws RecordServiceConnectorException if the record service failed
+     */
+    private RecordDTO fetchRecord(RecordIdDTO recordId) throws RecordServiceConnectorException {
+        final Stopwatch stopwatch = new Stopwatch();
+        try {
+            return recordServiceConnector.getRecordData(recordId.getAgencyId(), recordId.getBibliographicRecordId(), createFetchParams());
+        } catch (RecordServiceConnectorNoContentStatusCodeException ex) {
+            return null;
+        } finally {
+            metrics.fetched(elapsed(stopwatch), 1);
+        }
+    }
+
+    /**
+     * Fetches the records for a list of jobs with one call to the record service
+     *
+     * @param jobs queue jobs
+     * @return the records in the same order as the jobs, with null for records that do not exist
+     * @throws RecordServiceConnectorException if the record service failed
+     */
+    List<RecordDTO> fetchRecords(List<QueueItem> jobs) throws RecordServiceConnectorException {
+        final List<RecordIdDTO> recordIds = new ArrayList<>(jobs.size());
+        for (QueueItem job : jobs) {
+            recordIds.add(new RecordIdDTO(job.getBibliographicRecordId(), job.getAgencyId()));
+        }
+        return fetchRecordsById(recordIds);
+    }
+
+    /**
+     * Fetches records with one call to the record service
+     *
+     * @param recordIds ids of the records
+     * @return the records in the same order as the ids, with null for records that do not exist
+     * @throws RecordServiceConnectorException if the record service failed
+     */
+    private List<RecordDTO> fetchRecordsById(List<RecordIdDTO> recordIds) throws RecordServiceConnectorException {
+        if (recordIds.size() == 1) {
+            return Collections.singletonList(fetchRecord(recordIds.get(0)));
+        }
+
+        final RecordIdCollectionDTO recordIdCollection = new RecordIdCollectionDTO();
+        recordIdCollection.setRecordIds(recordIds);
+
+        final Stopwatch stopwatch = new Stopwatch();
+        final RecordDTO[] found = recordServiceConnector.fetchRecordList(recordIdCollection, createFetchParams());
+        metrics.fetched(elapsed(stopwatch), recordIds.size());
+
+        final Map<String, RecordDTO> recordsById = new HashMap<>();
+        if (found != null) {
+            for (RecordDTO record : found) {
+                recordsById.put(createSolrDocumentId(record.getRecordId()), record);
+            }
+        }
+        final List<RecordDTO> records = new ArrayList<>(recordIds.size());
+        for (RecordIdDTO recordId : recordIds) {
+            records.add(recordsById.get(createSolrDocumentId(recordId)));
+        }
+        return records;
+    }
+
+    private static RecordServiceConnector.Params createFetchParams() {
+        final RecordServiceConnector.Params params = new RecordServiceConnector.Params();
+        params.withAllowDeleted(true);
+        return params;
+    }
+
     private String createSolrDocumentId(RecordIdDTO recordId) {
         return recordId.getBibliographicRecordId() + ":" + recordId.getAgencyId();
     }
 
+    /**
+     * Transforms records without writing them anywhere, see {@link WarmUp}
+     *
+     * @param records sample records
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public void warmUp(List<RecordDTO> records) {
+        try {
+            createIndexDocuments(records);
+        } finally {
+            MDC.remove(TRACKING_ID);
+        }
+    }
+
+    /**
+     * Creates the solr documents for a list of records, using the transform
+     * threads when running with more than one
+     *
+     * @param records records to transform
+     * @return documents in the same order as the records
+     */
+    List<SolrInputDocument> createIndexDocuments(List<RecordDTO> records) {
+        return createIndexDocuments(records, null);
+    }
+
+    /**
+     * Creates the solr documents for a list of records, using the transform
+     * threads when running with more than one
+     *
+     * @param records records to transform
+     * @param failed  receives the error for each record that could not be transformed, by
+     *                document id, leaving the record out; null to fail on the first error
+     * @return documents in the same order as the records
+     */
+    private List<SolrInputDocument> createIndexDocuments(List<RecordDTO> records, Map<String, String> failed) {
+        final List<SolrInputDocument> docs = new ArrayList<>(records.size());
+        if (resources.transformExecutor == null || records.size() < 2) {
+            for (RecordDTO record : records) {
+                MDC.put(TRACKING_ID, createTrackingId(record));
+                try {
+                    docs.add(createIndexDocument(record));
+                } catch (RuntimeException ex) {
+                    if (failed == null) {
+                        throw ex;
+                    }
+                    failed.put(createSolrDocumentId(record.getRecordId()), String.valueOf(ex));
+                }
+            }
+            return docs;
+        }
+
+        final List<Future<SolrInputDocument>> futures = new ArrayList<>(records.size());
+        for (RecordDTO record : records) {
+            futures.add(resources.transformExecutor.submit(() -> createIndexDocumentWithPooledWorker(record)));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    docs.add(futures.get(i).get());
+                } catch (ExecutionException ex) {
+                    if (failed == null) {
+                        throw ex;
+                    }
+                    failed.put(createSolrDocumentId(records.get(i).getRecordId()), String.valueOf(ex.getCause()));
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            futures.forEach(future -> future.cancel(true));
+            throw new IllegalStateException("Interrupted while creating index documents", ex);
+        } catch (ExecutionException ex) {
+            futures.forEach(future -> future.cancel(true));
+            throw new IllegalStateException("Error creating index documents", ex.getCause());
+        }
+        return docs;
+    }
+
+    private SolrInputDocument createIndexDocumentWithPooledWorker(RecordDTO record) throws InterruptedException {
+        MDC.put(TRACKING_ID, createTrackingId(record));
+        // Without a pool the engine is thread safe and can be shared
+        final JavaScriptWorker pooledWorker = resources.workerPool == null ? null : resources.workerPool.borrow();
+        try {
+            return createIndexDocument(record, pooledWorker == null ? worker : pooledWorker);
+        } finally {
+            if (pooledWorker != null) {
+                resources.workerPool.release(pooledWorker);
+            }
+            MDC.remove(TRACKING_ID);
+        }
+    }
+
     SolrInputDocument createIndexDocument(RecordDTO record) {
+        return createIndexDocument(record, worker);
+    }
+
+    private SolrInputDocument createIndexDocument(RecordDTO record, IndexEngine worker) {
         final SolrInputDocument doc = new SolrInputDocument();
         RecordIdDTO recordId = record.getRecordId();
         doc.addField("id", createSolrDocumentId(recordId));
         String mimeType = record.getMimetype();
         LOGGER.debug("Indexing content of {} with mimetype {}", recordId, mimeType);
-        String content = new String(record.getContent(), StandardCharsets.UTF_8);
+        Stopwatch stopwatch = new Stopwatch();
+        boolean success = false;
         try {
-            Stopwatch stopwatch = new Stopwatch();
-            worker.addFields(doc, content, mimeType);
-            LOGGER_STOPWATCH.info("Javascript took {} ms", stopwatch.getElapsedTime(TimeUnit.MILLISECONDS));
+            worker.addFields(doc, record.getContent(), mimeType);
+            success = true;
         } catch (Exception ex) {
-            LOGGER.error("Error adding fields for document '{}': ", content, ex);
+            LOGGER.error("Error adding fields for document '{}': ", new String(record.getContent(), StandardCharsets.UTF_8), ex);
+        } finally {
+            metrics.transformed(elapsed(stopwatch), worker.getName(), mimeType, recordId.getAgencyId(), success);
         }
 
         doc.addField("rec.bibliographicRecordId", recordId.getBibliographicRecordId());
@@ -218,20 +1226,287 @@ public class Indexer {
 
     private void deleteSolrDocument(RecordIdDTO jobId) throws IOException, SolrServerException {
         LOGGER.debug("Deleting document for {} to solr", jobId);
-        solrClient.deleteById(createSolrDocumentId(jobId));
+        final String id = createSolrDocumentId(jobId);
+        final Stopwatch stopwatch = new Stopwatch();
+        boolean success = false;
+        try {
+            resources.solrClient.deleteById(id, resources.commitPolicy.getCommitWithin(false));
+            success = true;
+        } finally {
+            solrResponded(elapsed(stopwatch), 0, 1, success);
+        }
+        softCommit(resources.commitPolicy.written(1, false));
+        if (resources.fingerprintCache != null) {
+            resources.fingerprintCache.remove(id);
+        }
     }
 
     private void updateSolr(RecordDTO jobId, SolrInputDocument doc) throws IOException, SolrServerException {
+        final Map<String, String> fingerprints = new HashMap<>();
+        if (skipUnchanged(Collections.singletonList(doc), fingerprints).isEmpty()) {
+            LOGGER.debug("Document for {} is unchanged, skipping solr", jobId);
+            return;
+        }
         LOGGER.debug("Adding document for {} to solr", jobId);
         Stopwatch stopwatch = new Stopwatch();
-        solrClient.add(doc);
-        LOGGER_STOPWATCH.info("updateSolr took {} ms", stopwatch.getElapsedTime(TimeUnit.MILLISECONDS));
+        boolean success = false;
+        try {
+            resources.solrClient.add(doc, resources.commitPolicy.getCommitWithin(false));
+            success = true;
+        } finally {
+            solrResponded(elapsed(stopwatch), 1, 0, success);
+        }
+        rememberFingerprints(fingerprints, Collections.emptyList());
+        softCommit(resources.commitPolicy.written(1, false));
+    }
+
+    private void updateSolr(SolrBatch batch) throws IOException, SolrServerException {
+        updateSolr(batch, false);
+    }
+
+    /**
+     * @param batch documents and deletes
+     * @param bulk  true for a full reindex, which writes every document, even if the
+     *              fingerprint cache has seen it, and commits as set by REINDEX_COMMIT
+     */
+    private void updateSolr(SolrBatch batch, boolean bulk) throws IOException, SolrServerException {
+        final Map<String, String> fingerprints = new HashMap<>();
+        final SolrBatch changed = leaveOutUnchanged(batch, bulk, fingerprints);
+        if (changed.isEmpty()) {
+            return;
+        }
+        LOGGER.debug("Sending {} documents and {} deletes to solr", changed.getDocuments().size(), changed.getDeletedIds().size());
+        Stopwatch stopwatch = new Stopwatch();
+        boolean success = false;
+        try {
+            createUpdateRequest(changed, bulk).process(resources.solrClient);
+            success = true;
+        } finally {
+            solrResponded(elapsed(stopwatch), changed.getDocuments().size(), changed.getDeletedIds().size(), success);
+        }
+        updated(changed, bulk, fingerprints);
+    }
+
+    /**
+     * Sends a batch from the queue to solr without waiting for the response
+     *
+     * @param batch documents and deletes
+     * @return completes when solr has accepted the batch
+     * @throws InterruptedException if interrupted while waiting for room among the requests in flight
+     */
+    private CompletableFuture<Void> updateSolrAsync(SolrBatch batch) throws InterruptedException {
+        final Map<String, String> fingerprints = new HashMap<>();
+        final SolrBatch changed = leaveOutUnchanged(batch, false, fingerprints);
+        if (changed.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        LOGGER.debug("Sending {} documents and {} deletes to solr asynchronously", changed.getDocuments().size(), changed.getDeletedIds().size());
+        final Stopwatch stopwatch = new Stopwatch();
+        return resources.asyncWriter.send(createUpdateRequest(changed, false)).whenComplete((ignored, error) -> {
+            solrResponded(elapsed(stopwatch), changed.getDocuments().size(), changed.getDeletedIds().size(), error == null);
+            if (error == null) {
+                updated(changed, false, fingerprints);
+            }
+        });
+    }
+
+    /**
+     * @param batch        documents and deletes
+     * @param bulk         true to write every document, even if the fingerprint cache has seen it
+     * @param fingerprints receives the fingerprints of the documents that have to be written, by id
+     * @return the documents and deletes that have to be written
+     */
+    private SolrBatch leaveOutUnchanged(SolrBatch batch, boolean bulk, Map<String, String> fingerprints) {
+        final SolrBatch changed = new SolrBatch();
+        final List<SolrInputDocument> docs = bulk ? fingerprint(batch.getDocuments(), fingerprints) : skipUnchanged(batch.getDocuments(), fingerprints);
+        for (SolrInputDocument doc : docs) {
+            changed.add(doc);
+        }
+        for (String id : batch.getDeletedIds()) {
+            changed.delete(id);
+        }
+        return changed;
+    }
+
+    private UpdateRequest createUpdateRequest(SolrBatch batch, boolean bulk) {
+        final UpdateRequest request = batch.toUpdateRequest();
+        request.setCommitWithin(resources.commitPolicy.getCommitWithin(bulk));
+        return request;
+    }
+
+    /**
+     * Records a solr response in the metrics and adapts the limits to it
+     */
+    private void solrResponded(Duration elapsed, int documents, int deletes, boolean success) {
+        metrics.solrUpdated(elapsed, documents, deletes, success);
+        adapt(resources.batchSizeLimit, elapsed, success);
+        if (adapt(resources.inFlightLimit, elapsed, success)) {
+            resources.asyncWriter.setMaxInFlight(resources.inFlightLimit.get());
+        }
+    }
+
+    private static boolean adapt(AimdLimit limit, Duration elapsed, boolean success) {
+        if (limit == null) {
+            return false;
+        }
+        final int previous = limit.get();
+        if (!limit.update(elapsed, success)) {
+            return false;
+        }
+        if (limit.get() < previous) {
+            LOGGER.info("Solr {} in {} ms, backing off to a {} limit of {}", success ? "responded" : "failed", elapsed.toMillis(), limit.getName(), limit.get());
+        } else {
+            LOGGER.debug("Raised {} limit to {}", limit.getName(), limit.get());
+        }
+        return true;
+    }
+
+    /**
+     * Bookkeeping once solr has accepted an update
+     */
+    private void updated(SolrBatch batch, boolean bulk, Map<String, String> fingerprints) {
+        rememberFingerprints(fingerprints, batch.getDeletedIds());
+        softCommit(resources.commitPolicy.written(batch.size(), bulk));
+    }
+
+    /**
+     * Leaves out documents identical to the last ones written to solr
+     *
+     * @param docs         regenerated documents
+     * @param fingerprints receives the fingerprints of the documents that have to be written, by id
+     * @return the documents that have to be written
+     */
+    private List<SolrInputDocument> skipUnchanged(List<SolrInputDocument> docs, Map<String, String> fingerprints) {
+        if (resources.fingerprintCache == null) {
+            return docs;
+        }
+        final List<SolrInputDocument> changed = new ArrayList<>(docs.size());
+        for (SolrInputDocument doc : docs) {
+            final String id = (String) doc.getFieldValue("id");
+            final String fingerprint = resources.fingerprintCache.fingerprint(doc);
+            if (resources.fingerprintCache.isUnchanged(id, fingerprint)) {
+                LOGGER.debug("Skipping unchanged document {}", id);
+            } else {
+                fingerprints.put(id, fingerprint);
+                changed.add(doc);
+            }
+        }
+        metrics.fingerprinted(docs.size() - changed.size(), changed.size());
+        return changed;
+    }
+
+    /**
+     * Computes the fingerprints of documents that are written regardless of the cache
+     *
+     * @param docs         documents
+     * @param fingerprints receives the fingerprints of the documents, by id
+     * @return the documents
+     */
+    private List<SolrInputDocument> fingerprint(List<SolrInputDocument> docs, Map<String, String> fingerprints) {
+        if (resources.fingerprintCache != null) {
+            for (SolrInputDocument doc : docs) {
+                fingerprints.put((String) doc.getFieldValue("id"), resources.fingerprintCache.fingerprint(doc));
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Updates the fingerprint cache once solr has accepted the documents and deletes
+     */
+    private void rememberFingerprints(Map<String, String> fingerprints, List<String> deletedIds) {
+        if (resources.fingerprintCache == null) {
+            return;
+        }
+        for (Map.Entry<String, String> fingerprint : fingerprints.entrySet()) {
+            resources.fingerprintCache.put(fingerprint.getKey(), fingerprint.getValue());
+        }
+        for (String id : deletedIds) {
+            resources.fingerprintCache.remove(id);
+        }
     }
 
     private void commit(final Connection connection) throws SQLException {
         connection.commit();
     }
 
+    /**
+     * The pipeline stages, backed by the same methods as the sequential path
+     */
+    class PipelineStages implements IndexingPipeline.Stages {
+
+        @Override
+        public List<RecordDTO> fetch(List<QueueItem> jobs) throws RecordServiceConnectorException {
+            return fetchRecords(jobs);
+        }
+
+        @Override
+        public SolrInputDocument transform(RecordDTO record) throws InterruptedException {
+            return createIndexDocumentWithPooledWorker(record);
+        }
+
+        @Override
+        public CompletionStage<Void> write(IndexingPipeline.Batch batch) throws QueueException, SolrIndexerSolrException, SQLException, InterruptedException {
+            final String trackingId = createTrackingId();
+            MDC.put(TRACKING_ID, trackingId);
+            try {
+                final SolrBatch solrBatch = new SolrBatch();
+                for (int i = 0; i < batch.size(); i++) {
+                    final RecordDTO record = batch.getRecord(i);
+                    if (record == null) {
+                        LOGGER.info("record from {} does not exist, most likely queued by dependency", batch.getUnique().get(i));
+                        metrics.record(IndexerMetrics.OUTCOME_MISSING, null, batch.getUnique().get(i).getAgencyId());
+                    } else if (record.isDeleted()) {
+                        metrics.record(IndexerMetrics.OUTCOME_DELETED, record.getMimetype(), record.getRecordId().getAgencyId());
+                        solrBatch.delete(createSolrDocumentId(record.getRecordId()));
+                    } else {
+                        solrBatch.add(batch.getDocument(i));
+                    }
+                }
+                // Behind the spool the batch has to be spooled, in order
+                if (resources.asyncWriter != null && !isSpoolBehind()) {
+                    return writeAsync(batch, solrBatch, trackingId);
+                }
+                writeBatch(batch.getJobs(), solrBatch, batch.getDao());
+                commit(batch.getConnection());
+                metrics.indexed(batch.getJobs().size());
+                return CompletableFuture.completedFuture(null);
+            } finally {
+                MDC.remove(TRACKING_ID);
+            }
+        }
+
+        /**
+         * Sends the batch to solr and acknowledges or fails its jobs when the response arrives
+         */
+        private CompletionStage<Void> writeAsync(IndexingPipeline.Batch batch, SolrBatch solrBatch, String trackingId) throws InterruptedException {
+            return updateSolrAsync(solrBatch).handle((ignored, error) -> {
+                MDC.put(TRACKING_ID, trackingId);
+                try {
+                    final Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (error == null) {
+                        LOGGER.info("Indexed batch of {} jobs", batch.getJobs().size());
+                    } else if (spoolIfUnavailable(solrBatch, batch.getJobs(), cause)) {
+                        LOGGER.info("Spooled batch of {} jobs", batch.getJobs().size());
+                    } else {
+                        failBatch(batch.getJobs(), solrBatch, cause, batch.getDao());
+                    }
+                    commit(batch.getConnection());
+                    metrics.indexed(batch.getJobs().size());
+                    return null;
+                } catch (QueueException | SolrIndexerSolrException | SQLException ex) {
+                    throw new CompletionException(ex);
+                } finally {
+                    MDC.remove(TRACKING_ID);
+                }
+            });
+        }
+    }
+
+    private static Duration elapsed(Stopwatch stopwatch) {
+        return Duration.ofNanos(stopwatch.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
     private static String createTrackingId() {
         return UUID.randomUUID().toString();
     }
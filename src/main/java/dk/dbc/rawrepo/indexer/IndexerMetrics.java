@@ -0,0 +1,278 @@
+package dk.dbc.rawrepo.indexer;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Latency histograms and throughput counters for each stage of the indexer
+ * <p>
+ * The metrics are registered in the application registry and exposed on
+ * the metrics endpoint. The per-record stopwatch log lines they replace can
+ * be turned back on with STOPWATCH_LOGGING.
+ */
+@ApplicationScoped
+public class IndexerMetrics {
+    private static final XLogger LOGGER_STOPWATCH = XLoggerFactory.getXLogger("dk.dbc.rawrepo.indexer.stopwatch");
+
+    static final String DEQUEUE_TIMER = "indexer_dequeue";
+    static final String DEQUEUED_JOBS = "indexer_dequeued_jobs";
+    static final String QUEUE_FAIL_TIMER = "indexer_queue_fail";
+    static final String FAILED_JOBS = "indexer_failed_jobs";
+    static final String RECOVERED_JOBS = "indexer_recovered_jobs";
+    static final String COALESCED_JOBS = "indexer_coalesced_jobs";
+    static final String PROCESS_TIMER = "indexer_process";
+    static final String BATCH_SIZE_HISTOGRAM = "indexer_batch_size";
+    static final String FETCH_TIMER = "indexer_fetch";
+    static final String TRANSFORM_TIMER = "indexer_transform";
+    static final String RECORDS = "indexer_records";
+    static final String SOLR_UPDATE_TIMER = "indexer_solr_update";
+    static final String SOLR_DOCUMENTS = "indexer_solr_documents";
+    static final String FINGERPRINT_SKIPPED = "fingerprint_skipped_documents";
+    static final String FINGERPRINT_WRITTEN = "fingerprint_written_documents";
+    static final String ADAPTIVE_LIMIT = "indexer_adaptive_limit";
+    static final String INDEXED_JOBS = "indexer_indexed_jobs";
+    static final String QUEUE_DEPTH = "indexer_queue_depth";
+    static final String QUEUE_OLDEST_AGE = "indexer_queue_oldest_age_seconds";
+    static final String QUEUE_FAILED_JOBS = "indexer_queue_failed_jobs";
+    static final String DEQUEUE_RATE = "indexer_dequeue_rate";
+    static final String INDEX_RATE = "indexer_index_rate";
+    static final String SPOOL_ENTRIES = "indexer_spool_entries";
+    static final String SPOOL_BYTES = "indexer_spool_bytes";
+    static final String RETRY_PENDING = "indexer_retry_pending";
+    static final String PARTITION_HOLD = "indexer_partition_hold_seconds";
+
+    private static final int RATE_WINDOW_SECONDS = 60;
+
+    static final String OUTCOME_SUCCESS = "success";
+    static final String OUTCOME_FAILURE = "failure";
+    static final String OUTCOME_DELETED = "deleted";
+    static final String OUTCOME_MISSING = "missing";
+
+    private static final String UNKNOWN = "unknown";
+
+    @Inject
+    MetricRegistry registry;
+
+    @Inject
+    @ConfigProperty(name = "STOPWATCH_LOGGING", defaultValue = "false")
+    boolean STOPWATCH_LOGGING;
+
+    private final RecentRate dequeueRate = new RecentRate(RATE_WINDOW_SECONDS, System::currentTimeMillis);
+    private final RecentRate indexRate = new RecentRate(RATE_WINDOW_SECONDS, System::currentTimeMillis);
+
+    public IndexerMetrics() {
+    }
+
+    IndexerMetrics(MetricRegistry registry, boolean stopwatchLogging) {
+        this.registry = registry;
+        this.STOPWATCH_LOGGING = stopwatchLogging;
+    }
+
+    public void dequeued(Duration elapsed, int jobs) {
+        if (jobs == 0) {
+            return;
+        }
+        registry.timer(DEQUEUE_TIMER).update(elapsed);
+        registry.counter(DEQUEUED_JOBS).inc(jobs);
+        dequeueRate.add(jobs);
+        stopwatch("dequeueJobs took {} ms for {} jobs", elapsed.toMillis(), jobs);
+    }
+
+    public void queueFailed(Duration elapsed, int agencyId) {
+        registry.timer(QUEUE_FAIL_TIMER).update(elapsed);
+        registry.counter(FAILED_JOBS, new Tag("agency", Integer.toString(agencyId))).inc();
+        stopwatch("queueFail took {} ms", elapsed.toMillis());
+    }
+
+    /**
+     * Count a job marked as failed that a retry has since indexed, and whose failure was cleared
+     * <p>
+     * Such a job is also counted in {@link #FAILED_JOBS}, so the jobs
+     * that stay failed are the difference.
+     *
+     * @param agencyId agency of the job
+     */
+    public void recovered(int agencyId) {
+        registry.counter(RECOVERED_JOBS, new Tag("agency", Integer.toString(agencyId))).inc();
+    }
+
+    /**
+     * Count duplicate jobs for a record, acknowledged with the job that was indexed
+     *
+     * @param jobs number of jobs coalesced away
+     */
+    public void coalesced(int jobs) {
+        if (jobs == 0) {
+            return;
+        }
+        registry.counter(COALESCED_JOBS).inc(jobs);
+    }
+
+    /**
+     * @param elapsed time spent on the jobs, from fetch to solr
+     * @param jobs    number of jobs processed together
+     */
+    public void processed(Duration elapsed, int jobs) {
+        registry.timer(PROCESS_TIMER).update(elapsed);
+        registry.histogram(BATCH_SIZE_HISTOGRAM).update(jobs);
+        if (jobs == 1) {
+            stopwatch("processJob took {} ms", elapsed.toMillis());
+        } else {
+            stopwatch("processBatch took {} ms for {} jobs", elapsed.toMillis(), jobs);
+        }
+    }
+
+    /**
+     * Count jobs whose transaction has been committed, whether they were indexed or failed
+     *
+     * @param jobs number of jobs
+     */
+    public void indexed(int jobs) {
+        registry.counter(INDEXED_JOBS).inc(jobs);
+        indexRate.add(jobs);
+    }
+
+    /**
+     * @return jobs dequeued per second over the last minute
+     */
+    public double getDequeueRate() {
+        return dequeueRate.perSecond();
+    }
+
+    /**
+     * @return jobs indexed per second over the last minute
+     */
+    public double getIndexRate() {
+        return indexRate.perSecond();
+    }
+
+    public void fetched(Duration elapsed, int records) {
+        registry.timer(FETCH_TIMER).update(elapsed);
+        stopwatch("fetchRecords took {} ms for {} records", elapsed.toMillis(), records);
+    }
+
+    /**
+     * @param elapsed  time spent in the engine
+     * @param engine   name of the engine
+     * @param mimetype mimetype of the record
+     * @param agencyId agency of the record
+     * @param success  false if the engine failed, leaving only the record fields in the document
+     */
+    public void transformed(Duration elapsed, String engine, String mimetype, int agencyId, boolean success) {
+        final String outcome = success ? OUTCOME_SUCCESS : OUTCOME_FAILURE;
+        registry.timer(TRANSFORM_TIMER,
+                new Tag("engine", engine),
+                new Tag("mimetype", tagValue(mimetype)),
+                new Tag("outcome", outcome)).update(elapsed);
+        record(outcome, mimetype, agencyId);
+        stopwatch("{} took {} ms", engine, elapsed.toMillis());
+    }
+
+    /**
+     * Count a record that was not transformed
+     *
+     * @param outcome  {@link #OUTCOME_DELETED} or {@link #OUTCOME_MISSING}
+     * @param mimetype mimetype of the record, null if it is missing
+     * @param agencyId agency of the record
+     */
+    public void record(String outcome, String mimetype, int agencyId) {
+        registry.counter(RECORDS,
+                new Tag("outcome", outcome),
+                new Tag("mimetype", tagValue(mimetype)),
+                new Tag("agency", Integer.toString(agencyId))).inc();
+    }
+
+    /**
+     * @param elapsed   time spent on the request
+     * @param documents documents added
+     * @param deletes   documents deleted
+     * @param success   false if solr rejected the request
+     */
+    public void solrUpdated(Duration elapsed, int documents, int deletes, boolean success) {
+        registry.timer(SOLR_UPDATE_TIMER, new Tag("outcome", success ? OUTCOME_SUCCESS : OUTCOME_FAILURE)).update(elapsed);
+        if (success) {
+            registry.counter(SOLR_DOCUMENTS, new Tag("operation", "add")).inc(documents);
+            registry.counter(SOLR_DOCUMENTS, new Tag("operation", "delete")).inc(deletes);
+            stopwatch("updateSolr took {} ms for {} documents", elapsed.toMillis(), documents + deletes);
+        }
+    }
+
+    /**
+     * @param skipped documents left out because they were unchanged
+     * @param written documents that had to be written
+     */
+    public void fingerprinted(int skipped, int written) {
+        registry.counter(FINGERPRINT_SKIPPED).inc(skipped);
+        registry.counter(FINGERPRINT_WRITTEN).inc(written);
+    }
+
+    /**
+     * Expose the current value of an adaptive limit
+     *
+     * @param name  name of the limit
+     * @param limit current value
+     */
+    public void limit(String name, Supplier<Integer> limit) {
+        registry.gauge(ADAPTIVE_LIMIT, limit, new Tag("limit", name));
+    }
+
+    /**
+     * Expose the backlog of the worker
+     *
+     * @param status current status of the queue
+     */
+    public void queue(Supplier<QueueStatus> status) {
+        registry.gauge(QUEUE_DEPTH, () -> status.get().getDepth());
+        registry.gauge(QUEUE_OLDEST_AGE, () -> status.get().getOldestAgeSeconds());
+        registry.gauge(QUEUE_FAILED_JOBS, () -> status.get().getFailedJobs());
+        registry.gauge(DEQUEUE_RATE, this::getDequeueRate);
+        registry.gauge(INDEX_RATE, this::getIndexRate);
+    }
+
+    /**
+     * Expose the updates waiting in the spool for solr to come back
+     *
+     * @param entries number of spooled updates
+     * @param bytes   size of the spooled updates
+     */
+    public void spool(Supplier<Integer> entries, Supplier<Long> bytes) {
+        registry.gauge(SPOOL_ENTRIES, entries);
+        registry.gauge(SPOOL_BYTES, bytes);
+    }
+
+    /**
+     * Expose the number of jobs waiting for a retry
+     *
+     * @param pending jobs waiting
+     */
+    public void retries(Supplier<Integer> pending) {
+        registry.gauge(RETRY_PENDING, pending);
+    }
+
+    /**
+     * Expose how long queue partitions have been kept from the other indexers
+     *
+     * @param seconds seconds the partitions have been held, 0 if they are not
+     */
+    public void partitionHold(Supplier<Long> seconds) {
+        registry.gauge(PARTITION_HOLD, seconds);
+    }
+
+    private void stopwatch(String format, Object... arguments) {
+        if (STOPWATCH_LOGGING) {
+            LOGGER_STOPWATCH.info(format, arguments);
+        }
+    }
+
+    private static String tagValue(String value) {
+        return value == null || value.isEmpty() ? UNKNOWN : value;
+    }
+}
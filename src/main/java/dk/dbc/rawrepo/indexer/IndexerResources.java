@@ -0,0 +1,279 @@
+package dk.dbc.rawrepo.indexer;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import jakarta.ejb.ConcurrencyManagement;
+import jakarta.ejb.ConcurrencyManagementType;
+import jakarta.ejb.EJB;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.enterprise.concurrent.ManagedThreadFactory;
+import jakarta.inject.Inject;
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The solr client, threads, caches and spool shared by all instances of {@link Indexer}
+ * <p>
+ * They are created as configured when the application starts, and released
+ * when it stops: the batches already handed to the pipeline and the
+ * transform threads are finished, the solr requests in flight get their
+ * responses, the fingerprint cache is saved and the spool is closed, so
+ * what it holds is replayed after a restart.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class IndexerResources {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(IndexerResources.class);
+
+    private static final long FINGERPRINT_SAVE_INTERVAL_MS = 60_000;
+    private static final long SHUTDOWN_TIMEOUT_MS = 10_000;
+
+    @Inject
+    @ConfigProperty(name = "SOLR_URL", defaultValue = "SOLR_URL not set")
+    protected String SOLR_URL;
+
+    @Inject
+    @ConfigProperty(name = "BATCH_SIZE", defaultValue = "1")
+    protected int BATCH_SIZE;
+
+    @Inject
+    @ConfigProperty(name = "INDEXER_THREADS", defaultValue = "1")
+    protected int INDEXER_THREADS;
+
+    @Inject
+    @ConfigProperty(name = "INDEX_ENGINE", defaultValue = Indexer.INDEX_ENGINE_JAVASCRIPT)
+    protected String INDEX_ENGINE;
+
+    @Inject
+    @ConfigProperty(name = "PIPELINE_ENABLED", defaultValue = "false")
+    protected boolean PIPELINE_ENABLED;
+
+    @Inject
+    @ConfigProperty(name = "PIPELINE_FETCH_THREADS", defaultValue = "4")
+    protected int PIPELINE_FETCH_THREADS;
+
+    @Inject
+    @ConfigProperty(name = "PIPELINE_WRITE_THREADS", defaultValue = "2")
+    protected int PIPELINE_WRITE_THREADS;
+
+    @Inject
+    @ConfigProperty(name = "PIPELINE_CAPACITY", defaultValue = "4")
+    protected int PIPELINE_CAPACITY;
+
+    @Inject
+    @ConfigProperty(name = "FINGERPRINT_CACHE_SIZE", defaultValue = "0")
+    protected int FINGERPRINT_CACHE_SIZE;
+
+    @Inject
+    @ConfigProperty(name = "FINGERPRINT_EXCLUDED_FIELDS", defaultValue = "rec.modified,rec.trackingId")
+    protected List<String> FINGERPRINT_EXCLUDED_FIELDS;
+
+    @Inject
+    @ConfigProperty(name = "FINGERPRINT_CACHE_FILE")
+    protected Optional<String> FINGERPRINT_CACHE_FILE;
+
+    @Inject
+    @ConfigProperty(name = "SOLR_HTTP2", defaultValue = "false")
+    protected boolean SOLR_HTTP2;
+
+    @Inject
+    @ConfigProperty(name = "SOLR_MAX_IN_FLIGHT", defaultValue = "0")
+    protected int SOLR_MAX_IN_FLIGHT;
+
+    @Inject
+    @ConfigProperty(name = "ADAPTIVE_LIMITS_ENABLED", defaultValue = "false")
+    protected boolean ADAPTIVE_LIMITS_ENABLED;
+
+    @Inject
+    @ConfigProperty(name = "ADAPTIVE_TARGET_LATENCY_MS", defaultValue = "2000")
+    protected long ADAPTIVE_TARGET_LATENCY_MS;
+
+    @Inject
+    @ConfigProperty(name = "SOLR_COMMIT_WITHIN_MS", defaultValue = "-1")
+    protected int SOLR_COMMIT_WITHIN_MS;
+
+    @Inject
+    @ConfigProperty(name = "SOLR_SOFT_COMMIT_DOCS", defaultValue = "0")
+    protected long SOLR_SOFT_COMMIT_DOCS;
+
+    @Inject
+    @ConfigProperty(name = "SOLR_SOFT_COMMIT_MS", defaultValue = "0")
+    protected long SOLR_SOFT_COMMIT_MS;
+
+    @Inject
+    @ConfigProperty(name = "REINDEX_COMMIT", defaultValue = CommitPolicy.BULK_COMMIT_AT_END)
+    protected String REINDEX_COMMIT;
+
+    @Inject
+    @ConfigProperty(name = "SPOOL_FILE")
+    protected Optional<String> SPOOL_FILE;
+
+    @Inject
+    @ConfigProperty(name = "SPOOL_MAX_MB", defaultValue = "256")
+    protected int SPOOL_MAX_MB;
+
+    @Resource
+    private ManagedThreadFactory threadFactory;
+
+    @Inject
+    IndexerMetrics metrics;
+
+    @EJB
+    QueuePartitions queuePartitions;
+
+    Http2SolrClient solrClient;
+
+    // Only the javascript engine needs a pool, the java engine is thread safe
+    JavaScriptWorkerPool workerPool;
+    ExecutorService transformExecutor;
+    IndexingPipeline pipeline;
+    FingerprintCache fingerprintCache;
+    private long fingerprintsSavedAt;
+    CommitPolicy commitPolicy;
+    AsyncSolrWriter asyncWriter;
+    AimdLimit batchSizeLimit;
+    AimdLimit inFlightLimit;
+    SolrSpool spool;
+    final ReentrantLock spoolReplay = new ReentrantLock();
+
+    @PostConstruct
+    public void create() {
+        LOGGER.info("Initializing Solr client for: {} using {}", SOLR_URL, SOLR_HTTP2 ? "HTTP/2" : "HTTP/1.1");
+        solrClient = new Http2SolrClient.Builder(SOLR_URL).useHttp1_1(!SOLR_HTTP2).build();
+        if ((INDEXER_THREADS > 1 || PIPELINE_ENABLED) && !Indexer.INDEX_ENGINE_JAVA.equals(INDEX_ENGINE)) {
+            workerPool = new JavaScriptWorkerPool(Math.max(1, INDEXER_THREADS));
+        }
+        if (INDEXER_THREADS > 1 && !PIPELINE_ENABLED) {
+            LOGGER.info("Initializing {} transform threads", INDEXER_THREADS);
+            transformExecutor = Executors.newFixedThreadPool(INDEXER_THREADS, threadFactory);
+        }
+        if (PIPELINE_ENABLED) {
+            LOGGER.info("Initializing indexing pipeline with {} fetch, {} transform and {} write threads",
+                    PIPELINE_FETCH_THREADS, Math.max(1, INDEXER_THREADS), PIPELINE_WRITE_THREADS);
+            pipeline = new IndexingPipeline(PIPELINE_FETCH_THREADS, Math.max(1, INDEXER_THREADS), PIPELINE_WRITE_THREADS,
+                    PIPELINE_CAPACITY * Math.max(1, BATCH_SIZE), threadFactory);
+        }
+        if (FINGERPRINT_CACHE_SIZE > 0) {
+            // Documents written by another indexer would be skipped on the strength of stale fingerprints
+            if (!queuePartitions.isEnabled()) {
+                throw new IllegalArgumentException("FINGERPRINT_CACHE_SIZE requires PARTITION_COUNT, so no other indexer writes the same documents");
+            }
+            LOGGER.info("Initializing fingerprint cache for {} documents, excluding {}", FINGERPRINT_CACHE_SIZE, FINGERPRINT_EXCLUDED_FIELDS);
+            fingerprintCache = new FingerprintCache(FINGERPRINT_CACHE_SIZE, FINGERPRINT_EXCLUDED_FIELDS);
+            queuePartitions.onPartitionsClaimed(() -> {
+                LOGGER.info("Clearing fingerprint cache, as another indexer may have written to the partitions claimed");
+                fingerprintCache.clear();
+            });
+            if (FINGERPRINT_CACHE_FILE.isPresent()) {
+                try {
+                    fingerprintCache.load(Paths.get(FINGERPRINT_CACHE_FILE.get()));
+                } catch (IOException ex) {
+                    LOGGER.warn("Could not load fingerprints from {}, starting with an empty cache", FINGERPRINT_CACHE_FILE.get(), ex);
+                }
+            }
+            fingerprintsSavedAt = System.currentTimeMillis();
+        }
+        if (PIPELINE_ENABLED && SOLR_MAX_IN_FLIGHT > 0) {
+            LOGGER.info("Initializing asynchronous solr writes with {} requests in flight", SOLR_MAX_IN_FLIGHT);
+            asyncWriter = new AsyncSolrWriter(solrClient, SOLR_MAX_IN_FLIGHT, threadFactory);
+        }
+        if (ADAPTIVE_LIMITS_ENABLED && BATCH_SIZE > 1) {
+            LOGGER.info("Adapting batch size between 1 and {} to a solr latency of {} ms", BATCH_SIZE, ADAPTIVE_TARGET_LATENCY_MS);
+            batchSizeLimit = new AimdLimit("batch_size", 1, BATCH_SIZE, Math.max(1, BATCH_SIZE / 10),
+                    ADAPTIVE_TARGET_LATENCY_MS, System::currentTimeMillis);
+            metrics.limit(batchSizeLimit.getName(), batchSizeLimit::get);
+        }
+        if (ADAPTIVE_LIMITS_ENABLED && asyncWriter != null) {
+            LOGGER.info("Adapting solr requests in flight between 1 and {} to a solr latency of {} ms", SOLR_MAX_IN_FLIGHT, ADAPTIVE_TARGET_LATENCY_MS);
+            inFlightLimit = new AimdLimit("solr_in_flight", 1, SOLR_MAX_IN_FLIGHT, 1,
+                    ADAPTIVE_TARGET_LATENCY_MS, System::currentTimeMillis);
+            metrics.limit(inFlightLimit.getName(), inFlightLimit::get);
+        }
+        if (SPOOL_FILE.isPresent()) {
+            LOGGER.info("Spooling solr updates to {}, at most {} MB, while solr is unavailable", SPOOL_FILE.get(), SPOOL_MAX_MB);
+            try {
+                spool = new SolrSpool(Paths.get(SPOOL_FILE.get()), SPOOL_MAX_MB * 1024 * 1024);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Cannot open spool " + SPOOL_FILE.get(), ex);
+            }
+            metrics.spool(spool::getEntries, spool::getPendingBytes);
+            // Spooled updates must reach solr before another indexer writes the same records
+            queuePartitions.holdPartitionsWhile(() -> !spool.isEmpty());
+        }
+        LOGGER.info("Initializing commit policy with commitWithin {} ms, soft commit after {} documents or {} ms, reindex commit '{}'",
+                SOLR_COMMIT_WITHIN_MS, SOLR_SOFT_COMMIT_DOCS, SOLR_SOFT_COMMIT_MS, REINDEX_COMMIT);
+        commitPolicy = new CommitPolicy(SOLR_COMMIT_WITHIN_MS, SOLR_SOFT_COMMIT_DOCS, SOLR_SOFT_COMMIT_MS,
+                REINDEX_COMMIT, System::currentTimeMillis);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        try {
+            if (pipeline != null && !pipeline.shutdown(SHUTDOWN_TIMEOUT_MS)) {
+                LOGGER.warn("Indexing pipeline did not finish within {} ms", SHUTDOWN_TIMEOUT_MS);
+            }
+            if (transformExecutor != null) {
+                transformExecutor.shutdown();
+                if (!transformExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    LOGGER.warn("Transform threads did not finish within {} ms", SHUTDOWN_TIMEOUT_MS);
+                }
+            }
+            if (asyncWriter != null && !asyncWriter.close(SHUTDOWN_TIMEOUT_MS)) {
+                LOGGER.warn("Stopping with {} solr requests still in flight", asyncWriter.getInFlight());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted while waiting for the indexing threads to finish");
+        }
+        if (fingerprintCache != null) {
+            saveFingerprints(true);
+        }
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Could not close spool", ex);
+            }
+        }
+        if (solrClient != null) {
+            solrClient.close();
+        }
+    }
+
+    /**
+     * Saves the fingerprint cache, if it is backed by a file and has not been saved for a while
+     */
+    void saveFingerprints() {
+        saveFingerprints(false);
+    }
+
+    private synchronized void saveFingerprints(boolean now) {
+        if (fingerprintCache == null || !FINGERPRINT_CACHE_FILE.isPresent()) {
+            return;
+        }
+        final long time = System.currentTimeMillis();
+        if (!now && time - fingerprintsSavedAt < FINGERPRINT_SAVE_INTERVAL_MS) {
+            return;
+        }
+        fingerprintsSavedAt = time;
+        try {
+            fingerprintCache.save(Paths.get(FINGERPRINT_CACHE_FILE.get()));
+        } catch (IOException ex) {
+            LOGGER.warn("Could not save fingerprints to {}", FINGERPRINT_CACHE_FILE.get(), ex);
+        }
+    }
+}
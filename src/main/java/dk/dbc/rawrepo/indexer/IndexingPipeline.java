@@ -0,0 +1,347 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.rawrepo.dto.RecordDTO;
+import dk.dbc.rawrepo.queue.QueueItem;
+import dk.dbc.rawrepo.queue.RawRepoQueueDAO;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Staged indexing engine: fetch, transform and write
+ * <p>
+ * The records of a batch are fetched together, after which each record is
+ * transformed separately and the batch is written as one solr update.
+ * <p>
+ * Each stage has its own executor with a bounded hand-off queue. A producer
+ * that tries to hand work to a full stage is blocked until there is room, and
+ * the number of batches in flight is bounded per run, so backpressure from a
+ * slow stage propagates all the way back to the dequeue.
+ * <p>
+ * Every batch keeps the connection (and transaction) it was dequeued in, and
+ * that transaction is committed or rolled back when the write of the batch
+ * completes, which may be after the write stage has moved on to the next. Writes of batches touching the same record are applied in the
+ * order the batches were dequeued.
+ */
+class IndexingPipeline {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(IndexingPipeline.class);
+
+    /**
+     * The work done by each stage
+     */
+    interface Stages {
+
+        /**
+         * Fetch the records for all jobs in a batch
+         *
+         * @param jobs queue jobs
+         * @return the records in the same order as the jobs, with null for records that do not exist
+         * @throws Exception if the records could not be fetched
+         */
+        List<RecordDTO> fetch(List<QueueItem> jobs) throws Exception;
+
+        /**
+         * Transform a record to a solr document
+         *
+         * @param record existing, non-deleted record
+         * @return solr document
+         * @throws Exception if the transformation could not be run
+         */
+        SolrInputDocument transform(RecordDTO record) throws Exception;
+
+        /**
+         * Write the batch to solr and commit its transaction
+         * <p>
+         * The write may complete after this method returns, with the batch
+         * counting as in flight until it does.
+         *
+         * @param batch batch with all records fetched and transformed
+         * @return completes when the transaction has been committed, exceptionally if the batch could not be completed
+         * @throws Exception if the batch could not be completed, in which case the transaction is rolled back
+         */
+        CompletionStage<Void> write(Batch batch) throws Exception;
+    }
+
+    /**
+     * The jobs dequeued in one transaction along with their records and documents
+     * <p>
+     * Records and documents are kept for the coalesced jobs, one per record,
+     * while all jobs are acknowledged or failed together.
+     */
+    static class Batch {
+        private final List<QueueItem> jobs;
+        private final List<QueueItem> unique;
+        private final Connection connection;
+        private final RawRepoQueueDAO dao;
+        private final RecordDTO[] records;
+        private final SolrInputDocument[] documents;
+
+        Batch(CoalescedJobs jobs, Connection connection, RawRepoQueueDAO dao) {
+            this.jobs = jobs.getJobs();
+            this.unique = jobs.getUnique();
+            this.connection = connection;
+            this.dao = dao;
+            this.records = new RecordDTO[unique.size()];
+            this.documents = new SolrInputDocument[unique.size()];
+        }
+
+        /**
+         * @return every job in the batch, including duplicates
+         */
+        List<QueueItem> getJobs() {
+            return jobs;
+        }
+
+        /**
+         * @return one job per record, lined up with the records and documents
+         */
+        List<QueueItem> getUnique() {
+            return unique;
+        }
+
+        Connection getConnection() {
+            return connection;
+        }
+
+        RawRepoQueueDAO getDao() {
+            return dao;
+        }
+
+        /**
+         * @return number of records in the batch
+         */
+        int size() {
+            return unique.size();
+        }
+
+        RecordDTO getRecord(int index) {
+            return records[index];
+        }
+
+        SolrInputDocument getDocument(int index) {
+            return documents[index];
+        }
+
+        private List<String> getDocumentIds() {
+            final List<String> ids = new ArrayList<>(unique.size());
+            for (QueueItem job : unique) {
+                ids.add(job.getBibliographicRecordId() + ":" + job.getAgencyId());
+            }
+            return ids;
+        }
+
+        private void rollbackAndClose() {
+            try {
+                connection.rollback();
+            } catch (SQLException ex) {
+                LOGGER.error("Could not roll back batch of {} jobs", jobs.size(), ex);
+            }
+            close();
+        }
+
+        private void close() {
+            try {
+                connection.close();
+            } catch (SQLException ex) {
+                LOGGER.error("Could not close connection for batch of {} jobs", jobs.size(), ex);
+            }
+        }
+    }
+
+    private final ExecutorService fetchExecutor;
+    private final ExecutorService transformExecutor;
+    private final ExecutorService writeExecutor;
+
+    /**
+     * @param fetchThreads     threads fetching records
+     * @param transformThreads threads transforming records to documents
+     * @param writeThreads     threads writing batches to solr
+     * @param queueCapacity    max number of tasks waiting in front of each stage
+     * @param threadFactory    factory for the stage threads
+     */
+    IndexingPipeline(int fetchThreads, int transformThreads, int writeThreads, int queueCapacity, ThreadFactory threadFactory) {
+        this.fetchExecutor = newStageExecutor(fetchThreads, queueCapacity, threadFactory);
+        this.transformExecutor = newStageExecutor(transformThreads, queueCapacity, threadFactory);
+        this.writeExecutor = newStageExecutor(writeThreads, queueCapacity, threadFactory);
+    }
+
+    /**
+     * Start a new run through the pipeline
+     *
+     * @param stages   the work for each stage
+     * @param capacity max number of batches in flight
+     * @return run to submit batches to
+     */
+    Run newRun(Stages stages, int capacity) {
+        return new Run(stages, capacity);
+    }
+
+    /**
+     * Stops the stages, letting the batches already handed to them finish
+     * <p>
+     * The stages are stopped in order, so a batch is never stuck in front of
+     * a stage that has already stopped.
+     *
+     * @param timeoutMs max time to wait for the stages to finish
+     * @return true if all stages finished in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean shutdown(long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        boolean finished = true;
+        for (ExecutorService executor : new ExecutorService[] {fetchExecutor, transformExecutor, writeExecutor}) {
+            executor.shutdown();
+            finished &= executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        return finished;
+    }
+
+    /**
+     * Create an executor that blocks the submitter while its queue is full
+     */
+    static ExecutorService newStageExecutor(int threads, int queueCapacity, ThreadFactory threadFactory) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, (task, executor) -> {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Stage executor has been shut down");
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in stage queue", ex);
+            }
+        });
+    }
+
+    class Run {
+        private final Stages stages;
+        private final int capacity;
+        private final Semaphore permits;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final Map<String, CompletableFuture<Void>> lastWriteById = new ConcurrentHashMap<>();
+
+        private Run(Stages stages, int capacity) {
+            this.stages = stages;
+            this.capacity = capacity;
+            this.permits = new Semaphore(capacity);
+        }
+
+        /**
+         * Hand a batch to the pipeline, waiting if too many batches are in flight
+         * <p>
+         * On return the pipeline owns the batch and its connection.
+         *
+         * @param batch dequeued batch
+         * @throws InterruptedException if interrupted while waiting, in which case the caller still owns the batch
+         */
+        void submit(Batch batch) throws InterruptedException {
+            permits.acquire();
+
+            final CompletableFuture<Void> fetched = CompletableFuture.runAsync(() -> {
+                final List<RecordDTO> records = call(() -> stages.fetch(batch.unique));
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.records[i] = records.get(i);
+                }
+            }, fetchExecutor);
+            final List<CompletableFuture<Void>> transformed = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                final int index = i;
+                transformed.add(fetched.thenRunAsync(() -> {
+                    final RecordDTO record = batch.records[index];
+                    if (record != null && !record.isDeleted()) {
+                        batch.documents[index] = call(() -> stages.transform(record));
+                    }
+                }, transformExecutor));
+            }
+
+            final List<String> ids = batch.getDocumentIds();
+            final List<CompletableFuture<Void>> before = new ArrayList<>(transformed);
+            for (String id : ids) {
+                final CompletableFuture<Void> previousWrite = lastWriteById.get(id);
+                if (previousWrite != null) {
+                    before.add(previousWrite.handle((ignored, error) -> null));
+                }
+            }
+
+            final CompletableFuture<Void> written = CompletableFuture
+                    .allOf(before.toArray(new CompletableFuture<?>[0]))
+                    .thenComposeAsync(ignored -> call(() -> stages.write(batch)), writeExecutor);
+            for (String id : ids) {
+                lastWriteById.put(id, written);
+            }
+
+            written.whenComplete((ignored, error) -> {
+                if (error == null) {
+                    batch.close();
+                } else {
+                    final Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    LOGGER.error("Batch of {} jobs failed in pipeline", batch.size(), cause);
+                    failure.compareAndSet(null, cause);
+                    batch.rollbackAndClose();
+                }
+                for (String id : ids) {
+                    lastWriteById.remove(id, written);
+                }
+                permits.release();
+            });
+        }
+
+        /**
+         * @return true if a batch has failed and no more batches should be submitted
+         */
+        boolean hasFailed() {
+            return failure.get() != null;
+        }
+
+        /**
+         * @return the first failure in this run, or null
+         */
+        Throwable getFailure() {
+            return failure.get();
+        }
+
+        /**
+         * Wait for all submitted batches to leave the pipeline
+         *
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void await() throws InterruptedException {
+            permits.acquire(capacity);
+            permits.release(capacity);
+        }
+    }
+
+    @FunctionalInterface
+    private interface StageCall<T> {
+        T call() throws Exception;
+    }
+
+    private static <T> T call(StageCall<T> stageCall) {
+        try {
+            return stageCall.call();
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new CompletionException(ex);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package dk.dbc.rawrepo.indexer;
 
-import dk.dbc.jslib.ClasspathSchemeHandler;
 import dk.dbc.jslib.Environment;
 import dk.dbc.jslib.ModuleHandler;
 import dk.dbc.jslib.SchemeURI;
@@ -9,19 +8,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 
-public class JavaScriptWorker {
+public class JavaScriptWorker implements IndexEngine {
 
     private static final Logger log = LoggerFactory.getLogger(JavaScriptWorker.class);
-    private static final String INDEXER_SCRIPT = "indexer.js";
+    static final String INDEXER_SCRIPT = "indexer.js";
     private static final String INDEXER_METHOD = "index";
+    private static final String NAME = "Javascript";
 
     /**
      * Std search path
      */
-    private static final String[] searchPaths = new String[]{
+    static final List<String> SEARCH_PATHS = Arrays.asList(
             "classpath:javascript/",
             "classpath:javascript/javacore/",
             "classpath:javascript/jscommon/config/",
@@ -34,7 +36,10 @@ public class JavaScriptWorker {
             "classpath:javascript/jscommon/system/",
             "classpath:javascript/jscommon/util/",
             "classpath:javascript/jscommon/xml/"
-    };
+    );
+
+    // Read once, every environment evaluates the same source
+    private static final String indexerScript = readIndexerScript();
 
     private final Environment internal_indexes_env;
 
@@ -49,10 +54,17 @@ public class JavaScriptWorker {
             mh.registerHandler(SolrFieldsSchemeHandler.SOLR_FIELDS_SCHEME, solrFields);
             mh.addSearchPath(new SchemeURI(SolrFieldsSchemeHandler.SOLR_FIELDS_SCHEME + ":"));
 
-            // Classpath searchpath
-            ClasspathSchemeHandler classpath = new ClasspathSchemeHandler(getClass().getClassLoader());
+            // Modules resolved when the project was built
+            ModuleBundle bundle = ModuleBundle.getInstance();
+            if (bundle != null) {
+                mh.registerHandler(ModuleBundle.SCHEME, bundle);
+                mh.addSearchPath(new SchemeURI(ModuleBundle.SCHEME + ":"));
+            }
+
+            // Classpath searchpath for anything else, resolved and read once for all environments
+            CachingClasspathSchemeHandler classpath = new CachingClasspathSchemeHandler(getClass().getClassLoader());
             mh.registerHandler("classpath", classpath);
-            for (String searchPath : searchPaths) {
+            for (String searchPath : SEARCH_PATHS) {
                 mh.addSearchPath(new SchemeURI(searchPath));
             }
 
@@ -60,16 +72,22 @@ public class JavaScriptWorker {
             internal_indexes_env.registerUseFunction(mh);
 
             // Evaluate script
-            InputStream stream = getClass().getClassLoader().getResourceAsStream(INDEXER_SCRIPT);
-            InputStreamReader inputStreamReader = new InputStreamReader(stream, StandardCharsets.UTF_8);
-
-            internal_indexes_env.eval(inputStreamReader, INDEXER_SCRIPT);
+            internal_indexes_env.eval(new StringReader(indexerScript), INDEXER_SCRIPT);
         } catch (Exception ex) {
             log.error("Error initializing javascript", ex);
             throw new RuntimeException("Cannot initlialize javascript", ex);
         }
     }
 
+    private static String readIndexerScript() {
+        try (InputStream stream = JavaScriptWorker.class.getClassLoader().getResourceAsStream(INDEXER_SCRIPT)) {
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (Exception ex) {
+            log.error("Error reading javascript", ex);
+            throw new RuntimeException("Cannot read " + INDEXER_SCRIPT, ex);
+        }
+    }
+
     /**
      * member variable exposed to javascript
      */
@@ -86,6 +104,11 @@ public class JavaScriptWorker {
         log.trace("Adding " + name + ": " + value);
     }
 
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
     /**
      * Run script on content, adding data to solrInputDocument
      *
@@ -94,9 +117,15 @@ public class JavaScriptWorker {
      * @param mimetype          mimetype of marcxchange
      * @throws Exception
      */
-    void addFields(SolrInputDocument solrInputDocument, String content, String mimetype) throws Exception {
+    public void addFields(SolrInputDocument solrInputDocument, String content, String mimetype) throws Exception {
         this.solrInputDocument = solrInputDocument;
 
         internal_indexes_env.callMethod(INDEXER_METHOD, new Object[]{content, mimetype});
     }
+
+    @Override
+    public void addFields(SolrInputDocument solrInputDocument, byte[] content, String mimetype) throws Exception {
+        // The script works on a string, so the record has to be decoded
+        addFields(solrInputDocument, new String(content, StandardCharsets.UTF_8), mimetype);
+    }
 }
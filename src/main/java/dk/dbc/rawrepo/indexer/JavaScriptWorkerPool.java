@@ -0,0 +1,82 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of javascript environments
+ * <p>
+ * A {@link JavaScriptWorker} holds per-call state, so each thread must check
+ * out its own worker for the duration of a transformation. Workers are created
+ * lazily, up to the size of the pool, and then reused.
+ */
+class JavaScriptWorkerPool {
+
+    private static final Logger log = LoggerFactory.getLogger(JavaScriptWorkerPool.class);
+
+    private final int size;
+    private final Supplier<JavaScriptWorker> factory;
+    private final BlockingQueue<JavaScriptWorker> idle;
+    private final AtomicInteger created = new AtomicInteger();
+
+    JavaScriptWorkerPool(int size) {
+        this(size, JavaScriptWorker::new);
+    }
+
+    JavaScriptWorkerPool(int size, Supplier<JavaScriptWorker> factory) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1, was " + size);
+        }
+        this.size = size;
+        this.factory = factory;
+        this.idle = new LinkedBlockingQueue<>(size);
+    }
+
+    /**
+     * Check out a worker, waiting for one to be released if the pool is exhausted
+     *
+     * @return worker owned by the caller until released
+     * @throws InterruptedException if interrupted while waiting
+     */
+    JavaScriptWorker borrow() throws InterruptedException {
+        JavaScriptWorker worker = idle.poll();
+        if (worker != null) {
+            return worker;
+        }
+        if (created.getAndUpdate(n -> n < size ? n + 1 : n) < size) {
+            log.info("Creating javascript worker {} of {}", created.get(), size);
+            try {
+                return factory.get();
+            } catch (RuntimeException ex) {
+                created.decrementAndGet();
+                throw ex;
+            }
+        }
+        return idle.take();
+    }
+
+    /**
+     * Return a worker to the pool
+     *
+     * @param worker worker previously checked out with {@link #borrow()}
+     */
+    void release(JavaScriptWorker worker) {
+        if (!idle.offer(worker)) {
+            log.warn("Javascript worker pool is full, discarding worker");
+            created.decrementAndGet();
+        }
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    int getCreated() {
+        return created.get();
+    }
+}
@@ -0,0 +1,185 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.rawrepo.queue.QueueItem;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.ejb.ConcurrencyManagement;
+import jakarta.ejb.ConcurrencyManagementType;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jobs waiting to be tried again after an error that may pass, such as a solr timeout
+ * <p>
+ * The indexer marks such a job as failed as usual, and also hands it to
+ * this bean. The job is due again after an exponential backoff with jitter,
+ * and the indexer picks it up on its next run. If the retry succeeds, the
+ * failure is cleared again and the job is counted as recovered, otherwise
+ * the failure gets the error of the retry. After RETRY_MAX_ATTEMPTS
+ * retries, or if RETRY_BUDGET jobs are already waiting, the job is not
+ * retried and stays failed.
+ * <p>
+ * The retries are only kept in memory, but as the failures were written
+ * first, a job waiting for a retry when the application stops or crashes
+ * is left as failed, to be requeued like any other failed job.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class JobRetries {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(JobRetries.class);
+
+    @Inject
+    @ConfigProperty(name = "RETRY_MAX_ATTEMPTS", defaultValue = "3")
+    protected int RETRY_MAX_ATTEMPTS;
+
+    @Inject
+    @ConfigProperty(name = "RETRY_BASE_MS", defaultValue = "1000")
+    protected long RETRY_BASE_MS;
+
+    @Inject
+    @ConfigProperty(name = "RETRY_MAX_MS", defaultValue = "60000")
+    protected long RETRY_MAX_MS;
+
+    @Inject
+    @ConfigProperty(name = "RETRY_BUDGET", defaultValue = "1000")
+    protected int RETRY_BUDGET;
+
+    @Inject
+    IndexerMetrics metrics;
+
+    private final DelayQueue<Retry> retries = new DelayQueue<>();
+
+    @PostConstruct
+    public void create() {
+        if (RETRY_MAX_ATTEMPTS > 0) {
+            LOGGER.info("Retrying failed jobs up to {} times, backing off from {} to {} ms, with at most {} jobs waiting",
+                    RETRY_MAX_ATTEMPTS, RETRY_BASE_MS, RETRY_MAX_MS, RETRY_BUDGET);
+        }
+        metrics.retries(this::getPending);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        final List<Retry> waiting = new ArrayList<>();
+        retries.drainTo(waiting);
+        if (!waiting.isEmpty()) {
+            LOGGER.warn("Stopping with {} jobs waiting for a retry, leaving them as failed: {}", waiting.size(), waiting);
+        }
+    }
+
+    /**
+     * Schedule a retry of a job already marked as failed
+     *
+     * @param job     the job that failed
+     * @param attempt the number of the retry, starting from 1
+     * @param error   the error, for the log
+     * @return false if the job is not retried, as it has been retried enough
+     * or too many jobs are waiting
+     */
+    public boolean retry(QueueItem job, int attempt, String error) {
+        if (attempt > RETRY_MAX_ATTEMPTS || retries.size() >= RETRY_BUDGET) {
+            return false;
+        }
+        final long delay = delayMs(attempt, RETRY_BASE_MS, RETRY_MAX_MS, ThreadLocalRandom.current().nextDouble());
+        retries.add(new Retry(job, attempt, error, System.currentTimeMillis() + delay));
+        return true;
+    }
+
+    /**
+     * Put back a retry that could not be tried, keeping its attempt
+     *
+     * @param retry a retry from {@link #takeDue(int)}
+     */
+    public void putBack(Retry retry) {
+        retries.add(retry);
+    }
+
+    /**
+     * @param max max number of retries
+     * @return retries that are due, oldest first
+     */
+    public List<Retry> takeDue(int max) {
+        final List<Retry> due = new ArrayList<>();
+        retries.drainTo(due, max);
+        return due;
+    }
+
+    /**
+     * @return number of jobs waiting for a retry
+     */
+    public int getPending() {
+        return retries.size();
+    }
+
+    /**
+     * Exponential backoff with equal jitter: somewhere between half and all
+     * of the base doubled for every attempt, capped at the max
+     *
+     * @param attempt number of the retry, starting from 1
+     * @param baseMs  delay before the first retry, before jitter
+     * @param maxMs   max delay
+     * @param random  a random number from 0 to 1
+     * @return delay in ms
+     */
+    static long delayMs(int attempt, long baseMs, long maxMs, double random) {
+        final long cap = Math.min(maxMs, baseMs << Math.min(attempt - 1, 30));
+        return cap / 2 + (long) (random * (cap - cap / 2));
+    }
+
+    /**
+     * A job waiting to be tried again
+     */
+    public static class Retry implements Delayed {
+
+        private final QueueItem job;
+        private final int attempt;
+        private final String error;
+        private final long dueAt;
+
+        Retry(QueueItem job, int attempt, String error, long dueAt) {
+            this.job = job;
+            this.attempt = attempt;
+            this.error = error;
+            this.dueAt = dueAt;
+        }
+
+        public QueueItem getJob() {
+            return job;
+        }
+
+        public int getAttempt() {
+            return attempt;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public String toString() {
+            return job + " (retry " + attempt + ")";
+        }
+    }
+}
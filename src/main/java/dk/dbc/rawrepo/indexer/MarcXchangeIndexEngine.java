@@ -0,0 +1,187 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.apache.solr.common.SolrInputDocument;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+
+/**
+ * Compiled java version of indexer.js
+ * <p>
+ * Reads the raw marcxchange bytes once with a pull parser, the same way as
+ * the index function walks the record, and applies {@link DanMarc2Fields},
+ * producing the same fields in the same order without a javascript
+ * environment.
+ * <p>
+ * No decoded copy or DOM of the record is built. Datafields and subfields
+ * without a rule are skipped without reading their text, so the allocation
+ * per record is roughly the size of the extracted values. The engine holds
+ * no per-call state, so one instance can be shared by all threads.
+ */
+public class MarcXchangeIndexEngine implements IndexEngine {
+
+    static final String MARCX_NAMESPACE = "info:lc/xmlns/marcxchange-v1";
+
+    private static final String NAME = "Java";
+
+    // Configured once, the factory is safe to share between threads
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void addFields(SolrInputDocument solrInputDocument, byte[] content, String mimetype) throws Exception {
+        final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(content));
+        try {
+            final DanMarc2Fields fields = new DanMarc2Fields();
+            readRecord(reader, fields);
+            // Read to the end, so malformed content is rejected like a full parse would
+            while (reader.hasNext()) {
+                reader.next();
+            }
+            fields.addTo(solrInputDocument);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void readRecord(XMLStreamReader reader, DanMarc2Fields fields) throws XMLStreamException {
+        reader.nextTag();
+
+        // Validate (marcx v1 / record)
+        if (!isMarcxElement(reader, "record")) {
+            throw new IllegalArgumentException("Document not of marcx:record type");
+        }
+
+        // find record format
+        final String format = reader.getAttributeValue(null, "format");
+        if (format != null && !DanMarc2Fields.FORMAT.equals(format)) {
+            throw new IllegalArgumentException("Cannot handle record-format: " + format);
+        }
+
+        while (nextChildElement(reader)) {
+            if (!isMarcxElement(reader, "datafield")) {
+                skipElement(reader);
+                continue;
+            }
+            final String tag = getAttribute(reader, "tag");
+            if (!DanMarc2Fields.hasRule(tag)) {
+                skipElement(reader);
+                continue;
+            }
+            if (DanMarc2Fields.isDatafieldRule(tag)) {
+                fields.datafield(tag);
+                skipElement(reader);
+                continue;
+            }
+            while (nextChildElement(reader)) {
+                if (isMarcxElement(reader, "subfield")) {
+                    final String code = getAttribute(reader, "code");
+                    if (DanMarc2Fields.hasSubfieldRule(tag, code)) {
+                        fields.subfield(tag, code, getText(reader));
+                        continue;
+                    }
+                }
+                skipElement(reader);
+            }
+        }
+    }
+
+    /**
+     * Move to the next child element of the current element
+     *
+     * @param reader reader positioned inside an element
+     * @return true if positioned at the start of a child, false if at the end of the current element
+     */
+    private static boolean nextChildElement(XMLStreamReader reader) throws XMLStreamException {
+        while (true) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    return true;
+                case XMLStreamConstants.END_ELEMENT:
+                    return false;
+                default:
+                    // text, whitespace, comments and processing instructions
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Skip past the end of the current element, without looking at its content
+     *
+     * @param reader reader positioned at the start of an element
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Read the text of the current element, including the text of any child
+     * elements, like XmlUtil.getText does
+     *
+     * @param reader reader positioned at the start of an element
+     * @return the text, and the reader positioned at the end of the element
+     */
+    private static String getText(XMLStreamReader reader) throws XMLStreamException {
+        final StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    text.append(reader.getText());
+                    break;
+                default:
+                    // comments and processing instructions
+                    break;
+            }
+        }
+        return text.toString();
+    }
+
+    private static boolean isMarcxElement(XMLStreamReader reader, String localName) {
+        return MARCX_NAMESPACE.equals(reader.getNamespaceURI()) &&
+                localName.equals(reader.getLocalName());
+    }
+
+    private static String getAttribute(XMLStreamReader reader, String localName) {
+        final String value = reader.getAttributeValue(null, localName);
+        return value == null ? "" : value;
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+}
@@ -0,0 +1,203 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.jslib.Environment;
+import dk.dbc.jslib.ISchemeHandler;
+import dk.dbc.jslib.SchemeURI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The javascript modules used by indexer.js, resolved when the project is built
+ * <p>
+ * The build runs {@link #main(String[])}, which follows the use() calls
+ * from indexer.js through the classpath search paths, and packs every module
+ * it reaches into {@link #RESOURCE}. At runtime the bundle is registered as
+ * the second search path of every environment, after the scheme serving
+ * the built-in SolrFields module, and before the classpath search
+ * paths. So use() finds the bundled modules without probing the classpath,
+ * and modules not in the bundle are resolved from the classpath as usual.
+ */
+public class ModuleBundle implements ISchemeHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(ModuleBundle.class);
+
+    static final String RESOURCE = "javascript/indexer-modules.properties";
+    static final String SCHEME = "indexerbundle";
+    private static final List<String> SUPPORTED_SCHEMES = Collections.singletonList(SCHEME);
+
+    private static final String CLASSPATH_SCHEME = "classpath:";
+    private static final String MODULE_SUFFIX = ".use.js";
+    private static final String URI_KEY = ".uri";
+    private static final String SOURCE_KEY = ".source";
+    private static final Pattern USE = Pattern.compile("\\buse\\s*\\(\\s*[\"']([\\w.]+)[\"']\\s*\\)");
+
+    private static final ModuleBundle instance = load(ModuleBundle.class.getClassLoader());
+
+    private final Properties modules;
+
+    ModuleBundle(Properties modules) {
+        this.modules = modules;
+    }
+
+    /**
+     * @return the bundle built with the project, or null if the build did not make one
+     */
+    static ModuleBundle getInstance() {
+        return instance;
+    }
+
+    @Override
+    public List<String> schemes() {
+        return SUPPORTED_SCHEMES;
+    }
+
+    @Override
+    public SchemeURI lookup(SchemeURI suri, String string) {
+        if (modules.containsKey(string + SOURCE_KEY)) {
+            return new SchemeURI(suri.getScheme(), string);
+        }
+        return new SchemeURI();
+    }
+
+    @Override
+    public void load(SchemeURI sUri, Environment envir) throws Exception {
+        final String name = sUri.toString().substring(SCHEME.length() + "://".length());
+        final String source = modules.getProperty(name + SOURCE_KEY);
+        if (source == null) {
+            throw new RuntimeException("Don't know how to load: " + sUri.toString());
+        }
+        // Named as on the classpath, to keep the error messages from the modules
+        envir.eval(new StringReader(source), modules.getProperty(name + URI_KEY));
+    }
+
+    int size() {
+        return modules.size() / 2;
+    }
+
+    private static ModuleBundle load(ClassLoader classLoader) {
+        try (InputStream stream = classLoader.getResourceAsStream(RESOURCE)) {
+            if (stream == null) {
+                log.info("No {}, javascript modules are resolved from the classpath", RESOURCE);
+                return null;
+            }
+            final Properties modules = new Properties();
+            try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+                modules.load(reader);
+            }
+            final ModuleBundle bundle = new ModuleBundle(modules);
+            log.info("Loaded {} javascript modules from {}", bundle.size(), RESOURCE);
+            return bundle;
+        } catch (IOException ex) {
+            log.error("Cannot read {}, javascript modules are resolved from the classpath", RESOURCE, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Resolve the modules reachable from a script
+     *
+     * @param classLoader where the modules are found
+     * @param script      source of the script
+     * @param searchPaths classpath search paths, in the order use() searches them
+     * @return module name to classpath uri and source, for every module found
+     */
+    static Properties resolve(ClassLoader classLoader, String script, List<String> searchPaths) {
+        final Properties modules = new Properties();
+        final Set<String> seen = new HashSet<>();
+        final Deque<String> pending = new ArrayDeque<>(uses(script));
+        while (!pending.isEmpty()) {
+            final String name = pending.pop();
+            if (!seen.add(name)) {
+                continue;
+            }
+            final String path = find(classLoader, name, searchPaths);
+            if (path == null) {
+                log.info("Module {} is not on the classpath, leaving it out of the bundle", name);
+                continue;
+            }
+            final String source = read(classLoader, path);
+            modules.setProperty(name + URI_KEY, CLASSPATH_SCHEME + path);
+            modules.setProperty(name + SOURCE_KEY, source);
+            pending.addAll(uses(source));
+        }
+        return modules;
+    }
+
+    private static List<String> uses(String source) {
+        final List<String> names = new ArrayList<>();
+        final Matcher matcher = USE.matcher(source);
+        while (matcher.find()) {
+            names.add(matcher.group(1));
+        }
+        return names;
+    }
+
+    private static String find(ClassLoader classLoader, String name, List<String> searchPaths) {
+        for (String searchPath : searchPaths) {
+            if (!searchPath.startsWith(CLASSPATH_SCHEME)) {
+                continue;
+            }
+            final String path = searchPath.substring(CLASSPATH_SCHEME.length()) + name + MODULE_SUFFIX;
+            if (classLoader.getResource(path) != null) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    static String read(ClassLoader classLoader, String path) {
+        try (InputStream stream = classLoader.getResourceAsStream(path)) {
+            if (stream == null) {
+                throw new IllegalArgumentException("Cannot find " + path);
+            }
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot read " + path, ex);
+        }
+    }
+
+    /**
+     * Build step, writes the bundle of the modules used by indexer.js
+     *
+     * @param args the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Usage: ModuleBundle <output file>");
+        }
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        final String script = read(classLoader, JavaScriptWorker.INDEXER_SCRIPT);
+        final Properties modules = resolve(classLoader, script, JavaScriptWorker.SEARCH_PATHS);
+
+        final Path output = Paths.get(args[0]);
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        try (Writer writer = new OutputStreamWriter(Files.newOutputStream(output), StandardCharsets.UTF_8)) {
+            modules.store(writer, "javascript modules used by " + JavaScriptWorker.INDEXER_SCRIPT);
+        }
+        log.info("Bundled {} javascript modules into {}", modules.size() / 2, output);
+    }
+}
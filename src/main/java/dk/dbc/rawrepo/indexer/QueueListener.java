@@ -0,0 +1,285 @@
+package dk.dbc.rawrepo.indexer;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import jakarta.ejb.ConcurrencyManagement;
+import jakarta.ejb.ConcurrencyManagementType;
+import jakarta.ejb.EJB;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.enterprise.concurrent.ManagedThreadFactory;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Event driven alternative to the 5 second {@link Scheduler} poll
+ * <p>
+ * When enabled, a single thread runs the indexer as soon as the database
+ * sends a notification on the queue channel, so a freshly queued job is
+ * picked up in milliseconds. Notifications are received with LISTEN on a
+ * dedicated connection, which costs no queries while the queue is idle.
+ * <p>
+ * Polling is kept as a fallback, in case a notification is lost or the
+ * database does not send them. The poll interval starts at the minimum
+ * after every run that found work and doubles on every empty run, up to
+ * the maximum, so an idle indexer rarely touches the database.
+ * <p>
+ * The database has to notify the channel when jobs are queued, e.g. with a
+ * trigger on the queue table calling pg_notify(channel, worker). A
+ * notification with a payload naming a worker this indexer does not serve
+ * is ignored.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class QueueListener {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(QueueListener.class);
+
+    private static final Pattern CHANNEL_NAME = Pattern.compile("[a-z_][a-z0-9_]*");
+
+    private static final long STOP_TIMEOUT_MS = 5_000;
+
+    @Inject
+    @ConfigProperty(name = "QUEUE_LISTEN_ENABLED", defaultValue = "false")
+    protected boolean QUEUE_LISTEN_ENABLED;
+
+    @Inject
+    @ConfigProperty(name = "QUEUE_NOTIFY_CHANNEL", defaultValue = "queue")
+    protected String QUEUE_NOTIFY_CHANNEL;
+
+    @Inject
+    @ConfigProperty(name = "QUEUE_POLL_MIN_MS", defaultValue = "100")
+    protected long QUEUE_POLL_MIN_MS;
+
+    @Inject
+    @ConfigProperty(name = "QUEUE_POLL_MAX_MS", defaultValue = "60000")
+    protected long QUEUE_POLL_MAX_MS;
+
+    @Inject
+    @ConfigProperty(name = "WORKER", defaultValue = "WORKER not set")
+    protected String WORKER;
+
+    @Inject
+    @ConfigProperty(name = "WORKERS")
+    protected Optional<List<String>> WORKERS;
+
+    @Resource(lookup = "jdbc/rawrepo")
+    protected DataSource rawrepoDataSource;
+
+    @Resource
+    ManagedThreadFactory threadFactory;
+
+    @EJB
+    Indexer indexer;
+
+    @EJB
+    WarmUp warmUp;
+
+    private volatile boolean running;
+    private Thread thread;
+    private volatile Connection listenConnection;
+    private boolean notificationsSupported = true;
+    private WorkerLanes lanes;
+
+    @PostConstruct
+    public void create() {
+        if (!QUEUE_LISTEN_ENABLED) {
+            return;
+        }
+        if (!CHANNEL_NAME.matcher(QUEUE_NOTIFY_CHANNEL).matches()) {
+            throw new IllegalArgumentException("Invalid QUEUE_NOTIFY_CHANNEL: " + QUEUE_NOTIFY_CHANNEL);
+        }
+        lanes = WorkerLanes.of(WORKERS.orElse(Collections.emptyList()), WORKER);
+        LOGGER.info("Listening for queue notifications for {} on '{}', polling every {} to {} ms",
+                lanes.getWorkers(), QUEUE_NOTIFY_CHANNEL, QUEUE_POLL_MIN_MS, QUEUE_POLL_MAX_MS);
+        running = true;
+        thread = threadFactory.newThread(this::run);
+        thread.setName("queue-listener");
+        thread.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            // Waiting for notifications is not interruptible, but returns when the connection goes
+            abortListenConnection();
+            try {
+                thread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                LOGGER.warn("Queue listener did not stop within {} ms", STOP_TIMEOUT_MS);
+            }
+        }
+    }
+
+    /**
+     * @return true if this listener drives the indexer, so the scheduler should stay idle
+     */
+    public boolean isActive() {
+        return running && thread != null && thread.isAlive();
+    }
+
+    private void run() {
+        long pollInterval = QUEUE_POLL_MIN_MS;
+        try {
+            // Jobs queued meanwhile are found by the first run
+            warmUp.awaitDone();
+            while (running) {
+                int processedJobs = 0;
+                try {
+                    processedJobs = indexer.performWork();
+                } catch (Exception ex) {
+                    LOGGER.error("An unhandled exception has made its way to the queue listener which means something unrecoverable has happened, so backing off");
+                    LOGGER.catching(ex);
+                }
+                pollInterval = nextPollInterval(pollInterval, processedJobs > 0, QUEUE_POLL_MIN_MS, QUEUE_POLL_MAX_MS);
+                awaitNotification(pollInterval);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeListenConnection();
+            running = false;
+            LOGGER.info("Queue listener stopped");
+        }
+    }
+
+    /**
+     * Adaptive poll interval: back to the minimum after a run that found
+     * work, doubled after an empty run, never above the maximum
+     *
+     * @param current     current interval
+     * @param foundWork   true if the last run processed any jobs
+     * @param minInterval minimum interval
+     * @param maxInterval maximum interval
+     * @return the interval before the next poll
+     */
+    static long nextPollInterval(long current, boolean foundWork, long minInterval, long maxInterval) {
+        if (foundWork) {
+            return minInterval;
+        }
+        return Math.min(maxInterval, Math.max(minInterval, current * 2));
+    }
+
+    /**
+     * Wait until a notification for this worker arrives or the poll interval has passed
+     *
+     * @param pollInterval max time to wait in ms
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void awaitNotification(long pollInterval) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + pollInterval;
+        try {
+            final PGConnection pgConnection = getListenConnection();
+            if (pgConnection == null) {
+                Thread.sleep(pollInterval);
+                return;
+            }
+            long remaining = pollInterval;
+            while (remaining > 0 && running) {
+                final PGNotification[] notifications = pgConnection.getNotifications((int) Math.min(Integer.MAX_VALUE, remaining));
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (notifications != null) {
+                    for (PGNotification notification : notifications) {
+                        final String payload = notification.getParameter();
+                        if (payload == null || payload.isEmpty() || lanes.contains(payload)) {
+                            LOGGER.debug("Woken by queue notification '{}'", payload);
+                            return;
+                        }
+                    }
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        } catch (SQLException ex) {
+            if (!running) {
+                // Aborted by destroy()
+                return;
+            }
+            LOGGER.warn("Lost queue notification connection, polling until it is reestablished", ex);
+            closeListenConnection();
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0) {
+                Thread.sleep(remaining);
+            }
+        }
+    }
+
+    /**
+     * @return a connection listening on the channel, or null if notifications are not supported
+     * @throws SQLException if the connection could not be established
+     */
+    private PGConnection getListenConnection() throws SQLException {
+        if (!notificationsSupported) {
+            return null;
+        }
+        if (listenConnection == null) {
+            final Connection connection = rawrepoDataSource.getConnection();
+            if (!connection.isWrapperFor(PGConnection.class)) {
+                LOGGER.warn("The rawrepo datasource does not support notifications, falling back to polling");
+                connection.close();
+                notificationsSupported = false;
+                return null;
+            }
+            connection.setAutoCommit(true);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("LISTEN " + QUEUE_NOTIFY_CHANNEL);
+            }
+            listenConnection = connection;
+        }
+        return listenConnection.unwrap(PGConnection.class);
+    }
+
+    /**
+     * Closes the connection the listener thread may be waiting on, from another thread
+     * <p>
+     * The listener thread closes it properly once it has stopped, which
+     * fails quietly on a connection that has been aborted.
+     */
+    private void abortListenConnection() {
+        final Connection connection = listenConnection;
+        if (connection != null) {
+            try {
+                connection.abort(Runnable::run);
+            } catch (SQLException ex) {
+                LOGGER.warn("Could not abort queue notification connection", ex);
+            }
+        }
+    }
+
+    private void closeListenConnection() {
+        if (listenConnection != null) {
+            // The connection goes back to the pool, so it must stop listening
+            try (Statement statement = listenConnection.createStatement()) {
+                statement.execute("UNLISTEN *");
+            } catch (SQLException ex) {
+                LOGGER.debug("Could not unlisten on queue notification connection", ex);
+            }
+            try {
+                listenConnection.close();
+            } catch (SQLException ex) {
+                LOGGER.warn("Could not close queue notification connection", ex);
+            }
+            listenConnection = null;
+        }
+    }
+}
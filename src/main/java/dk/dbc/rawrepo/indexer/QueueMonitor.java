@@ -0,0 +1,159 @@
+package dk.dbc.rawrepo.indexer;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import jakarta.ejb.ConcurrencyManagement;
+import jakarta.ejb.ConcurrencyManagementType;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.enterprise.concurrent.ManagedThreadFactory;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Samples the backlog of the workers for autoscaling
+ * <p>
+ * Every QUEUE_STATS_INTERVAL_MS the queue depth, the age of the oldest
+ * waiting job and the number of failed jobs, over all the workers this
+ * indexer serves, are read from the database. The
+ * counts stop at QUEUE_STATS_MAX_COUNT, so a sample costs at most that many
+ * index entries however large the backlog is. The oldest job is looked up
+ * for one worker at a time, and scrapes of the endpoint and the metrics
+ * only read the last sample. The dequeue and index rates are
+ * counted as the jobs pass through the indexer.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class QueueMonitor {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(QueueMonitor.class);
+
+    static final String DEPTH_QUERY = "SELECT count(*) FROM (SELECT 1 FROM queue WHERE worker = ANY(?) LIMIT ?) AS sample";
+    // One worker at a time, so the lookup stays within the worker's part of the queue index
+    static final String OLDEST_QUERY = "SELECT min(queued) FROM queue WHERE worker = ?";
+    static final String FAILED_QUERY = "SELECT count(*) FROM (SELECT 1 FROM jobdiag WHERE worker = ANY(?) LIMIT ?) AS sample";
+
+    @Inject
+    @ConfigProperty(name = "WORKER", defaultValue = "WORKER not set")
+    protected String WORKER;
+
+    @Inject
+    @ConfigProperty(name = "WORKERS")
+    protected Optional<List<String>> WORKERS;
+
+    @Inject
+    @ConfigProperty(name = "QUEUE_STATS_INTERVAL_MS", defaultValue = "15000")
+    protected long QUEUE_STATS_INTERVAL_MS;
+
+    @Inject
+    @ConfigProperty(name = "QUEUE_STATS_MAX_COUNT", defaultValue = "100000")
+    protected int QUEUE_STATS_MAX_COUNT;
+
+    @Resource(lookup = "jdbc/rawrepo")
+    protected DataSource rawrepoDataSource;
+
+    @Resource
+    private ManagedThreadFactory threadFactory;
+
+    @Inject
+    IndexerMetrics metrics;
+
+    private volatile boolean running;
+    private Thread thread;
+    List<String> workers;
+    private volatile QueueStatus sample;
+
+    @PostConstruct
+    public void create() {
+        workers = WorkerLanes.of(WORKERS.orElse(Collections.emptyList()), WORKER).getWorkers();
+        sample = QueueStatus.unknown(workers);
+        metrics.queue(this::getStatus);
+        LOGGER.info("Sampling the queues of {} every {} ms", workers, QUEUE_STATS_INTERVAL_MS);
+        running = true;
+        thread = threadFactory.newThread(this::run);
+        thread.setName("queue-monitor");
+        thread.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return the last sample with the current rates
+     */
+    public QueueStatus getStatus() {
+        return sample.withRates(metrics.getDequeueRate(), metrics.getIndexRate());
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                try {
+                    sample = sample();
+                } catch (SQLException ex) {
+                    LOGGER.warn("Could not sample the queues of {}", workers, ex);
+                }
+                Thread.sleep(QUEUE_STATS_INTERVAL_MS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            LOGGER.info("Queue monitor stopped");
+        }
+    }
+
+    QueueStatus sample() throws SQLException {
+        try (Connection connection = rawrepoDataSource.getConnection()) {
+            final long depth = count(connection, DEPTH_QUERY);
+            final long failed = count(connection, FAILED_QUERY);
+            final Instant oldest = oldest(connection);
+            return new QueueStatus(workers, depth, depth >= QUEUE_STATS_MAX_COUNT, oldest,
+                    failed, failed >= QUEUE_STATS_MAX_COUNT, Instant.now(), 0, 0);
+        }
+    }
+
+    private Instant oldest(Connection connection) throws SQLException {
+        Instant oldest = null;
+        try (PreparedStatement statement = connection.prepareStatement(OLDEST_QUERY)) {
+            for (String worker : workers) {
+                statement.setString(1, worker);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    final Timestamp queued = resultSet.next() ? resultSet.getTimestamp(1) : null;
+                    if (queued != null && (oldest == null || queued.toInstant().isBefore(oldest))) {
+                        oldest = queued.toInstant();
+                    }
+                }
+            }
+        }
+        return oldest;
+    }
+
+    private long count(Connection connection, String query) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setArray(1, connection.createArrayOf("varchar", workers.toArray()));
+            statement.setInt(2, QUEUE_STATS_MAX_COUNT);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package dk.dbc.rawrepo.indexer;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import jakarta.ejb.ConcurrencyManagement;
+import jakarta.ejb.ConcurrencyManagementType;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.enterprise.concurrent.ManagedThreadFactory;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Splits the queue between indexer pods by a hash of the bibliographic record id
+ * <p>
+ * With PARTITION_COUNT above 0, the queue is divided into that many
+ * partitions, and a pod only dequeues jobs in the partitions it owns. So
+ * replicas no longer compete for the same rows, and all jobs for a record
+ * are indexed by one pod, in order.
+ * <p>
+ * Ownership is a postgres advisory lock per partition, held on a dedicated
+ * connection, so the partitions of a pod that dies are released with its
+ * connection. Every pod also holds a membership lock, which lets the pods
+ * count each other. Every PARTITION_REBALANCE_MS a pod gives up the
+ * partitions it holds above its fair share, and claims free ones up to it.
+ * <p>
+ * A partition is only given up between runs of the indexer, when the
+ * batches of the previous run have been written, so a record never has
+ * writes in flight from two pods. A run in progress stops early when a
+ * partition is waiting to be given up. While the indexer holds updates it
+ * has not yet sent, like a non-empty spool, see {@link SolrSpool}, the
+ * partitions are kept and the runs keep stopping early, as the new owner
+ * would otherwise write newer documents that the held updates overwrite.
+ * That lasts at most PARTITION_HOLD_MAX_MS, after which the partitions are
+ * given up anyway, so a solr outage cannot stop the indexer for good.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class QueuePartitions {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(QueuePartitions.class);
+
+    static final String MEMBERS_QUERY = "SELECT count(*) FROM pg_locks WHERE locktype = 'advisory' AND classid::int8 = ? AND objsubid = 2 AND granted" +
+            " AND database = (SELECT oid FROM pg_database WHERE datname = current_database())";
+
+    @Inject
+    @ConfigProperty(name = "PARTITION_COUNT", defaultValue = "0")
+    protected int PARTITION_COUNT;
+
+    @Inject
+    @ConfigProperty(name = "PARTITION_REBALANCE_MS", defaultValue = "10000")
+    protected long PARTITION_REBALANCE_MS;
+
+    @Inject
+    @ConfigProperty(name = "PARTITION_HOLD_MAX_MS", defaultValue = "300000")
+    protected long PARTITION_HOLD_MAX_MS;
+
+    @Inject
+    @ConfigProperty(name = "WORKER", defaultValue = "WORKER not set")
+    protected String WORKER;
+
+    @Inject
+    @ConfigProperty(name = "WORKERS")
+    protected Optional<List<String>> WORKERS;
+
+    @Resource(lookup = "jdbc/rawrepo")
+    protected DataSource rawrepoDataSource;
+
+    @Resource
+    private ManagedThreadFactory threadFactory;
+
+    @Inject
+    IndexerMetrics metrics;
+
+    LongSupplier clock = System::currentTimeMillis;
+
+    // Runs hold the read lock, giving up a partition takes the write lock
+    private final ReentrantReadWriteLock runLock = new ReentrantReadWriteLock(true);
+    private volatile boolean handoffPending;
+    private volatile int[] owned = new int[0];
+    private volatile BooleanSupplier handoffHold = () -> false;
+    private volatile Runnable claimListener = () -> { };
+    private boolean claimedBefore;
+    // When the partitions waiting to be given up were first held, -1 if they are not
+    private volatile long heldSince = -1;
+
+    private int partitionKey;
+    private int memberKey;
+    private Connection lockConnection;
+    private volatile boolean running;
+    private Thread thread;
+
+    @PostConstruct
+    public void create() {
+        if (PARTITION_COUNT <= 0) {
+            return;
+        }
+        final String name = "rawrepo-solr-indexer/" + String.join(",", WorkerLanes.of(WORKERS.orElse(Collections.emptyList()), WORKER).getWorkers());
+        partitionKey = name.hashCode() & Integer.MAX_VALUE;
+        memberKey = (name + "/members").hashCode() & Integer.MAX_VALUE;
+        LOGGER.info("Sharing {} queue partitions with the other indexers of {}, rebalancing every {} ms",
+                PARTITION_COUNT, name, PARTITION_REBALANCE_MS);
+        metrics.partitionHold(this::getHeldSeconds);
+        running = true;
+        thread = threadFactory.newThread(this::run);
+        thread.setName("queue-partitions");
+        thread.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return PARTITION_COUNT > 0;
+    }
+
+    public int getPartitionCount() {
+        return PARTITION_COUNT;
+    }
+
+    /**
+     * @return the partitions owned right now, possibly none
+     */
+    public int[] getOwned() {
+        return owned;
+    }
+
+    /**
+     * Called before the indexer starts dequeuing, paired with {@link #endRun()}
+     */
+    public void beginRun() {
+        if (isEnabled()) {
+            runLock.readLock().lock();
+        }
+    }
+
+    public void endRun() {
+        if (isEnabled()) {
+            runLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Keeps the partitions from being given up while a condition is true
+     *
+     * @param hold true while the indexer holds updates not yet sent to solr
+     */
+    public void holdPartitionsWhile(BooleanSupplier hold) {
+        handoffHold = hold;
+    }
+
+    /**
+     * Runs a listener when partitions are claimed that another indexer may have written to
+     * <p>
+     * That is every claim, except the first one of an indexer running alone.
+     * The listener runs before jobs in the partitions are dequeued.
+     *
+     * @param listener called before the claimed partitions are owned
+     */
+    public void onPartitionsClaimed(Runnable listener) {
+        claimListener = listener;
+    }
+
+    /**
+     * @return true if the current run should stop, so a partition can be given up
+     */
+    public boolean isHandoffPending() {
+        return handoffPending;
+    }
+
+    /**
+     * @return seconds the partitions waiting to be given up have been held, 0 if they are not
+     */
+    long getHeldSeconds() {
+        final long since = heldSince;
+        return since < 0 ? 0 : TimeUnit.MILLISECONDS.toSeconds(clock.getAsLong() - since);
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                try {
+                    rebalance();
+                } catch (SQLException ex) {
+                    LOGGER.error("Lost queue partition locks, stopping dequeue until they are claimed again", ex);
+                    owned = new int[0];
+                    closeLockConnection();
+                }
+                Thread.sleep(PARTITION_REBALANCE_MS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            giveUp(owned);
+            owned = new int[0];
+            closeLockConnection();
+            LOGGER.info("Queue partitions released");
+        }
+    }
+
+    void rebalance() throws SQLException, InterruptedException {
+        final Connection connection = getLockConnection();
+        final int members;
+        try (PreparedStatement statement = connection.prepareStatement(MEMBERS_QUERY)) {
+            statement.setLong(1, memberKey);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                members = Math.max(1, resultSet.getInt(1));
+            }
+        }
+        final int share = fairShare(PARTITION_COUNT, members);
+        final int[] current = owned;
+        if (current.length > share) {
+            final int[] kept = Arrays.copyOf(current, share);
+            final int[] excess = Arrays.copyOfRange(current, share, current.length);
+            handoffPending = true;
+            runLock.writeLock().lockInterruptibly();
+            try {
+                if (handoffHold.getAsBoolean()) {
+                    final long now = clock.getAsLong();
+                    if (heldSince < 0) {
+                        heldSince = now;
+                    }
+                    if (now - heldSince < PARTITION_HOLD_MAX_MS) {
+                        // Stays pending, so no new work is taken until the next rebalance
+                        LOGGER.info("Keeping queue partitions {} until the updates held by this indexer have been sent, held for {} ms",
+                                Arrays.toString(excess), now - heldSince);
+                        return;
+                    }
+                    LOGGER.warn("Giving up queue partitions {} after holding them for {} ms, the updates held by this indexer may overwrite newer documents",
+                            Arrays.toString(excess), now - heldSince);
+                }
+                owned = kept;
+                giveUp(excess);
+                handoffPending = false;
+                heldSince = -1;
+            } finally {
+                runLock.writeLock().unlock();
+            }
+            LOGGER.info("Gave up queue partitions {} to {} other indexers, keeping {}", Arrays.toString(excess), members - 1, Arrays.toString(kept));
+            return;
+        }
+        handoffPending = false;
+        heldSince = -1;
+        if (current.length < share) {
+            final int[] claimed = claim(connection, current, share);
+            if (claimed.length > current.length) {
+                if (claimedBefore || members > 1) {
+                    claimListener.run();
+                }
+                claimedBefore = true;
+                owned = claimed;
+                LOGGER.info("Claimed queue partitions, now owning {} of {} with {} indexers", Arrays.toString(claimed), PARTITION_COUNT, members);
+            }
+        }
+    }
+
+    /**
+     * @param partitions number of partitions
+     * @param members    number of indexers sharing them
+     * @return the max number of partitions an indexer should own
+     */
+    static int fairShare(int partitions, int members) {
+        return (partitions + members - 1) / members;
+    }
+
+    private int[] claim(Connection connection, int[] current, int share) throws SQLException {
+        final int[] claimed = Arrays.copyOf(current, share);
+        int count = current.length;
+        try (PreparedStatement statement = connection.prepareStatement("SELECT pg_try_advisory_lock(?, ?)")) {
+            for (int partition = 0; partition < PARTITION_COUNT && count < share; partition++) {
+                if (contains(current, partition)) {
+                    continue;
+                }
+                statement.setInt(1, partitionKey);
+                statement.setInt(2, partition);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next() && resultSet.getBoolean(1)) {
+                        claimed[count++] = partition;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(claimed, count);
+    }
+
+    private void giveUp(int[] partitions) {
+        if (lockConnection == null || partitions.length == 0) {
+            return;
+        }
+        try (PreparedStatement statement = lockConnection.prepareStatement("SELECT pg_advisory_unlock(?, ?)")) {
+            for (int partition : partitions) {
+                statement.setInt(1, partitionKey);
+                statement.setInt(2, partition);
+                statement.execute();
+            }
+        } catch (SQLException ex) {
+            // The locks go with the connection
+            LOGGER.warn("Could not give up queue partitions {}, closing their connection", Arrays.toString(partitions), ex);
+            owned = new int[0];
+            closeLockConnection();
+        }
+    }
+
+    private static boolean contains(int[] partitions, int partition) {
+        for (int owned : partitions) {
+            if (owned == partition) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the connection holding the locks, joining the members if it is new
+     */
+    private Connection getLockConnection() throws SQLException {
+        if (lockConnection == null) {
+            final Connection connection = rawrepoDataSource.getConnection();
+            connection.setAutoCommit(true);
+            try (PreparedStatement statement = connection.prepareStatement("SELECT pg_try_advisory_lock(?, ?)")) {
+                boolean member = false;
+                while (!member) {
+                    statement.setInt(1, memberKey);
+                    statement.setInt(2, ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        member = resultSet.next() && resultSet.getBoolean(1);
+                    }
+                }
+            } catch (SQLException ex) {
+                connection.close();
+                throw ex;
+            }
+            lockConnection = connection;
+        }
+        return lockConnection;
+    }
+
+    private void closeLockConnection() {
+        if (lockConnection != null) {
+            // The connection goes back to the pool, so it must not keep any locks
+            try (PreparedStatement statement = lockConnection.prepareStatement("SELECT pg_advisory_unlock_all()")) {
+                statement.execute();
+            } catch (SQLException ex) {
+                LOGGER.debug("Could not unlock queue partitions", ex);
+            }
+            try {
+                lockConnection.close();
+            } catch (SQLException ex) {
+                LOGGER.warn("Could not close queue partition connection", ex);
+            }
+            lockConnection = null;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package dk.dbc.rawrepo.indexer;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Backlog of the workers, as reported by the queue endpoint
+ * <p>
+ * The database figures are from the last sample, the rates are computed
+ * when the status is read.
+ */
+public class QueueStatus {
+
+    private final List<String> workers;
+    private final long depth;
+    private final boolean depthCapped;
+    private final Instant oldestQueued;
+    private final long failedJobs;
+    private final boolean failedJobsCapped;
+    private final Instant sampledAt;
+    private final double dequeueRate;
+    private final double indexRate;
+
+    QueueStatus(List<String> workers, long depth, boolean depthCapped, Instant oldestQueued, long failedJobs, boolean failedJobsCapped,
+                Instant sampledAt, double dequeueRate, double indexRate) {
+        this.workers = workers;
+        this.depth = depth;
+        this.depthCapped = depthCapped;
+        this.oldestQueued = oldestQueued;
+        this.failedJobs = failedJobs;
+        this.failedJobsCapped = failedJobsCapped;
+        this.sampledAt = sampledAt;
+        this.dequeueRate = dequeueRate;
+        this.indexRate = indexRate;
+    }
+
+    /**
+     * @return status before the first sample
+     */
+    static QueueStatus unknown(List<String> workers) {
+        return new QueueStatus(workers, -1, false, null, -1, false, null, 0, 0);
+    }
+
+    /**
+     * @param dequeueRate jobs dequeued per second
+     * @param indexRate   jobs indexed per second
+     * @return this sample with current rates
+     */
+    QueueStatus withRates(double dequeueRate, double indexRate) {
+        return new QueueStatus(workers, depth, depthCapped, oldestQueued, failedJobs, failedJobsCapped, sampledAt, dequeueRate, indexRate);
+    }
+
+    public List<String> getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return jobs waiting for the worker, -1 before the first sample
+     */
+    public long getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return true if counting stopped at QUEUE_STATS_MAX_COUNT, so the depth is at least {@link #getDepth()}
+     */
+    public boolean isDepthCapped() {
+        return depthCapped;
+    }
+
+    /**
+     * @return time the oldest waiting job was queued, null if the queue is empty
+     */
+    public String getOldestQueued() {
+        return oldestQueued == null ? null : oldestQueued.toString();
+    }
+
+    /**
+     * @return seconds since the oldest waiting job was queued, 0 if the queue is empty
+     */
+    public long getOldestAgeSeconds() {
+        return oldestQueued == null ? 0 : Math.max(0, Duration.between(oldestQueued, Instant.now()).getSeconds());
+    }
+
+    /**
+     * @return failed jobs of the worker, -1 before the first sample
+     */
+    public long getFailedJobs() {
+        return failedJobs;
+    }
+
+    public boolean isFailedJobsCapped() {
+        return failedJobsCapped;
+    }
+
+    public String getSampledAt() {
+        return sampledAt == null ? null : sampledAt.toString();
+    }
+
+    public double getDequeueRate() {
+        return dequeueRate;
+    }
+
+    public double getIndexRate() {
+        return indexRate;
+    }
+}
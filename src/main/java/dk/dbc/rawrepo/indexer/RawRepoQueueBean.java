@@ -4,32 +4,159 @@ import dk.dbc.rawrepo.queue.QueueException;
 import dk.dbc.rawrepo.queue.QueueItem;
 import dk.dbc.rawrepo.queue.RawRepoQueueDAO;
 import dk.dbc.util.Stopwatch;
+
+import jakarta.ejb.Stateless;
+import jakarta.inject.Inject;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
-import jakarta.ejb.Stateless;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 @Stateless
 public class RawRepoQueueBean {
-    private static final XLogger LOGGER_STOPWATCH = XLoggerFactory.getXLogger("dk.dbc.rawrepo.indexer.stopwatch");
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(RawRepoQueueBean.class);
+
+    // Dequeues like the queue dao does, limited to the rows in some partitions: the rows of the
+    // worker are deleted in order of priority, then queued, and returned as jobs. Rows another
+    // indexer is dequeuing are skipped. A change to how the dao dequeues must be made here too.
+    static final String DEQUEUE_PARTITIONED = "DELETE FROM queue WHERE ctid IN (" +
+            "SELECT ctid FROM queue WHERE worker = ? AND (hashtext(bibliographicrecordid) & 2147483647) % ? = ANY(?)" +
+            " ORDER BY priority, queued LIMIT ? FOR UPDATE SKIP LOCKED)" +
+            " RETURNING bibliographicrecordid, agencyid, worker, queued, priority";
+
+    // The row queueFail writes for a job is found by the job's own fields, as the dao stores
+    // the queued timestamp of the job it is given. A row that cannot be found is logged.
+    static final String CLEAR_FAILED = "DELETE FROM jobdiag WHERE bibliographicrecordid = ? AND agencyid = ? AND worker = ? AND queued = ?";
+    static final String UPDATE_FAILED = "UPDATE jobdiag SET error = ? WHERE bibliographicrecordid = ? AND agencyid = ? AND worker = ? AND queued = ?";
+
+    @Inject
+    IndexerMetrics metrics;
 
     public QueueItem dequeueJob(final RawRepoQueueDAO dao, String worker) throws QueueException {
         final Stopwatch stopwatch = new Stopwatch();
         final QueueItem job = dao.dequeue(worker);
 
-        if (job != null) {
-            LOGGER_STOPWATCH.info("dequeueJob took {} ms", stopwatch.getElapsedTime(TimeUnit.MILLISECONDS));
-        }
+        metrics.dequeued(elapsed(stopwatch), job == null ? 0 : 1);
 
         return job;
     }
 
+    public List<QueueItem> dequeueJobs(final RawRepoQueueDAO dao, String worker, int wanted) throws QueueException {
+        final Stopwatch stopwatch = new Stopwatch();
+        final List<QueueItem> jobs = dao.dequeue(worker, wanted);
+
+        metrics.dequeued(elapsed(stopwatch), jobs.size());
+
+        return jobs;
+    }
+
+    /**
+     * Dequeues jobs whose bibliographic record id hashes to one of the given partitions
+     * <p>
+     * The jobs are dequeued in the same order as by
+     * {@link #dequeueJobs(RawRepoQueueDAO, String, int)}, and built from the
+     * same columns of the queue.
+     *
+     * @param connection     connection with the current transaction
+     * @param worker         the worker to dequeue for
+     * @param partitionCount number of partitions the queue is divided into
+     * @param partitions     partitions to dequeue from
+     * @param wanted         max number of jobs
+     * @return the dequeued jobs, empty if there are none in the partitions
+     * @throws SQLException if the queue could not be read
+     */
+    public List<QueueItem> dequeueJobs(final Connection connection, String worker, int partitionCount, int[] partitions, int wanted) throws SQLException {
+        if (partitions.length == 0) {
+            return Collections.emptyList();
+        }
+        final Stopwatch stopwatch = new Stopwatch();
+        final List<QueueItem> jobs = new ArrayList<>(wanted);
+        try (PreparedStatement statement = connection.prepareStatement(DEQUEUE_PARTITIONED)) {
+            final Integer[] partitionArray = new Integer[partitions.length];
+            for (int i = 0; i < partitions.length; i++) {
+                partitionArray[i] = partitions[i];
+            }
+            statement.setString(1, worker);
+            statement.setInt(2, partitionCount);
+            statement.setArray(3, connection.createArrayOf("int4", partitionArray));
+            statement.setInt(4, wanted);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    jobs.add(new QueueItem(resultSet.getString(1), resultSet.getInt(2), resultSet.getString(3),
+                            resultSet.getTimestamp(4), resultSet.getInt(5)));
+                }
+            }
+        }
+
+        metrics.dequeued(elapsed(stopwatch), jobs.size());
+
+        return jobs;
+    }
+
     public void queueFail(final RawRepoQueueDAO dao, QueueItem job, String error) throws QueueException {
         final Stopwatch stopwatch = new Stopwatch();
 
         dao.queueFail(job, error);
 
-        LOGGER_STOPWATCH.info("queueFail took {} ms", stopwatch.getElapsedTime(TimeUnit.MILLISECONDS));
+        metrics.queueFailed(elapsed(stopwatch), job.getAgencyId());
+    }
+
+    /**
+     * Clears the failure of a job that has since been indexed, see {@link JobRetries}
+     *
+     * @param connection connection with the current transaction
+     * @param job        the job marked as failed
+     * @throws SQLException if the failure could not be cleared
+     */
+    public void clearFailed(final Connection connection, QueueItem job) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(CLEAR_FAILED)) {
+            setJob(statement, 1, job);
+            if (statement.executeUpdate() == 0) {
+                LOGGER.warn("Found no failure of {} to clear", job);
+            }
+        }
+    }
+
+    /**
+     * Replaces the error of a job marked as failed with the error of a later retry, see {@link JobRetries}
+     * <p>
+     * If the failure cannot be found, it is written again, so the job is not lost.
+     *
+     * @param connection connection with the current transaction
+     * @param dao        queue dao bound to the current transaction
+     * @param job        the job marked as failed
+     * @param error      the latest error
+     * @throws SQLException   if the failure could not be updated
+     * @throws QueueException if the failure could not be written again
+     */
+    public void updateFailed(final Connection connection, final RawRepoQueueDAO dao, QueueItem job, String error) throws SQLException, QueueException {
+        try (PreparedStatement statement = connection.prepareStatement(UPDATE_FAILED)) {
+            statement.setString(1, error);
+            setJob(statement, 2, job);
+            if (statement.executeUpdate() > 0) {
+                return;
+            }
+        }
+        LOGGER.warn("Found no failure of {} to update, writing it again", job);
+        dao.queueFail(job, error);
+    }
+
+    private static void setJob(PreparedStatement statement, int first, QueueItem job) throws SQLException {
+        statement.setString(first, job.getBibliographicRecordId());
+        statement.setInt(first + 1, job.getAgencyId());
+        statement.setString(first + 2, job.getWorker());
+        statement.setTimestamp(first + 3, job.getQueued());
+    }
+
+    private static Duration elapsed(Stopwatch stopwatch) {
+        return Duration.ofNanos(stopwatch.getElapsedTime(TimeUnit.NANOSECONDS));
     }
 }
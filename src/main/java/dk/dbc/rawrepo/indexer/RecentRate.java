@@ -0,0 +1,51 @@
+package dk.dbc.rawrepo.indexer;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Events per second over the last minute or so
+ * <p>
+ * Events are counted in one second buckets in a ring, so adding is cheap
+ * and the rate is the sum of the complete buckets divided by their number.
+ * The bucket of the current second is left out, as it is still filling up.
+ */
+class RecentRate {
+
+    private final long[] buckets;
+    private final long[] seconds;
+    private final LongSupplier clock;
+
+    /**
+     * @param windowSeconds number of complete seconds the rate is computed over
+     * @param clock         current time in ms
+     */
+    RecentRate(int windowSeconds, LongSupplier clock) {
+        this.buckets = new long[windowSeconds + 1];
+        this.seconds = new long[windowSeconds + 1];
+        this.clock = clock;
+    }
+
+    synchronized void add(long events) {
+        final long second = clock.getAsLong() / 1000;
+        final int index = (int) (second % buckets.length);
+        if (seconds[index] != second) {
+            seconds[index] = second;
+            buckets[index] = 0;
+        }
+        buckets[index] += events;
+    }
+
+    /**
+     * @return average events per second over the window
+     */
+    synchronized double perSecond() {
+        final long now = clock.getAsLong() / 1000;
+        long events = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            if (seconds[i] < now && seconds[i] >= now - (buckets.length - 1)) {
+                events += buckets[i];
+            }
+        }
+        return (double) events / (buckets.length - 1);
+    }
+}
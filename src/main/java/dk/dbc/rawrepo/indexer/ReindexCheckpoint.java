@@ -0,0 +1,164 @@
+package dk.dbc.rawrepo.indexer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Progress of a full reindex, saved after every completed batch
+ * <p>
+ * Records are read in (bibliographicRecordId, agencyId) order, so the id of
+ * the last record of the last completed batch is enough to resume. The
+ * filter is saved with it, so a checkpoint is only resumed by a reindex of
+ * the same records.
+ */
+class ReindexCheckpoint {
+
+    private static final String AGENCY_ID = "agencyId";
+    private static final String MODIFIED_SINCE = "modifiedSince";
+    private static final String LAST_BIBLIOGRAPHIC_RECORD_ID = "lastBibliographicRecordId";
+    private static final String LAST_AGENCY_ID = "lastAgencyId";
+    private static final String PROCESSED = "processed";
+    private static final String FAILED = "failed";
+    private static final String COMPLETED = "completed";
+
+    private final Integer agencyId;
+    private final Instant modifiedSince;
+    private String lastBibliographicRecordId;
+    private int lastAgencyId;
+    private long processed;
+    private long failed;
+    private boolean completed;
+
+    /**
+     * @param agencyId      only records of this agency, or null for all
+     * @param modifiedSince only records modified at or after this time, or null for all
+     */
+    ReindexCheckpoint(Integer agencyId, Instant modifiedSince) {
+        this.agencyId = agencyId;
+        this.modifiedSince = modifiedSince;
+    }
+
+    Integer getAgencyId() {
+        return agencyId;
+    }
+
+    Instant getModifiedSince() {
+        return modifiedSince;
+    }
+
+    /**
+     * @return bibliographicRecordId of the last record indexed, or null if nothing has been indexed yet
+     */
+    String getLastBibliographicRecordId() {
+        return lastBibliographicRecordId;
+    }
+
+    int getLastAgencyId() {
+        return lastAgencyId;
+    }
+
+    long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * @return number of records left out, as they could not be transformed or solr rejected them
+     */
+    long getFailed() {
+        return failed;
+    }
+
+    boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * @param other another checkpoint
+     * @return true if both checkpoints are for the same records
+     */
+    boolean hasSameFilter(ReindexCheckpoint other) {
+        return Objects.equals(agencyId, other.agencyId) && Objects.equals(modifiedSince, other.modifiedSince);
+    }
+
+    /**
+     * Record that a batch, and every batch before it, has been indexed
+     *
+     * @param bibliographicRecordId id of the last record in the batch
+     * @param agencyId              agency of the last record in the batch
+     * @param count                 number of records in the batch
+     * @param failed                number of records in the batch that were left out
+     */
+    void advance(String bibliographicRecordId, int agencyId, int count, int failed) {
+        this.lastBibliographicRecordId = bibliographicRecordId;
+        this.lastAgencyId = agencyId;
+        this.processed += count;
+        this.failed += failed;
+    }
+
+    void complete() {
+        this.completed = true;
+    }
+
+    /**
+     * Write the checkpoint next to the target and move it into place
+     *
+     * @param path checkpoint file
+     * @throws IOException if the file could not be written
+     */
+    void save(Path path) throws IOException {
+        final Properties properties = new Properties();
+        if (agencyId != null) {
+            properties.setProperty(AGENCY_ID, agencyId.toString());
+        }
+        if (modifiedSince != null) {
+            properties.setProperty(MODIFIED_SINCE, modifiedSince.toString());
+        }
+        if (lastBibliographicRecordId != null) {
+            properties.setProperty(LAST_BIBLIOGRAPHIC_RECORD_ID, lastBibliographicRecordId);
+            properties.setProperty(LAST_AGENCY_ID, Integer.toString(lastAgencyId));
+        }
+        properties.setProperty(PROCESSED, Long.toString(processed));
+        properties.setProperty(FAILED, Long.toString(failed));
+        properties.setProperty(COMPLETED, Boolean.toString(completed));
+
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            properties.store(writer, "rawrepo-solr-indexer reindex checkpoint");
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param path checkpoint file
+     * @return the saved checkpoint, or null if there is none
+     * @throws IOException if the file could not be read
+     */
+    static ReindexCheckpoint load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        final Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        final String agencyId = properties.getProperty(AGENCY_ID);
+        final String modifiedSince = properties.getProperty(MODIFIED_SINCE);
+        final ReindexCheckpoint checkpoint = new ReindexCheckpoint(
+                agencyId == null ? null : Integer.valueOf(agencyId),
+                modifiedSince == null ? null : Instant.parse(modifiedSince));
+        checkpoint.lastBibliographicRecordId = properties.getProperty(LAST_BIBLIOGRAPHIC_RECORD_ID);
+        checkpoint.lastAgencyId = Integer.parseInt(properties.getProperty(LAST_AGENCY_ID, "0"));
+        checkpoint.processed = Long.parseLong(properties.getProperty(PROCESSED, "0"));
+        checkpoint.failed = Long.parseLong(properties.getProperty(FAILED, "0"));
+        checkpoint.completed = Boolean.parseBoolean(properties.getProperty(COMPLETED, "false"));
+        return checkpoint;
+    }
+}
@@ -0,0 +1,60 @@
+package dk.dbc.rawrepo.indexer;
+
+/**
+ * Snapshot of the full reindex, as reported by the reindex endpoint
+ */
+public class ReindexStatus {
+
+    private final String state;
+    private final Integer agencyId;
+    private final String modifiedSince;
+    private final long processed;
+    private final long failed;
+    private final String lastRecordId;
+    private final String startedAt;
+    private final String error;
+
+    ReindexStatus(String state, ReindexCheckpoint checkpoint, String startedAt, String error) {
+        this.state = state;
+        this.agencyId = checkpoint == null ? null : checkpoint.getAgencyId();
+        this.modifiedSince = checkpoint == null || checkpoint.getModifiedSince() == null ? null : checkpoint.getModifiedSince().toString();
+        this.processed = checkpoint == null ? 0 : checkpoint.getProcessed();
+        this.failed = checkpoint == null ? 0 : checkpoint.getFailed();
+        this.lastRecordId = checkpoint == null || checkpoint.getLastBibliographicRecordId() == null ? null :
+                checkpoint.getLastBibliographicRecordId() + ":" + checkpoint.getLastAgencyId();
+        this.startedAt = startedAt;
+        this.error = error;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public Integer getAgencyId() {
+        return agencyId;
+    }
+
+    public String getModifiedSince() {
+        return modifiedSince;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public String getLastRecordId() {
+        return lastRecordId;
+    }
+
+    public String getStartedAt() {
+        return startedAt;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
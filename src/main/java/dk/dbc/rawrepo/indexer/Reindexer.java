@@ -0,0 +1,318 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.rawrepo.dto.RecordIdDTO;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import jakarta.ejb.ConcurrencyManagement;
+import jakarta.ejb.ConcurrencyManagementType;
+import jakarta.ejb.EJB;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.enterprise.concurrent.ManagedThreadFactory;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Full reindex, bypassing the queue
+ * <p>
+ * Record ids are streamed straight from the rawrepo records table, in pages
+ * of REINDEX_BATCH_SIZE ids, optionally limited to one agency and to
+ * records modified since a given time. Each page is indexed as one batch
+ * with one solr update, with REINDEX_THREADS batches in flight, and solr is
+ * only committed when every record has been indexed. Records that cannot be
+ * transformed, or that solr rejects, are logged and counted, and the
+ * reindex goes on without them.
+ * <p>
+ * A checkpoint is saved once a batch, and every batch before it, has been
+ * indexed. A reindex that did not complete is resumed from the checkpoint
+ * at startup, so the checkpoint file has to be on a volume that survives a
+ * restart. Without REINDEX_CHECKPOINT_FILE no reindex can be started. The
+ * queue keeps being processed by the scheduler meanwhile.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class Reindexer {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(Reindexer.class);
+
+    static final String STATE_IDLE = "idle";
+    static final String STATE_RUNNING = "running";
+    static final String STATE_STOPPING = "stopping";
+    static final String STATE_COMPLETED = "completed";
+    static final String STATE_FAILED = "failed";
+
+    @Inject
+    @ConfigProperty(name = "REINDEX_BATCH_SIZE", defaultValue = "1000")
+    protected int REINDEX_BATCH_SIZE;
+
+    @Inject
+    @ConfigProperty(name = "REINDEX_THREADS", defaultValue = "4")
+    protected int REINDEX_THREADS;
+
+    @Inject
+    @ConfigProperty(name = "REINDEX_CHECKPOINT_FILE")
+    protected Optional<String> REINDEX_CHECKPOINT_FILE;
+
+    @Resource(lookup = "jdbc/rawrepo")
+    protected DataSource rawrepoDataSource;
+
+    @Resource
+    ManagedThreadFactory threadFactory;
+
+    @EJB
+    Indexer indexer;
+
+    private volatile String state = STATE_IDLE;
+    private volatile ReindexCheckpoint checkpoint;
+    private volatile String startedAt;
+    private volatile String error;
+    private Thread thread;
+
+    @PostConstruct
+    public void create() {
+        if (!isEnabled()) {
+            LOGGER.info("Full reindex is disabled, as REINDEX_CHECKPOINT_FILE is not set");
+            return;
+        }
+        try {
+            final ReindexCheckpoint saved = ReindexCheckpoint.load(getCheckpointPath());
+            if (saved != null && !saved.isCompleted()) {
+                LOGGER.info("Resuming reindex after {} records", saved.getProcessed());
+                start(saved);
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("Could not resume reindex from {}", REINDEX_CHECKPOINT_FILE.get(), ex);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        stop();
+        final Thread running = thread;
+        if (running != null) {
+            try {
+                running.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Start a reindex
+     *
+     * @param agencyId      only records of this agency, or null for all
+     * @param modifiedSince only records modified at or after this time, or null for all
+     * @param resume        continue from the checkpoint, if it is for the same records and did not complete
+     * @return status of the started reindex
+     * @throws IllegalStateException if a reindex is already running, or reindexing is disabled
+     * @throws IOException           if the checkpoint could not be read
+     */
+    public synchronized ReindexStatus start(Integer agencyId, Instant modifiedSince, boolean resume) throws IOException {
+        if (!isEnabled()) {
+            throw new IllegalStateException("REINDEX_CHECKPOINT_FILE is not set");
+        }
+        ReindexCheckpoint next = new ReindexCheckpoint(agencyId, modifiedSince);
+        if (resume) {
+            final ReindexCheckpoint saved = ReindexCheckpoint.load(getCheckpointPath());
+            if (saved != null && !saved.isCompleted() && saved.hasSameFilter(next)) {
+                LOGGER.info("Resuming reindex after {} records", saved.getProcessed());
+                next = saved;
+            }
+        }
+        start(next);
+        return getStatus();
+    }
+
+    private synchronized void start(ReindexCheckpoint next) {
+        if (thread != null && thread.isAlive()) {
+            throw new IllegalStateException("A reindex is already " + state);
+        }
+        checkpoint = next;
+        startedAt = Instant.now().toString();
+        error = null;
+        state = STATE_RUNNING;
+        thread = threadFactory.newThread(() -> run(next));
+        thread.setName("reindex");
+        thread.start();
+    }
+
+    /**
+     * Stop the running reindex once the batches in flight are done, keeping its checkpoint
+     */
+    public void stop() {
+        if (STATE_RUNNING.equals(state)) {
+            state = STATE_STOPPING;
+        }
+    }
+
+    public ReindexStatus getStatus() {
+        return new ReindexStatus(state, checkpoint, startedAt, error);
+    }
+
+    private void run(ReindexCheckpoint checkpoint) {
+        LOGGER.info("Reindexing agency {} modified since {}, {} records per batch with {} threads",
+                checkpoint.getAgencyId(), checkpoint.getModifiedSince(), REINDEX_BATCH_SIZE, REINDEX_THREADS);
+        final ExecutorService executor = Executors.newFixedThreadPool(REINDEX_THREADS, threadFactory);
+        final Deque<PendingBatch> pending = new ArrayDeque<>();
+        try (Connection connection = rawrepoDataSource.getConnection()) {
+            String lastBibliographicRecordId = checkpoint.getLastBibliographicRecordId();
+            int lastAgencyId = checkpoint.getLastAgencyId();
+            while (STATE_RUNNING.equals(state)) {
+                final List<RecordIdDTO> recordIds = readRecordIds(connection, checkpoint, lastBibliographicRecordId, lastAgencyId);
+                if (recordIds.isEmpty()) {
+                    break;
+                }
+                final RecordIdDTO last = recordIds.get(recordIds.size() - 1);
+                pending.add(new PendingBatch(executor.submit(() -> indexer.reindex(recordIds)), last, recordIds.size()));
+                lastBibliographicRecordId = last.getBibliographicRecordId();
+                lastAgencyId = last.getAgencyId();
+                while (pending.size() >= REINDEX_THREADS) {
+                    completeOldest(pending, checkpoint);
+                }
+            }
+            while (!pending.isEmpty()) {
+                completeOldest(pending, checkpoint);
+            }
+            if (STATE_RUNNING.equals(state)) {
+                indexer.commitSolr();
+                checkpoint.complete();
+                checkpoint.save(getCheckpointPath());
+                state = STATE_COMPLETED;
+                LOGGER.info("Reindex completed, {} records of which {} were left out", checkpoint.getProcessed(), checkpoint.getFailed());
+            } else {
+                state = STATE_IDLE;
+                LOGGER.info("Reindex stopped after {} records", checkpoint.getProcessed());
+            }
+        } catch (Exception ex) {
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            LOGGER.error("Reindex failed after {} records", checkpoint.getProcessed(), ex);
+            for (PendingBatch batch : pending) {
+                batch.future.cancel(true);
+            }
+            error = ex.getMessage();
+            state = STATE_FAILED;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Wait for the oldest batch in flight and checkpoint it
+     */
+    private void completeOldest(Deque<PendingBatch> pending, ReindexCheckpoint checkpoint) throws Exception {
+        final PendingBatch batch = pending.poll();
+        final int failed;
+        try {
+            failed = batch.future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
+        }
+        checkpoint.advance(batch.last.getBibliographicRecordId(), batch.last.getAgencyId(), batch.count, failed);
+        checkpoint.save(getCheckpointPath());
+        LOGGER.debug("Reindexed {} records, up to {}", checkpoint.getProcessed(), batch.last);
+    }
+
+    private List<RecordIdDTO> readRecordIds(Connection connection, ReindexCheckpoint checkpoint,
+                                            String lastBibliographicRecordId, int lastAgencyId) throws SQLException {
+        final String query = createQuery(lastBibliographicRecordId != null, checkpoint.getAgencyId() != null, checkpoint.getModifiedSince() != null);
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            int parameter = 1;
+            if (lastBibliographicRecordId != null) {
+                statement.setString(parameter++, lastBibliographicRecordId);
+                statement.setInt(parameter++, lastAgencyId);
+            }
+            if (checkpoint.getAgencyId() != null) {
+                statement.setInt(parameter++, checkpoint.getAgencyId());
+            }
+            if (checkpoint.getModifiedSince() != null) {
+                statement.setTimestamp(parameter++, Timestamp.from(checkpoint.getModifiedSince()));
+            }
+            statement.setInt(parameter, REINDEX_BATCH_SIZE);
+            final List<RecordIdDTO> recordIds = new ArrayList<>(REINDEX_BATCH_SIZE);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    recordIds.add(new RecordIdDTO(resultSet.getString(1), resultSet.getInt(2)));
+                }
+            }
+            return recordIds;
+        }
+    }
+
+    /**
+     * Keyset paged query for the next record ids, in primary key order
+     *
+     * @param after         true to start after a given (bibliographicrecordid, agencyid)
+     * @param agency        true to limit to one agency
+     * @param modifiedSince true to limit to records modified since a given time
+     * @return sql
+     */
+    static String createQuery(boolean after, boolean agency, boolean modifiedSince) {
+        final StringBuilder sb = new StringBuilder("SELECT bibliographicrecordid, agencyid FROM records");
+        String glue = " WHERE ";
+        if (after) {
+            sb.append(glue).append("(bibliographicrecordid, agencyid) > (?, ?)");
+            glue = " AND ";
+        }
+        if (agency) {
+            sb.append(glue).append("agencyid = ?");
+            glue = " AND ";
+        }
+        if (modifiedSince) {
+            sb.append(glue).append("modified >= ?");
+        }
+        sb.append(" ORDER BY bibliographicrecordid, agencyid LIMIT ?");
+        return sb.toString();
+    }
+
+    /**
+     * @return true if a checkpoint file is set, which a reindex needs to resume after a restart
+     */
+    public boolean isEnabled() {
+        return REINDEX_CHECKPOINT_FILE.isPresent();
+    }
+
+    private Path getCheckpointPath() {
+        return Paths.get(REINDEX_CHECKPOINT_FILE.get());
+    }
+
+    private static class PendingBatch {
+        private final Future<Integer> future;
+        private final RecordIdDTO last;
+        private final int count;
+
+        private PendingBatch(Future<Integer> future, RecordIdDTO last, int count) {
+            this.future = future;
+            this.last = last;
+            this.count = count;
+        }
+    }
+}
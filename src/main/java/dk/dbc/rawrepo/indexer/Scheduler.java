@@ -14,8 +14,15 @@ public class Scheduler {
     @EJB
     private Indexer indexer;
 
+    @EJB
+    private QueueListener queueListener;
+
     @Schedule(second = "*/5", minute = "*", hour = "*")
     public void performIndexing() {
+        // The listener drives the indexer itself while it is running
+        if (queueListener.isActive()) {
+            return;
+        }
         try {
             indexer.performWork();
         } catch (Exception e) {
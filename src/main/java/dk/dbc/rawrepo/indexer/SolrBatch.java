@@ -0,0 +1,83 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the documents and deletes for a batch of queue jobs, so they can be
+ * sent to solr as a single update request
+ */
+class SolrBatch {
+
+    private final List<SolrInputDocument> documents = new ArrayList<>();
+    private final List<String> deletedIds = new ArrayList<>();
+
+    void add(SolrInputDocument document) {
+        documents.add(document);
+    }
+
+    void delete(String id) {
+        deletedIds.add(id);
+    }
+
+    List<SolrInputDocument> getDocuments() {
+        return documents;
+    }
+
+    List<String> getDeletedIds() {
+        return deletedIds;
+    }
+
+    int size() {
+        return documents.size() + deletedIds.size();
+    }
+
+    boolean isEmpty() {
+        return documents.isEmpty() && deletedIds.isEmpty();
+    }
+
+    /**
+     * @return ids of the documents followed by the deleted ids
+     */
+    List<String> getIds() {
+        final List<String> ids = new ArrayList<>(size());
+        for (SolrInputDocument document : documents) {
+            ids.add((String) document.getFieldValue("id"));
+        }
+        ids.addAll(deletedIds);
+        return ids;
+    }
+
+    /**
+     * Split in two halves, taking the documents before the deletes
+     *
+     * @return the two halves, the first one the largest if the size is odd
+     */
+    List<SolrBatch> split() {
+        final int middle = (size() + 1) / 2;
+        final SolrBatch first = new SolrBatch();
+        final SolrBatch second = new SolrBatch();
+        for (int i = 0; i < documents.size(); i++) {
+            (i < middle ? first : second).add(documents.get(i));
+        }
+        for (int i = 0; i < deletedIds.size(); i++) {
+            (documents.size() + i < middle ? first : second).delete(deletedIds.get(i));
+        }
+        return Arrays.asList(first, second);
+    }
+
+    UpdateRequest toUpdateRequest() {
+        final UpdateRequest request = new UpdateRequest();
+        if (!documents.isEmpty()) {
+            request.add(documents);
+        }
+        if (!deletedIds.isEmpty()) {
+            request.deleteById(deletedIds);
+        }
+        return request;
+    }
+}
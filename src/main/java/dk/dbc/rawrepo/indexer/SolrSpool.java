@@ -0,0 +1,317 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.rawrepo.queue.QueueItem;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped file of solr updates that could not be sent
+ * <p>
+ * While solr is unavailable, batches are appended here in javabin and
+ * forced to disk, after which their queue jobs can be acknowledged. The jobs
+ * are kept with the batch, so they can be marked as failed if solr rejects
+ * the batch when it is sent. Once solr is back, the batches are read back in
+ * the order they were written, several at a time, and marked as consumed
+ * when solr has accepted them.
+ * <p>
+ * The file starts with a header holding the generation and the position of
+ * the first entry not yet consumed. Each entry carries its length, the
+ * generation and a checksum. When everything has been consumed, the
+ * generation is bumped and writing starts over at the beginning, so entries
+ * left over from an older generation, or torn by a crash while appending,
+ * are never mistaken for pending updates when the file is opened again.
+ */
+class SolrSpool implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(SolrSpool.class);
+
+    private static final int MAGIC = 0x53_50_4f_4c;
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+    private static final int GENERATION_OFFSET = 4;
+    private static final int READ_POSITION_OFFSET = 12;
+    private static final int ENTRY_HEADER_SIZE = 4 + 8 + 8;
+
+    private static final String DOCUMENTS = "docs";
+    private static final String DELETES = "deletes";
+    private static final String JOBS = "jobs";
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private long generation;
+    private int readPosition;
+    private int writePosition;
+    private int entries;
+
+    /**
+     * Open or create a spool file, recovering the entries not yet consumed
+     *
+     * @param file     spool file
+     * @param capacity size of the file in bytes, at most 2 GB
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    SolrSpool(Path file, int capacity) throws IOException {
+        if (capacity <= HEADER_SIZE + ENTRY_HEADER_SIZE) {
+            throw new IllegalArgumentException("Spool capacity too small: " + capacity);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.capacity = (int) Math.max(capacity, Math.min(channel.size(), Integer.MAX_VALUE));
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+        if (buffer.getInt(0) == MAGIC) {
+            generation = buffer.getLong(GENERATION_OFFSET);
+            readPosition = (int) buffer.getLong(READ_POSITION_OFFSET);
+        } else {
+            generation = 1;
+            readPosition = HEADER_SIZE;
+            buffer.putInt(0, MAGIC);
+            writeHeader();
+        }
+        recover();
+        log.info("Opened spool {} of {} bytes with {} pending entries", file, this.capacity, entries);
+    }
+
+    private void recover() {
+        int position = readPosition;
+        entries = 0;
+        while (position + ENTRY_HEADER_SIZE <= capacity) {
+            final int length = buffer.getInt(position);
+            if (length <= 0 || position + ENTRY_HEADER_SIZE + length > capacity ||
+                buffer.getLong(position + 4) != generation ||
+                buffer.getLong(position + 12) != checksum(position + ENTRY_HEADER_SIZE, length)) {
+                break;
+            }
+            position += ENTRY_HEADER_SIZE + length;
+            entries++;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * Append a batch and force it to disk
+     *
+     * @param batch documents and deletes
+     * @param jobs  the jobs the batch was built from
+     * @return false if the spool has no room for the batch
+     * @throws IOException if the batch cannot be serialized
+     */
+    synchronized boolean append(SolrBatch batch, List<QueueItem> jobs) throws IOException {
+        final byte[] payload = marshal(batch, jobs);
+        if (writePosition + ENTRY_HEADER_SIZE + payload.length > capacity) {
+            return false;
+        }
+        final int position = writePosition;
+        slice(position + ENTRY_HEADER_SIZE, payload.length).put(payload);
+        buffer.putLong(position + 12, checksum(position + ENTRY_HEADER_SIZE, payload.length));
+        buffer.putLong(position + 4, generation);
+        buffer.putInt(position, payload.length);
+        buffer.force();
+        writePosition = position + ENTRY_HEADER_SIZE + payload.length;
+        entries++;
+        return true;
+    }
+
+    /**
+     * @return true if no entries are waiting to be sent
+     */
+    synchronized boolean isEmpty() {
+        return entries == 0;
+    }
+
+    /**
+     * @return number of entries waiting to be sent
+     */
+    synchronized int getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return bytes used by the entries waiting to be sent
+     */
+    synchronized long getPendingBytes() {
+        return writePosition - readPosition;
+    }
+
+    /**
+     * Read the oldest entries, merged into one batch
+     * <p>
+     * Entries are merged until the batch holds at least the given number of
+     * documents and deletes, or the next entry touches a document already in
+     * the batch, as solr would not apply the merged updates in order.
+     *
+     * @param maxSize stop merging at this many documents and deletes, at least one entry is always read
+     * @return the merged entries, or null if the spool is empty
+     * @throws IOException if an entry cannot be read
+     */
+    synchronized Replay peek(int maxSize) throws IOException {
+        if (entries == 0) {
+            return null;
+        }
+        final SolrBatch batch = new SolrBatch();
+        final List<QueueItem> jobs = new ArrayList<>();
+        final Set<String> ids = new HashSet<>();
+        int position = readPosition;
+        int count = 0;
+        while (count < entries && batch.size() < maxSize) {
+            final int length = buffer.getInt(position);
+            final Map<String, Object> entry = unmarshal(position + ENTRY_HEADER_SIZE, length);
+            final SolrBatch entryBatch = toBatch(entry);
+            final Set<String> entryIds = new HashSet<>(entryBatch.getIds());
+            if (count > 0 && !Collections.disjoint(ids, entryIds)) {
+                break;
+            }
+            ids.addAll(entryIds);
+            entryBatch.getDocuments().forEach(batch::add);
+            entryBatch.getDeletedIds().forEach(batch::delete);
+            jobs.addAll(toJobs(entry));
+            position += ENTRY_HEADER_SIZE + length;
+            count++;
+        }
+        return new Replay(batch, jobs, position, count);
+    }
+
+    /**
+     * Mark entries as sent, starting over when the spool is empty
+     *
+     * @param replay entries returned by {@link #peek(int)}
+     */
+    synchronized void consumed(Replay replay) {
+        entries -= replay.entries;
+        if (entries == 0) {
+            generation++;
+            readPosition = HEADER_SIZE;
+            writePosition = HEADER_SIZE;
+        } else {
+            readPosition = replay.end;
+        }
+        writeHeader();
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private void writeHeader() {
+        buffer.putLong(GENERATION_OFFSET, generation);
+        buffer.putLong(READ_POSITION_OFFSET, readPosition);
+    }
+
+    private long checksum(int position, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(slice(position, length));
+        return crc.getValue();
+    }
+
+    private ByteBuffer slice(int position, int length) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(position + length).position(position);
+        return slice;
+    }
+
+    private static byte[] marshal(SolrBatch batch, List<QueueItem> jobs) throws IOException {
+        final List<List<Object>> jobFields = new ArrayList<>(jobs.size());
+        for (QueueItem job : jobs) {
+            jobFields.add(Arrays.asList(job.getBibliographicRecordId(), job.getAgencyId(), job.getWorker(),
+                    job.getQueued() == null ? null : job.getQueued().getTime(), job.getPriority()));
+        }
+        final Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put(DOCUMENTS, batch.getDocuments());
+        entry.put(DELETES, batch.getDeletedIds());
+        entry.put(JOBS, jobFields);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JavaBinCodec codec = new JavaBinCodec()) {
+            codec.marshal(entry, bytes);
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> unmarshal(int position, int length) throws IOException {
+        final byte[] payload = new byte[length];
+        slice(position, length).get(payload);
+        try (JavaBinCodec codec = new JavaBinCodec()) {
+            return (Map<String, Object>) codec.unmarshal(new ByteArrayInputStream(payload));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SolrBatch toBatch(Map<String, Object> entry) {
+        final SolrBatch batch = new SolrBatch();
+        ((List<SolrInputDocument>) entry.get(DOCUMENTS)).forEach(batch::add);
+        ((List<String>) entry.get(DELETES)).forEach(batch::delete);
+        return batch;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<QueueItem> toJobs(Map<String, Object> entry) {
+        final List<List<Object>> jobFields = (List<List<Object>>) entry.get(JOBS);
+        if (jobFields == null) {
+            return Collections.emptyList();
+        }
+        final List<QueueItem> jobs = new ArrayList<>(jobFields.size());
+        for (List<Object> fields : jobFields) {
+            final Long queued = (Long) fields.get(3);
+            jobs.add(new QueueItem((String) fields.get(0), (Integer) fields.get(1), (String) fields.get(2),
+                    queued == null ? null : new Timestamp(queued), (Integer) fields.get(4)));
+        }
+        return jobs;
+    }
+
+    /**
+     * Entries read from the spool, not consumed until solr has accepted them
+     */
+    static class Replay {
+
+        private final SolrBatch batch;
+        private final List<QueueItem> jobs;
+        private final int end;
+        private final int entries;
+
+        private Replay(SolrBatch batch, List<QueueItem> jobs, int end, int entries) {
+            this.batch = batch;
+            this.jobs = jobs;
+            this.end = end;
+            this.entries = entries;
+        }
+
+        SolrBatch getBatch() {
+            return batch;
+        }
+
+        /**
+         * @return the jobs the entries were built from
+         */
+        List<QueueItem> getJobs() {
+            return jobs;
+        }
+
+        int getEntries() {
+            return entries;
+        }
+    }
+}
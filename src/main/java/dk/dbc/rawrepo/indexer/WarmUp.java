@@ -0,0 +1,173 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.rawrepo.dto.RecordDTO;
+import dk.dbc.rawrepo.dto.RecordIdDTO;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import jakarta.ejb.ConcurrencyManagement;
+import jakarta.ejb.ConcurrencyManagementType;
+import jakarta.ejb.EJB;
+import jakarta.ejb.Singleton;
+import jakarta.ejb.Startup;
+import jakarta.enterprise.concurrent.ManagedThreadFactory;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Warms up the index engine before the indexer takes work from the queue
+ * <p>
+ * Right after a deploy the transform of a record takes several times
+ * longer than it will once the javascript engine and the JIT have warmed
+ * up. When enabled, the bundled sample records of each mimetype are
+ * transformed in rounds, without writing anything, until the time per
+ * record of the last rounds agree, or WARMUP_MAX_MS has passed. Until then
+ * the indexer does not dequeue and the status endpoint reports the service
+ * as unavailable.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class WarmUp {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(WarmUp.class);
+
+    private static final Map<String, String> SAMPLES = new LinkedHashMap<>();
+
+    static {
+        SAMPLES.put("warmup/marcxchange.xml", Indexer.MIMETYPE_MARCXCHANGE);
+        SAMPLES.put("warmup/enrichment.xml", Indexer.MIMETYPE_ENRICHMENT);
+        SAMPLES.put("warmup/article.xml", Indexer.MIMETYPE_ARTICLE);
+        SAMPLES.put("warmup/authority.xml", Indexer.MIMETYPE_AUTHORITY);
+    }
+
+    // Each round transforms every sample this many times
+    private static final int ROUND_REPEAT = 50;
+    // Settled when this many rounds in a row agree within the tolerance
+    private static final int SETTLED_ROUNDS = 3;
+    private static final double SETTLED_TOLERANCE = 0.1;
+
+    @Inject
+    @ConfigProperty(name = "WARMUP_ENABLED", defaultValue = "false")
+    protected boolean WARMUP_ENABLED;
+
+    @Inject
+    @ConfigProperty(name = "WARMUP_MAX_MS", defaultValue = "60000")
+    protected long WARMUP_MAX_MS;
+
+    @Resource
+    protected ManagedThreadFactory threadFactory;
+
+    @EJB
+    Indexer indexer;
+
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean running;
+    private Thread thread;
+
+    @PostConstruct
+    public void create() {
+        if (!WARMUP_ENABLED) {
+            finished.countDown();
+            return;
+        }
+        LOGGER.info("Warming up the index engine for at most {} ms", WARMUP_MAX_MS);
+        running = true;
+        thread = threadFactory.newThread(this::run);
+        thread.setName("warm-up");
+        thread.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * @return true when the warm-up is over, or was never enabled
+     */
+    public boolean isDone() {
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * Wait for the warm-up to be over
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitDone() throws InterruptedException {
+        finished.await();
+    }
+
+    private void run() {
+        final long started = System.currentTimeMillis();
+        final List<Long> roundNanos = new ArrayList<>();
+        try {
+            final List<RecordDTO> round = createRound();
+            while (running && !isSettled(roundNanos, SETTLED_ROUNDS, SETTLED_TOLERANCE)) {
+                if (System.currentTimeMillis() - started >= WARMUP_MAX_MS) {
+                    LOGGER.warn("Transform time did not settle within {} ms, taking work anyway", WARMUP_MAX_MS);
+                    break;
+                }
+                final long before = System.nanoTime();
+                indexer.warmUp(round);
+                roundNanos.add((System.nanoTime() - before) / round.size());
+            }
+            LOGGER.info("Warmed up in {} rounds and {} ms, transforming a sample record in {} µs",
+                    roundNanos.size(), System.currentTimeMillis() - started,
+                    roundNanos.isEmpty() ? 0 : roundNanos.get(roundNanos.size() - 1) / 1000);
+        } catch (RuntimeException ex) {
+            LOGGER.error("Warm-up failed, taking work anyway", ex);
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private static List<RecordDTO> createRound() {
+        final List<RecordDTO> round = new ArrayList<>(SAMPLES.size() * ROUND_REPEAT);
+        final List<RecordDTO> samples = new ArrayList<>(SAMPLES.size());
+        final String now = Instant.now().toString();
+        SAMPLES.forEach((resource, mimetype) -> {
+            final RecordDTO record = new RecordDTO();
+            record.setRecordId(new RecordIdDTO(resource, 0));
+            record.setContent(ModuleBundle.read(WarmUp.class.getClassLoader(), resource).getBytes(StandardCharsets.UTF_8));
+            record.setMimetype(mimetype);
+            record.setCreated(now);
+            record.setModified(now);
+            record.setTrackingId("warm-up");
+            samples.add(record);
+        });
+        for (int i = 0; i < ROUND_REPEAT; i++) {
+            round.addAll(samples);
+        }
+        return round;
+    }
+
+    /**
+     * @param roundNanos time per record of each round so far
+     * @param rounds     number of rounds that must agree
+     * @param tolerance  max difference between the fastest and the slowest of those rounds, relative to the fastest
+     * @return true if the last rounds agree
+     */
+    static boolean isSettled(List<Long> roundNanos, int rounds, double tolerance) {
+        if (roundNanos.size() < rounds) {
+            return false;
+        }
+        final List<Long> last = roundNanos.subList(roundNanos.size() - rounds, roundNanos.size());
+        final long fastest = last.stream().mapToLong(Long::longValue).min().getAsLong();
+        final long slowest = last.stream().mapToLong(Long::longValue).max().getAsLong();
+        return slowest - fastest <= fastest * tolerance;
+    }
+}
@@ -0,0 +1,169 @@
+package dk.dbc.rawrepo.indexer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The queue workers served by one indexer, each with a weight
+ * <p>
+ * Workers are served weighted round robin: in each round a worker may
+ * dequeue as many times as its weight, one job or batch at a time, before
+ * the next worker gets its turn. A worker with an empty queue gives up the
+ * rest of its turn, so the other workers get all the capacity, but it is
+ * asked again in the next round. That way an urgent lane with a high weight
+ * waits for at most a single dequeue of a bulk lane.
+ */
+class WorkerLanes {
+
+    static class Lane {
+        private final String worker;
+        private final int weight;
+
+        Lane(String worker, int weight) {
+            this.worker = worker;
+            this.weight = weight;
+        }
+
+        String getWorker() {
+            return worker;
+        }
+
+        int getWeight() {
+            return weight;
+        }
+
+        @Override
+        public String toString() {
+            return worker + ":" + weight;
+        }
+    }
+
+    private final List<Lane> lanes;
+
+    WorkerLanes(List<Lane> lanes) {
+        if (lanes.isEmpty()) {
+            throw new IllegalArgumentException("No workers");
+        }
+        this.lanes = Collections.unmodifiableList(new ArrayList<>(lanes));
+    }
+
+    /**
+     * @param workers       worker names, each optionally followed by ':' and a weight, which defaults to 1
+     * @param defaultWorker the only worker if the list is empty
+     * @return lanes for the workers
+     * @throws IllegalArgumentException if a weight is not a positive number
+     */
+    static WorkerLanes of(List<String> workers, String defaultWorker) {
+        final List<Lane> lanes = new ArrayList<>();
+        for (String spec : workers) {
+            final String trimmed = spec.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            final int colon = trimmed.lastIndexOf(':');
+            if (colon < 0) {
+                lanes.add(new Lane(trimmed, 1));
+                continue;
+            }
+            final int weight;
+            try {
+                weight = Integer.parseInt(trimmed.substring(colon + 1).trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid weight in worker '" + trimmed + "'", ex);
+            }
+            if (weight < 1) {
+                throw new IllegalArgumentException("Weight of worker '" + trimmed + "' must be at least 1");
+            }
+            lanes.add(new Lane(trimmed.substring(0, colon).trim(), weight));
+        }
+        if (lanes.isEmpty()) {
+            lanes.add(new Lane(defaultWorker, 1));
+        }
+        return new WorkerLanes(lanes);
+    }
+
+    List<Lane> getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @return the worker names
+     */
+    List<String> getWorkers() {
+        final List<String> workers = new ArrayList<>(lanes.size());
+        for (Lane lane : lanes) {
+            workers.add(lane.worker);
+        }
+        return workers;
+    }
+
+    boolean contains(String worker) {
+        for (Lane lane : lanes) {
+            if (lane.worker.equals(worker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a new schedule, for one run through the queues
+     */
+    Schedule schedule() {
+        return new Schedule();
+    }
+
+    @Override
+    public String toString() {
+        return lanes.toString();
+    }
+
+    /**
+     * Which worker to dequeue for next, until every queue is empty
+     * <p>
+     * Not thread safe, a schedule belongs to one run.
+     */
+    class Schedule {
+        private final int[] credits = new int[lanes.size()];
+        private int current;
+        private boolean foundWork = true;
+
+        /**
+         * @return the lane to dequeue from next, or null if a whole round found no work
+         */
+        Lane next() {
+            while (true) {
+                for (int i = current; i < credits.length; i++) {
+                    if (credits[i] > 0) {
+                        current = i;
+                        return lanes.get(i);
+                    }
+                }
+                if (!foundWork) {
+                    return null;
+                }
+                // New round
+                for (int i = 0; i < credits.length; i++) {
+                    credits[i] = lanes.get(i).weight;
+                }
+                current = 0;
+                foundWork = false;
+            }
+        }
+
+        /**
+         * @param lane      the lane returned by {@link #next()}
+         * @param foundWork true if the dequeue found any jobs
+         */
+        void done(Lane lane, boolean foundWork) {
+            final int index = lanes.indexOf(lane);
+            if (foundWork) {
+                credits[index]--;
+                this.foundWork = true;
+            } else {
+                credits[index] = 0;
+            }
+        }
+    }
+}
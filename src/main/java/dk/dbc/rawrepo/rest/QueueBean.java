@@ -0,0 +1,31 @@
+package dk.dbc.rawrepo.rest;
+
+import dk.dbc.rawrepo.indexer.QueueMonitor;
+import dk.dbc.rawrepo.indexer.QueueStatus;
+import jakarta.ejb.EJB;
+import jakarta.ejb.Stateless;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+
+/**
+ * Backlog of the workers, for autoscaling
+ * <p>
+ * GET /api/queue reports the last sample of the queue depth, the age of the
+ * oldest waiting job and the failed jobs, along with the recent dequeue and
+ * index rates. The same figures are exposed on the metrics endpoint.
+ */
+@Stateless
+@Path("/api/queue")
+public class QueueBean {
+
+    @EJB
+    QueueMonitor queueMonitor;
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public QueueStatus getStatus() {
+        return queueMonitor.getStatus();
+    }
+}
@@ -0,0 +1,81 @@
+package dk.dbc.rawrepo.rest;
+
+import dk.dbc.rawrepo.indexer.ReindexStatus;
+import dk.dbc.rawrepo.indexer.Reindexer;
+import jakarta.ejb.EJB;
+import jakarta.ejb.Stateless;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Start, stop and follow a full reindex
+ * <p>
+ * POST /api/reindex?agency=870970&amp;modifiedSince=2024-01-01T00:00:00Z&amp;resume=true
+ * starts a reindex, GET /api/reindex reports its progress and DELETE
+ * /api/reindex stops it after the batches in flight.
+ */
+@Stateless
+@Path("/api/reindex")
+public class ReindexBean {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(ReindexBean.class);
+
+    @EJB
+    Reindexer reindexer;
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public ReindexStatus getStatus() {
+        return reindexer.getStatus();
+    }
+
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response start(@QueryParam("agency") Integer agencyId,
+                          @QueryParam("modifiedSince") String modifiedSince,
+                          @QueryParam("resume") @DefaultValue("true") boolean resume) {
+        if (!reindexer.isEnabled()) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity("Full reindex needs REINDEX_CHECKPOINT_FILE, on a volume that survives a restart")
+                    .type(MediaType.TEXT_PLAIN)
+                    .build();
+        }
+        final Instant since;
+        try {
+            since = modifiedSince == null || modifiedSince.isEmpty() ? null : Instant.parse(modifiedSince);
+        } catch (DateTimeParseException ex) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("modifiedSince must be an ISO-8601 instant, e.g. 2024-01-01T00:00:00Z")
+                    .type(MediaType.TEXT_PLAIN)
+                    .build();
+        }
+        try {
+            LOGGER.info("Reindex requested for agency {} modified since {}", agencyId, since);
+            return Response.accepted(reindexer.start(agencyId, since, resume)).build();
+        } catch (IllegalStateException ex) {
+            return Response.status(Response.Status.CONFLICT).entity(reindexer.getStatus()).build();
+        } catch (IOException ex) {
+            LOGGER.error("Could not start reindex", ex);
+            return Response.serverError().build();
+        }
+    }
+
+    @DELETE
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response stop() {
+        reindexer.stop();
+        return Response.accepted(reindexer.getStatus()).build();
+    }
+}
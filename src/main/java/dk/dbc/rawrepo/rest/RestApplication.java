@@ -9,7 +9,7 @@ import java.util.Set;
 
 @ApplicationPath("/")
 public class RestApplication extends Application {
-    private static final Set<Class<?>> classes = new HashSet<>(Arrays.asList(StatusBean.class));
+    private static final Set<Class<?>> classes = new HashSet<>(Arrays.asList(StatusBean.class, ReindexBean.class, QueueBean.class));
 
     @Override
     public Set<Class<?>> getClasses() {
@@ -5,85 +5,52 @@
 
 package dk.dbc.rawrepo.rest;
 
+import dk.dbc.rawrepo.indexer.HealthProber;
+import dk.dbc.rawrepo.indexer.HealthStatus;
+import dk.dbc.rawrepo.indexer.WarmUp;
 import dk.dbc.serviceutils.ServiceStatus;
-import jakarta.annotation.PostConstruct;
-import jakarta.annotation.Resource;
+import jakarta.ejb.EJB;
 import jakarta.ejb.Stateless;
-import jakarta.inject.Inject;
+import jakarta.ws.rs.GET;
 import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
-import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.Http2SolrClient;
-import org.eclipse.microprofile.config.inject.ConfigProperty;
-import org.slf4j.ext.XLogger;
-import org.slf4j.ext.XLoggerFactory;
 
-import javax.sql.DataSource;
-import java.io.IOException;
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Status of the database and solr, as last probed by the {@link HealthProber}
+ * <p>
+ * GET /api/health reports the result of the last probes, with their age and
+ * latency.
+ * <p>
+ * The service is not ready, and the status is 503, until the {@link WarmUp} is over.
+ */
 @Stateless
 @Path("/api")
 public class StatusBean implements ServiceStatus {
-    private static final XLogger LOGGER = XLoggerFactory.getXLogger(StatusBean.class);
-    private static final String IM_ALIVE_QUERY="select 1 alive";
-
-    @Resource(lookup = "jdbc/rawrepo")
-    public DataSource rawrepoDataSource;
-
-    @Inject
-    @ConfigProperty(name = "SOLR_URL", defaultValue = "SOLR_URL not set")
-    protected String SOLR_URL;
 
-    public static Http2SolrClient solrClient;
+    @EJB
+    HealthProber healthProber;
 
-    @PostConstruct
-    public void create() {
-        synchronized (StatusBean.class) {
-            if(solrClient == null) {
-                LOGGER.info("Initializing Solr client for: {}", SOLR_URL);
-                solrClient = new Http2SolrClient.Builder(SOLR_URL).useHttp1_1(true).build();
-            }
-        }
-    }
+    @EJB
+    WarmUp warmUp;
 
     boolean isDbAlive() {
-        LOGGER.entry();
-        String res = "";
-        boolean alive = true;
-        try (Connection connection = rawrepoDataSource.getConnection();
-             Statement stmt = connection.createStatement()) {
-                try (ResultSet resultSet = stmt.executeQuery(IM_ALIVE_QUERY)) {
-                    resultSet.next();
-                }
-        } catch (SQLException e) {
-            LOGGER.error("Status check db alive failed..", e);
-            alive = false;
-        } finally {
-            LOGGER.exit(res);
-        }
-        return alive;
+        return healthProber.isDbAlive();
     }
 
     boolean isSolrAlive() {
-        LOGGER.entry();
-        boolean alive = true;
-
-        // Test connection and return proper error if there is a problem
-        try {
-            solrClient.ping();
-        } catch (SolrServerException | IOException ex) {
-            alive = false;
-            LOGGER.error("Status check solr alive failed..", ex);
-        }
-        return alive;
+        return healthProber.isSolrAlive();
     }
 
     @Override
     public Response getStatus() {
+        if (!warmUp.isDone()) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        }
         if (isDbAlive() && isSolrAlive()) {
             return Response.ok().entity(OK_ENTITY).build();
         }
@@ -91,4 +58,14 @@ public class StatusBean implements ServiceStatus {
             return Response.serverError().build();
         }
     }
+
+    @GET
+    @Path("health")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, HealthStatus> getHealth() {
+        final Map<String, HealthStatus> health = new LinkedHashMap<>();
+        health.put("db", healthProber.getDbStatus());
+        health.put("solr", healthProber.getSolrStatus());
+        return health;
+    }
 }
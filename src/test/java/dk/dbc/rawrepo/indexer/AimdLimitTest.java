@@ -0,0 +1,73 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AimdLimitTest {
+
+    private static final Duration FAST = Duration.ofMillis(100);
+    private static final Duration SLOW = Duration.ofMillis(1001);
+
+    private final AtomicLong clock = new AtomicLong(10_000);
+    private final AimdLimit limit = new AimdLimit("test", 1, 16, 2, 1000, clock::get);
+
+    @Test
+    public void testStartsAtMax() {
+        assertThat(limit.get(), is(16));
+        assertThat(limit.update(FAST, true), is(false));
+        assertThat(limit.get(), is(16));
+    }
+
+    @Test
+    public void testHalvesOnFailure() {
+        assertThat(limit.update(FAST, false), is(true));
+        assertThat(limit.get(), is(8));
+    }
+
+    @Test
+    public void testHalvesOnSlowResponse() {
+        assertThat(limit.update(SLOW, true), is(true));
+        assertThat(limit.get(), is(8));
+    }
+
+    @Test
+    public void testDecreasesOncePerTargetLatency() {
+        limit.update(SLOW, true);
+        limit.update(SLOW, true);
+        assertThat(limit.get(), is(8));
+        clock.addAndGet(1000);
+        limit.update(FAST, false);
+        assertThat(limit.get(), is(4));
+    }
+
+    @Test
+    public void testNeverBelowMin() {
+        for (int i = 0; i < 10; i++) {
+            limit.update(FAST, false);
+            clock.addAndGet(1000);
+        }
+        assertThat(limit.get(), is(1));
+    }
+
+    @Test
+    public void testIncreasesAdditively() {
+        limit.update(FAST, false);
+        assertThat(limit.get(), is(8));
+        limit.update(FAST, true);
+        assertThat(limit.get(), is(10));
+        limit.update(FAST, true);
+        limit.update(FAST, true);
+        limit.update(FAST, true);
+        assertThat(limit.get(), is(16));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRange() {
+        new AimdLimit("test", 0, 10, 1, 1000, clock::get);
+    }
+}
@@ -0,0 +1,46 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.jslib.ISchemeHandler;
+import dk.dbc.jslib.SchemeURI;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CachingClasspathSchemeHandlerTest {
+
+    @Test
+    public void testModulesAreReadOncePerJvm() throws Exception {
+        new JavaScriptWorker();
+        int cached = CachingClasspathSchemeHandler.getCachedSourceCount();
+        assertTrue(cached > 0);
+
+        new JavaScriptWorker();
+        assertThat(CachingClasspathSchemeHandler.getCachedSourceCount(), is(cached));
+    }
+
+    @Test
+    public void testLookupsAreResolvedOncePerJvm() throws Exception {
+        final ISchemeHandler delegate = mock(ISchemeHandler.class);
+        final SchemeURI searchPath = new SchemeURI("classpath:caching-test/");
+        final SchemeURI found = new SchemeURI("classpath:caching-test/found.use.js");
+        when(delegate.lookup(searchPath, "found")).thenReturn(found);
+        when(delegate.lookup(searchPath, "missing")).thenReturn(null);
+
+        // One handler for each new environment
+        for (int environment = 0; environment < 2; environment++) {
+            final CachingClasspathSchemeHandler handler = new CachingClasspathSchemeHandler(delegate, getClass().getClassLoader());
+            assertThat(handler.lookup(searchPath, "found"), is(found));
+            assertNull(handler.lookup(searchPath, "missing"));
+        }
+
+        verify(delegate, times(1)).lookup(searchPath, "found");
+        verify(delegate, times(1)).lookup(searchPath, "missing");
+    }
+}
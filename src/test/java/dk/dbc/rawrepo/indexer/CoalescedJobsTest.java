@@ -0,0 +1,47 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.rawrepo.queue.QueueItem;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CoalescedJobsTest {
+
+    @Test
+    public void testDuplicatesAreCollapsed() {
+        final QueueItem first = job("12345678", 870970);
+        final QueueItem other = job("12345678", 191919);
+        final QueueItem duplicate = job("12345678", 870970);
+        final QueueItem last = job("87654321", 870970);
+        final List<QueueItem> jobs = Arrays.asList(first, other, duplicate, last, job("87654321", 870970));
+
+        final CoalescedJobs coalesced = CoalescedJobs.of(jobs);
+
+        assertThat(coalesced.getJobs(), is(jobs));
+        assertThat(coalesced.getUnique(), is(Arrays.asList(first, other, last)));
+        assertThat(coalesced.getCoalescedCount(), is(2));
+    }
+
+    @Test
+    public void testNoDuplicates() {
+        final List<QueueItem> jobs = Arrays.asList(job("12345678", 870970), job("87654321", 870970));
+
+        final CoalescedJobs coalesced = CoalescedJobs.of(jobs);
+
+        assertThat(coalesced.getUnique(), is(jobs));
+        assertThat(coalesced.getCoalescedCount(), is(0));
+    }
+
+    private static QueueItem job(String bibliographicRecordId, int agencyId) {
+        final QueueItem job = mock(QueueItem.class);
+        when(job.getBibliographicRecordId()).thenReturn(bibliographicRecordId);
+        when(job.getAgencyId()).thenReturn(agencyId);
+        return job;
+    }
+}
@@ -0,0 +1,115 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+public class CommitPolicyTest {
+
+    private final AtomicLong clock = new AtomicLong(1000);
+
+    @Test
+    public void testCommitWithin() {
+        final CommitPolicy policy = new CommitPolicy(5000, 0, 0, CommitPolicy.BULK_COMMIT_AT_END, clock::get);
+
+        assertThat(policy.getCommitWithin(false), is(5000));
+        assertThat(policy.getCommitWithin(true), is(-1));
+    }
+
+    @Test
+    public void testCommitWithinLeftToServer() {
+        final CommitPolicy policy = new CommitPolicy(-1, 0, 0, CommitPolicy.BULK_COMMIT_AS_QUEUE, clock::get);
+
+        assertThat(policy.getCommitWithin(false), is(-1));
+        assertThat(policy.getCommitWithin(true), is(-1));
+    }
+
+    @Test
+    public void testBulkAsQueue() {
+        final CommitPolicy policy = new CommitPolicy(5000, 2, 0, CommitPolicy.BULK_COMMIT_AS_QUEUE, clock::get);
+
+        assertThat(policy.getCommitWithin(true), is(5000));
+        assertThat(policy.written(2, true), is(true));
+    }
+
+    @Test
+    public void testSoftCommitAfterDocuments() {
+        final CommitPolicy policy = new CommitPolicy(-1, 3, 0, CommitPolicy.BULK_COMMIT_AT_END, clock::get);
+
+        assertThat(policy.written(2, false), is(false));
+        assertThat(policy.written(1, false), is(true));
+        assertThat(policy.takeSoftCommit().getDocuments(), is(3L));
+        assertThat(policy.isSoftCommitDue(), is(false));
+        assertThat(policy.written(2, false), is(false));
+    }
+
+    @Test
+    public void testSoftCommitAfterTime() {
+        final CommitPolicy policy = new CommitPolicy(-1, 0, 500, CommitPolicy.BULK_COMMIT_AT_END, clock::get);
+
+        assertThat(policy.isSoftCommitDue(), is(false));
+        assertThat(policy.written(1, false), is(false));
+        clock.addAndGet(499);
+        assertThat(policy.written(1, false), is(false));
+        clock.addAndGet(1);
+        assertThat(policy.isSoftCommitDue(), is(true));
+        assertThat(policy.take().getDocuments(), is(2L));
+        clock.addAndGet(1000);
+        assertThat(policy.isSoftCommitDue(), is(false));
+    }
+
+    @Test
+    public void testNoSoftCommitDuringBulk() {
+        final CommitPolicy policy = new CommitPolicy(-1, 1, 1, CommitPolicy.BULK_COMMIT_AT_END, clock::get);
+
+        assertThat(policy.written(100, true), is(false));
+        clock.addAndGet(1000);
+        assertThat(policy.isSoftCommitDue(), is(false));
+    }
+
+    @Test
+    public void testOnlyOneThreadTakesADueSoftCommit() {
+        final CommitPolicy policy = new CommitPolicy(-1, 3, 0, CommitPolicy.BULK_COMMIT_AT_END, clock::get);
+
+        assertThat(policy.written(3, false), is(true));
+        assertThat(policy.takeSoftCommit().getDocuments(), is(3L));
+        assertNull(policy.takeSoftCommit());
+    }
+
+    @Test
+    public void testDocumentsWrittenDuringACommitCountTowardTheNext() {
+        final CommitPolicy policy = new CommitPolicy(-1, 3, 0, CommitPolicy.BULK_COMMIT_AT_END, clock::get);
+
+        policy.written(3, false);
+        final CommitPolicy.Uncommitted taken = policy.takeSoftCommit();
+        // Written by another thread while the commit is under way
+        assertThat(policy.written(2, false), is(false));
+        assertThat(taken.getDocuments(), is(3L));
+        assertThat(policy.written(1, false), is(true));
+    }
+
+    @Test
+    public void testFailedCommitGivesTheDocumentsBack() {
+        final CommitPolicy policy = new CommitPolicy(-1, 10, 500, CommitPolicy.BULK_COMMIT_AT_END, clock::get);
+
+        policy.written(3, false);
+        final CommitPolicy.Uncommitted taken = policy.take();
+        clock.addAndGet(100);
+        policy.written(1, false);
+        policy.commitFailed(taken);
+
+        // Due by the age of the oldest document given back
+        clock.addAndGet(400);
+        assertThat(policy.isSoftCommitDue(), is(true));
+        assertThat(policy.take().getDocuments(), is(4L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownBulkCommit() {
+        new CommitPolicy(-1, 0, 0, "never", clock::get);
+    }
+}
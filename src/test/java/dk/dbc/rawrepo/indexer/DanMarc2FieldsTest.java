@@ -0,0 +1,62 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DanMarc2FieldsTest {
+
+    @Test
+    public void testSolrTime() {
+        assertThat(DanMarc2Fields.toSolrTime("19810106"), is("1981-01-06T00:00:00Z"));
+        assertThat(DanMarc2Fields.toSolrTime("20080307130517"), is("2008-03-07T13:05:17Z"));
+        assertThat(DanMarc2Fields.toSolrTime("20000229"), is("2000-02-29T00:00:00Z"));
+    }
+
+    @Test
+    public void testInvalidSolrTime() {
+        assertThat(DanMarc2Fields.toSolrTime("20080230"), nullValue());
+        assertThat(DanMarc2Fields.toSolrTime("19000229"), nullValue());
+        assertThat(DanMarc2Fields.toSolrTime("20080307240517"), nullValue());
+        assertThat(DanMarc2Fields.toSolrTime("20080307126017"), nullValue());
+        assertThat(DanMarc2Fields.toSolrTime("09990101"), nullValue());
+        assertThat(DanMarc2Fields.toSolrTime("2008030"), nullValue());
+        assertThat(DanMarc2Fields.toSolrTime("2008-3-7"), nullValue());
+        assertThat(DanMarc2Fields.toSolrTime(""), nullValue());
+    }
+
+    @Test
+    public void testCollectionIdentifierKeepsPosition() {
+        final DanMarc2Fields fields = new DanMarc2Fields();
+        fields.subfield("001", "a", "12345678");
+        fields.subfield("001", "b", "870970");
+        fields.subfield("245", "a", "Title");
+
+        final SolrInputDocument document = new SolrInputDocument();
+        fields.addTo(document);
+
+        assertThat(new ArrayList<>(document.getFieldNames()), is(Arrays.asList(
+                "rec.collectionIdentifier", "marc.001a", "marc.001b", "marc.001a001b", "marc.245a")));
+        assertThat(document.getFieldValues("rec.collectionIdentifier"), is(Collections.singletonList("common")));
+    }
+
+    @Test
+    public void testS11OnlyAppliesToDbcRecords() {
+        final DanMarc2Fields fields = new DanMarc2Fields();
+        fields.subfield("001", "b", "191919");
+        fields.datafield("s11");
+
+        final SolrInputDocument document = new SolrInputDocument();
+        fields.addTo(document);
+
+        assertThat(document.getFieldValues("rec.collectionIdentifier"), is(Collections.singletonList("dk.dbc")));
+        assertThat(DanMarc2Fields.hasSubfieldRule("s11", "a"), is(false));
+    }
+}
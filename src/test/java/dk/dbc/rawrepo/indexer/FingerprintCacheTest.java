@@ -0,0 +1,125 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+public class FingerprintCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FingerprintCache cache = new FingerprintCache(2, Arrays.asList("rec.modified", "rec.trackingId"));
+
+    @Test
+    public void testFingerprintIgnoresFieldOrder() {
+        final SolrInputDocument first = new SolrInputDocument();
+        first.addField("id", "12345678:870970");
+        first.addField("marc.245a", "Title");
+        final SolrInputDocument second = new SolrInputDocument();
+        second.addField("marc.245a", "Title");
+        second.addField("id", "12345678:870970");
+
+        assertThat(cache.fingerprint(first), is(cache.fingerprint(second)));
+    }
+
+    @Test
+    public void testFingerprintIgnoresExcludedFields() {
+        final SolrInputDocument first = createDocument("Title");
+        first.addField("rec.modified", new Date(1000));
+        first.addField("rec.trackingId", "first");
+        final SolrInputDocument second = createDocument("Title");
+        second.addField("rec.modified", new Date(2000));
+        second.addField("rec.trackingId", "second");
+
+        assertThat(cache.fingerprint(first), is(cache.fingerprint(second)));
+    }
+
+    @Test
+    public void testFingerprintDetectsChanges() {
+        assertThat(cache.fingerprint(createDocument("Title")), not(cache.fingerprint(createDocument("Other title"))));
+
+        final SolrInputDocument split = new SolrInputDocument();
+        split.addField("id", "12345678:870970");
+        split.addField("marc.245a", "Ti");
+        split.addField("marc.245a", "tle");
+        assertThat(cache.fingerprint(split), not(cache.fingerprint(createDocument("Title"))));
+    }
+
+    @Test
+    public void testUnchangedOnlyAfterPut() {
+        final String fingerprint = cache.fingerprint(createDocument("Title"));
+        assertThat(cache.isUnchanged("12345678:870970", fingerprint), is(false));
+
+        cache.put("12345678:870970", fingerprint);
+        assertThat(cache.isUnchanged("12345678:870970", fingerprint), is(true));
+
+        cache.remove("12345678:870970");
+        assertThat(cache.isUnchanged("12345678:870970", fingerprint), is(false));
+    }
+
+    @Test
+    public void testClearForgetsEverything() {
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.clear();
+
+        assertThat(cache.size(), is(0));
+        assertThat(cache.isUnchanged("a", "1"), is(false));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.isUnchanged("a", "1");
+        cache.put("c", "3");
+
+        assertThat(cache.size(), is(2));
+        assertThat(cache.isUnchanged("a", "1"), is(true));
+        assertThat(cache.isUnchanged("b", "2"), is(false));
+        assertThat(cache.isUnchanged("c", "3"), is(true));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("fingerprints");
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.save(path);
+
+        final FingerprintCache loaded = new FingerprintCache(2, Collections.emptyList());
+        loaded.load(path);
+        assertThat(loaded.size(), is(2));
+        assertThat(loaded.isUnchanged("a", "1"), is(true));
+        assertThat(loaded.isUnchanged("b", "2"), is(true));
+    }
+
+    @Test
+    public void testLoadMissingFile() throws Exception {
+        cache.load(folder.getRoot().toPath().resolve("missing"));
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCacheMustHoldAFingerprint() {
+        new FingerprintCache(0, Collections.emptyList());
+    }
+
+    private static SolrInputDocument createDocument(String title) {
+        final SolrInputDocument document = new SolrInputDocument();
+        document.addField("id", "12345678:870970");
+        document.addField("marc.245a", title);
+        return document;
+    }
+}
@@ -0,0 +1,95 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.apache.solr.client.solrj.response.SolrPingResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLDataException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HealthProberTest {
+
+    private final HealthProber prober = new HealthProber();
+
+    @Before
+    public void setUp() throws Exception {
+        prober.HEALTH_PROBE_TIMEOUT_MS = 500;
+        prober.HEALTH_MAX_AGE_MS = 30000;
+        prober.probeExecutor = Executors.newCachedThreadPool();
+        prober.rawrepoDataSource = mock(DataSource.class);
+        prober.solrClient = mock(Http2SolrClient.class);
+        final Connection connection = mock(Connection.class);
+        final Statement statement = mock(Statement.class);
+        when(prober.rawrepoDataSource.getConnection()).thenReturn(connection);
+        when(connection.createStatement()).thenReturn(statement);
+        when(statement.executeQuery(anyString())).thenReturn(mock(ResultSet.class));
+        when(prober.solrClient.ping()).thenReturn(new SolrPingResponse());
+    }
+
+    @After
+    public void tearDown() {
+        prober.probeExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testNotAliveBeforeFirstProbe() {
+        assertThat(prober.isDbAlive(), is(false));
+        assertThat(prober.isSolrAlive(), is(false));
+    }
+
+    @Test
+    public void testAlive() {
+        prober.probe();
+        assertThat(prober.isDbAlive(), is(true));
+        assertThat(prober.isSolrAlive(), is(true));
+        assertThat(prober.getSolrStatus().getCheckedAt(), notNullValue());
+    }
+
+    @Test
+    public void testStatusDBFail() throws Exception {
+        when(prober.rawrepoDataSource.getConnection()).thenThrow(new SQLDataException());
+        prober.probe();
+        assertThat(prober.isDbAlive(), is(false));
+        assertThat(prober.isSolrAlive(), is(true));
+    }
+
+    @Test
+    public void testStatusSOLRFail() throws Exception {
+        when(prober.solrClient.ping()).thenThrow(new SolrServerException("Solr Exception"));
+        prober.probe();
+        assertThat(prober.isSolrAlive(), is(false));
+        assertThat(prober.getSolrStatus().getError(), is("Solr Exception"));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        when(prober.solrClient.ping()).thenAnswer(invocation -> {
+            Thread.sleep(5000);
+            return new SolrPingResponse();
+        });
+        prober.probe();
+        assertThat(prober.isSolrAlive(), is(false));
+        assertThat(prober.getSolrStatus().getError(), is("No response within 500 ms"));
+    }
+
+    @Test
+    public void testStaleResultIsNotAlive() {
+        prober.probe();
+        prober.HEALTH_MAX_AGE_MS = -1;
+        assertThat(prober.isSolrAlive(), is(false));
+    }
+}
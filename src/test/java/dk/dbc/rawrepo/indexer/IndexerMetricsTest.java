@@ -0,0 +1,83 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Tag;
+import org.eclipse.microprofile.metrics.Timer;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.mockito.Mockito.RETURNS_MOCKS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IndexerMetricsTest {
+
+    private final MetricRegistry registry = mock(MetricRegistry.class, RETURNS_MOCKS);
+    private final IndexerMetrics metrics = new IndexerMetrics(registry, false);
+
+    @Test
+    public void testTransformIsTaggedWithOutcomeMimetypeAndAgency() {
+        final Timer timer = mock(Timer.class);
+        final Counter counter = mock(Counter.class);
+        when(registry.timer(IndexerMetrics.TRANSFORM_TIMER,
+                new Tag("engine", "Java"),
+                new Tag("mimetype", Indexer.MIMETYPE_MARCXCHANGE),
+                new Tag("outcome", IndexerMetrics.OUTCOME_SUCCESS))).thenReturn(timer);
+        when(registry.counter(IndexerMetrics.RECORDS,
+                new Tag("outcome", IndexerMetrics.OUTCOME_SUCCESS),
+                new Tag("mimetype", Indexer.MIMETYPE_MARCXCHANGE),
+                new Tag("agency", "870970"))).thenReturn(counter);
+
+        metrics.transformed(Duration.ofMillis(3), "Java", Indexer.MIMETYPE_MARCXCHANGE, 870970, true);
+
+        verify(timer).update(Duration.ofMillis(3));
+        verify(counter).inc();
+    }
+
+    @Test
+    public void testMissingRecordHasUnknownMimetype() {
+        metrics.record(IndexerMetrics.OUTCOME_MISSING, null, 191919);
+
+        verify(registry).counter(IndexerMetrics.RECORDS,
+                new Tag("outcome", IndexerMetrics.OUTCOME_MISSING),
+                new Tag("mimetype", "unknown"),
+                new Tag("agency", "191919"));
+    }
+
+    @Test
+    public void testEmptyDequeueIsNotTimed() {
+        metrics.dequeued(Duration.ofMillis(1), 0);
+
+        verify(registry, never()).timer(IndexerMetrics.DEQUEUE_TIMER);
+    }
+
+    @Test
+    public void testFailedSolrUpdateCountsNoDocuments() {
+        metrics.solrUpdated(Duration.ofMillis(10), 5, 1, false);
+
+        verify(registry).timer(IndexerMetrics.SOLR_UPDATE_TIMER, new Tag("outcome", IndexerMetrics.OUTCOME_FAILURE));
+        verify(registry, never()).counter(IndexerMetrics.SOLR_DOCUMENTS, new Tag("operation", "add"));
+        verify(registry, never()).counter(IndexerMetrics.SOLR_DOCUMENTS, new Tag("operation", "delete"));
+    }
+
+    @Test
+    public void testCoalescedJobsAreCounted() {
+        final Counter counter = mock(Counter.class);
+        when(registry.counter(IndexerMetrics.COALESCED_JOBS)).thenReturn(counter);
+
+        metrics.coalesced(3);
+
+        verify(counter).inc(3);
+    }
+
+    @Test
+    public void testNoCoalescedJobsAreNotCounted() {
+        metrics.coalesced(0);
+
+        verify(registry, never()).counter(IndexerMetrics.COALESCED_JOBS);
+    }
+}
@@ -0,0 +1,76 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.client.solrj.util.AsyncListener;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.stubbing.Answer;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class IndexerResourcesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDestroyReleasesTheResources() throws Exception {
+        final Path fingerprints = folder.getRoot().toPath().resolve("fingerprints");
+        final IndexerResources resources = new IndexerResources();
+        resources.FINGERPRINT_CACHE_FILE = Optional.of(fingerprints.toString());
+        resources.solrClient = mock(Http2SolrClient.class);
+        resources.transformExecutor = Executors.newFixedThreadPool(1);
+        resources.pipeline = new IndexingPipeline(1, 1, 1, 1, Executors.defaultThreadFactory());
+        resources.fingerprintCache = new FingerprintCache(10, Collections.emptyList());
+        resources.fingerprintCache.put("a:123456", "fingerprint");
+        resources.spool = new SolrSpool(folder.getRoot().toPath().resolve("spool"), 1024 * 1024);
+
+        resources.destroy();
+
+        assertThat(resources.transformExecutor.isTerminated(), is(true));
+        verify(resources.solrClient).close();
+        final FingerprintCache saved = new FingerprintCache(10, Collections.emptyList());
+        saved.load(fingerprints);
+        assertThat(saved.isUnchanged("a:123456", "fingerprint"), is(true));
+    }
+
+    @Test
+    public void testDestroyWaitsForSolrRequestsInFlight() throws Exception {
+        final IndexerResources resources = new IndexerResources();
+        resources.solrClient = mock(Http2SolrClient.class);
+        doAnswer((Answer<Void>) invocation -> {
+            final AsyncListener<NamedList<Object>> listener = invocation.getArgument(2);
+            new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                listener.onSuccess(new NamedList<>());
+            }).start();
+            return null;
+        }).when(resources.solrClient).asyncRequest(any(), nullable(String.class), any());
+        resources.asyncWriter = new AsyncSolrWriter(resources.solrClient, 2, Executors.defaultThreadFactory());
+
+        final CompletableFuture<Void> response = resources.asyncWriter.send(new UpdateRequest());
+        resources.destroy();
+
+        assertThat(response.isDone(), is(true));
+        assertThat(resources.asyncWriter.getInFlight(), is(0));
+    }
+}
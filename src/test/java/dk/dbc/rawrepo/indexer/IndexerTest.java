@@ -2,24 +2,77 @@ package dk.dbc.rawrepo.indexer;
 
 import dk.dbc.rawrepo.dto.RecordDTO;
 import dk.dbc.rawrepo.dto.RecordIdDTO;
+import dk.dbc.rawrepo.exception.SolrIndexerSolrException;
+import dk.dbc.rawrepo.queue.QueueItem;
+import dk.dbc.rawrepo.queue.RawRepoQueueDAO;
+import dk.dbc.rawrepo.record.RecordServiceConnector;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.BaseHttpSolrClient;
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.client.solrj.util.AsyncListener;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.stubbing.Answer;
 import org.xml.sax.SAXException;
 
+import javax.sql.DataSource;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.RETURNS_MOCKS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class IndexerTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final IndexerResources resources = new IndexerResources();
+
+    @After
+    public void closeSpool() throws IOException {
+        if (resources.spool != null) {
+            resources.spool.close();
+        }
+    }
 
     private class RecordDataTest extends RecordDTO {
         private String modifiedTest;
@@ -92,12 +145,334 @@ public class IndexerTest {
         return recordData;
     }
 
-    private static Indexer createInstance() {
+    private Indexer createInstance() {
         @SuppressWarnings("UseInjectionInsteadOfInstantion")
         Indexer indexer = new Indexer();
+        indexer.metrics = new IndexerMetrics(mock(MetricRegistry.class, RETURNS_MOCKS), false);
+        indexer.resources = resources;
+        resources.FINGERPRINT_CACHE_FILE = Optional.empty();
+        return indexer;
+    }
+
+    /**
+     * An indexer writing to a mocked solr, with an engine that indexes the content as is
+     */
+    private Indexer createSolrInstance() throws Exception {
+        Indexer indexer = createInstance();
+        indexer.worker = new IndexEngine() {
+            @Override
+            public String getName() {
+                return "test";
+            }
+
+            @Override
+            public void addFields(SolrInputDocument solrInputDocument, byte[] content, String mimetype) {
+                solrInputDocument.addField("content", new String(content, StandardCharsets.UTF_8));
+            }
+        };
+        indexer.recordServiceConnector = mock(RecordServiceConnector.class);
+        indexer.queueBean = mock(RawRepoQueueBean.class);
+        indexer.healthProber = mock(HealthProber.class);
+        indexer.retries = mock(JobRetries.class);
+        when(indexer.healthProber.isSolrAlive()).thenReturn(true);
+        resources.solrClient = mock(Http2SolrClient.class);
+        when(resources.solrClient.request(any(SolrRequest.class), nullable(String.class))).thenReturn(new NamedList<>());
+        resources.commitPolicy = new CommitPolicy(-1, 0, 0, CommitPolicy.BULK_COMMIT_AT_END, System::currentTimeMillis);
         return indexer;
     }
 
+    private static QueueItem job(String bibliographicRecordId, int agencyId) {
+        final QueueItem job = mock(QueueItem.class);
+        when(job.getBibliographicRecordId()).thenReturn(bibliographicRecordId);
+        when(job.getAgencyId()).thenReturn(agencyId);
+        return job;
+    }
+
+    /**
+     * Sets up solr to reject every request holding the given document,
+     * collecting the ids of the documents it accepts
+     */
+    private Set<String> rejectDocument(Indexer indexer, String rejectedId, String error, List<QueueItem> jobs) throws Exception {
+        final Set<String> written = Collections.synchronizedSet(new HashSet<>());
+        returnRecords(indexer, jobs);
+        when(resources.solrClient.request(any(SolrRequest.class), nullable(String.class))).thenAnswer(invocation -> {
+            final List<String> ids = documentIds(invocation.getArgument(0));
+            if (ids.contains(rejectedId)) {
+                throw new BaseHttpSolrClient.RemoteSolrException("solr", 400, error, null);
+            }
+            written.addAll(ids);
+            return new NamedList<>();
+        });
+        doAnswer((Answer<Void>) invocation -> {
+            final AsyncListener<NamedList<Object>> listener = invocation.getArgument(2);
+            if (documentIds(invocation.getArgument(0)).contains(rejectedId)) {
+                listener.onFailure(new BaseHttpSolrClient.RemoteSolrException("solr", 400, error, null));
+            } else {
+                written.addAll(documentIds(invocation.getArgument(0)));
+                listener.onSuccess(new NamedList<>());
+            }
+            return null;
+        }).when(resources.solrClient).asyncRequest(any(), nullable(String.class), any());
+        return written;
+    }
+
+    private void returnRecords(Indexer indexer, List<QueueItem> jobs) throws Exception {
+        final List<RecordDTO> records = new ArrayList<>();
+        for (QueueItem job : jobs) {
+            records.add(createRecordData(job.getBibliographicRecordId(), job.getAgencyId(), "content".getBytes(),
+                    new Date(100).toInstant(), new Date(200).toInstant(), false, Indexer.MIMETYPE_MARCXCHANGE));
+        }
+        when(indexer.recordServiceConnector.fetchRecordList(any(), any())).thenReturn(records.toArray(new RecordDTO[0]));
+    }
+
+    private static List<String> documentIds(UpdateRequest request) {
+        final List<String> ids = new ArrayList<>();
+        if (request.getDocuments() != null) {
+            for (SolrInputDocument doc : request.getDocuments()) {
+                ids.add((String) doc.getFieldValue("id"));
+            }
+        }
+        return ids;
+    }
+
+    private static List<QueueItem> jobs(String... bibliographicRecordIds) {
+        final List<QueueItem> jobs = new ArrayList<>();
+        for (String bibliographicRecordId : bibliographicRecordIds) {
+            jobs.add(job(bibliographicRecordId, 123456));
+        }
+        return jobs;
+    }
+
+    @Test
+    public void testRejectedBatchFailsOnlyRejectedDocument() throws Exception {
+        List<QueueItem> jobs = jobs("a", "b", "c", "d", "e");
+        RawRepoQueueDAO dao = mock(RawRepoQueueDAO.class);
+
+        Indexer indexer = createSolrInstance();
+        Set<String> written = rejectDocument(indexer, "c:123456", "Document c:123456 is too large", jobs);
+
+        indexer.processBatch(jobs, dao);
+
+        verify(indexer.queueBean).queueFail(eq(dao), eq(jobs.get(2)), contains("Document c:123456 is too large"));
+        verify(indexer.queueBean, times(1)).queueFail(any(), any(), any());
+        verify(indexer.retries, never()).retry(any(), anyInt(), any());
+        assertEquals(new HashSet<>(Arrays.asList("a:123456", "b:123456", "d:123456", "e:123456")), written);
+    }
+
+    @Test
+    public void testRejectedAsyncBatchFailsOnlyRejectedDocument() throws Exception {
+        List<QueueItem> jobs = jobs("a", "b", "c", "d", "e");
+        RawRepoQueueDAO dao = mock(RawRepoQueueDAO.class);
+        Connection connection = mock(Connection.class);
+
+        Indexer indexer = createSolrInstance();
+        resources.asyncWriter = new AsyncSolrWriter(resources.solrClient, 2, Executors.defaultThreadFactory());
+        Set<String> written = rejectDocument(indexer, "c:123456", "Document c:123456 is too large", jobs);
+
+        IndexingPipeline.Run run = new IndexingPipeline(1, 1, 1, 8, Executors.defaultThreadFactory()).newRun(indexer.new PipelineStages(), 1);
+        run.submit(new IndexingPipeline.Batch(indexer.coalesce(jobs), connection, dao));
+        run.await();
+
+        assertNull(run.getFailure());
+        verify(indexer.queueBean).queueFail(eq(dao), eq(jobs.get(2)), contains("Document c:123456 is too large"));
+        verify(indexer.queueBean, times(1)).queueFail(any(), any(), any());
+        verify(connection).commit();
+        assertEquals(new HashSet<>(Arrays.asList("a:123456", "b:123456", "d:123456", "e:123456")), written);
+    }
+
+    @Test(expected = SolrIndexerSolrException.class)
+    public void testRejectedBatchWithUnknownFieldStops() throws Exception {
+        List<QueueItem> jobs = jobs("a", "b", "c");
+
+        Indexer indexer = createSolrInstance();
+        rejectDocument(indexer, "c:123456", "ERROR: [doc=c:123456] unknown field 'marc.x'", jobs);
+
+        indexer.processBatch(jobs, mock(RawRepoQueueDAO.class));
+    }
+
+    @Test
+    public void testRejectedAsyncBatchWithUnknownFieldStops() throws Exception {
+        List<QueueItem> jobs = jobs("a", "b", "c");
+        Connection connection = mock(Connection.class);
+
+        Indexer indexer = createSolrInstance();
+        resources.asyncWriter = new AsyncSolrWriter(resources.solrClient, 2, Executors.defaultThreadFactory());
+        rejectDocument(indexer, "c:123456", "ERROR: [doc=c:123456] unknown field 'marc.x'", jobs);
+
+        IndexingPipeline.Run run = new IndexingPipeline(1, 1, 1, 8, Executors.defaultThreadFactory()).newRun(indexer.new PipelineStages(), 1);
+        run.submit(new IndexingPipeline.Batch(indexer.coalesce(jobs), connection, mock(RawRepoQueueDAO.class)));
+        run.await();
+
+        assertTrue(run.getFailure() instanceof SolrIndexerSolrException);
+        verify(indexer.queueBean, never()).queueFail(any(), any(), any());
+        verify(connection).rollback();
+    }
+
+    @Test
+    public void testReindexLeavesOutRejectedAndUntransformableRecords() throws Exception {
+        Instant created = new Date(100).toInstant();
+        Instant modified = new Date(200).toInstant();
+        List<RecordIdDTO> recordIds = Arrays.asList(new RecordIdDTO("a", 123456), new RecordIdDTO("b", 123456),
+                new RecordIdDTO("c", 123456), new RecordIdDTO("d", 123456));
+
+        Indexer indexer = createSolrInstance();
+        Set<String> written = rejectDocument(indexer, "c:123456", "Document c:123456 is too large", Collections.emptyList());
+        when(indexer.recordServiceConnector.fetchRecordList(any(), any())).thenReturn(new RecordDTO[]{
+                createRecordData("a", 123456, "content".getBytes(), created, modified, false, Indexer.MIMETYPE_MARCXCHANGE),
+                // No content, so the transform fails
+                createRecordData("b", 123456, null, created, modified, false, Indexer.MIMETYPE_MARCXCHANGE),
+                createRecordData("c", 123456, "content".getBytes(), created, modified, false, Indexer.MIMETYPE_MARCXCHANGE),
+                createRecordData("d", 123456, "content".getBytes(), created, modified, false, Indexer.MIMETYPE_MARCXCHANGE)});
+
+        assertEquals(2, indexer.reindex(recordIds));
+        assertEquals(new HashSet<>(Arrays.asList("a:123456", "d:123456")), written);
+    }
+
+    @Test
+    public void testSpooledDeleteForgetsFingerprint() throws Exception {
+        Instant created = new Date(100).toInstant();
+        Instant modified = new Date(200).toInstant();
+        RecordDTO record = createRecordData("id", 123456, "content".getBytes(), created, modified, false, Indexer.MIMETYPE_MARCXCHANGE);
+        RecordDTO deleted = createRecordData("id", 123456, "content".getBytes(), created, modified, true, Indexer.MIMETYPE_MARCXCHANGE);
+        QueueItem job = job("id", 123456);
+        RawRepoQueueDAO dao = mock(RawRepoQueueDAO.class);
+
+        Indexer indexer = createSolrInstance();
+        resources.fingerprintCache = new FingerprintCache(100, Collections.singletonList("rec.modified"));
+        resources.spool = new SolrSpool(folder.newFile("spool").toPath(), 1024 * 1024);
+        when(indexer.recordServiceConnector.getRecordData(anyInt(), anyString(), any())).thenReturn(record, deleted, record);
+
+        indexer.processJob(job, dao);
+        verify(resources.solrClient, times(1)).add(any(SolrInputDocument.class), anyInt());
+
+        // The record is deleted while solr is down, and the delete is spooled
+        when(indexer.healthProber.isSolrAlive()).thenReturn(false);
+        indexer.processJob(job, dao);
+        assertEquals(1, resources.spool.getEntries());
+
+        // Once the delete is replayed, the identical document has to be written again
+        when(indexer.healthProber.isSolrAlive()).thenReturn(true);
+        indexer.replaySpool();
+        assertEquals(0, resources.spool.getEntries());
+        indexer.processJob(job, dao);
+        verify(resources.solrClient, times(2)).add(any(SolrInputDocument.class), anyInt());
+    }
+
+    @Test
+    public void testRejectedSpooledUpdateFailsItsJobs() throws Exception {
+        Instant created = new Date(100).toInstant();
+        Instant modified = new Date(200).toInstant();
+        RecordDTO record = createRecordData("id", 123456, "content".getBytes(), created, modified, false, Indexer.MIMETYPE_MARCXCHANGE);
+        QueueItem job = job("id", 123456);
+        when(job.getWorker()).thenReturn("solr-sync");
+
+        Indexer indexer = createSolrInstance();
+        indexer.rawrepoDataSource = mock(DataSource.class);
+        when(indexer.rawrepoDataSource.getConnection()).thenReturn(mock(Connection.class));
+        resources.spool = new SolrSpool(folder.newFile("spool").toPath(), 1024 * 1024);
+        when(indexer.recordServiceConnector.getRecordData(anyInt(), anyString(), any())).thenReturn(record);
+
+        when(indexer.healthProber.isSolrAlive()).thenReturn(false);
+        indexer.processJob(job, mock(RawRepoQueueDAO.class));
+        assertEquals(1, resources.spool.getEntries());
+
+        when(indexer.healthProber.isSolrAlive()).thenReturn(true);
+        when(resources.solrClient.request(any(SolrRequest.class), nullable(String.class)))
+                .thenThrow(new BaseHttpSolrClient.RemoteSolrException("solr", 400, "Document is too large", null));
+        indexer.replaySpool();
+
+        assertEquals(0, resources.spool.getEntries());
+        ArgumentCaptor<QueueItem> failed = ArgumentCaptor.forClass(QueueItem.class);
+        verify(indexer.queueBean).queueFail(any(RawRepoQueueDAO.class), failed.capture(), contains("Document is too large"));
+        assertEquals("id", failed.getValue().getBibliographicRecordId());
+        assertEquals(123456, failed.getValue().getAgencyId());
+        assertEquals("solr-sync", failed.getValue().getWorker());
+    }
+
+    @Test
+    public void testFailureIsWrittenBeforeRetry() throws Exception {
+        Instant created = new Date(100).toInstant();
+        Instant modified = new Date(200).toInstant();
+        RecordDTO record = createRecordData("id", 123456, "content".getBytes(), created, modified, false, Indexer.MIMETYPE_MARCXCHANGE);
+        QueueItem job = job("id", 123456);
+        RawRepoQueueDAO dao = mock(RawRepoQueueDAO.class);
+
+        Indexer indexer = createSolrInstance();
+        when(indexer.recordServiceConnector.getRecordData(anyInt(), anyString(), any())).thenReturn(record);
+        when(resources.solrClient.add(any(SolrInputDocument.class), anyInt())).thenThrow(new SolrServerException("timeout"));
+        when(indexer.retries.retry(job, 1, "timeout")).thenReturn(true);
+
+        indexer.processJob(job, dao);
+
+        verify(indexer.queueBean).queueFail(dao, job, "timeout");
+        verify(indexer.retries).retry(job, 1, "timeout");
+    }
+
+    @Test
+    public void testFailedBatchRetriesEachRecordOnce() throws Exception {
+        List<QueueItem> jobs = jobs("a", "b", "a", "a");
+        RawRepoQueueDAO dao = mock(RawRepoQueueDAO.class);
+
+        Indexer indexer = createSolrInstance();
+        returnRecords(indexer, jobs("a", "b"));
+        when(resources.solrClient.request(any(SolrRequest.class), nullable(String.class))).thenThrow(new SolrServerException("timeout"));
+        when(indexer.retries.retry(any(), anyInt(), any())).thenReturn(true);
+
+        indexer.processBatch(jobs, dao);
+
+        verify(indexer.retries).retry(jobs.get(0), 1, "timeout");
+        verify(indexer.retries).retry(jobs.get(1), 1, "timeout");
+        verify(indexer.retries, times(2)).retry(any(), anyInt(), any());
+        verify(indexer.queueBean).queueFail(dao, jobs.get(0), "timeout");
+        verify(indexer.queueBean).queueFail(dao, jobs.get(1), "timeout");
+        verify(indexer.queueBean, times(2)).queueFail(any(), any(), any());
+    }
+
+    @Test
+    public void testSucceededRetryClearsFailure() throws Exception {
+        Instant created = new Date(100).toInstant();
+        Instant modified = new Date(200).toInstant();
+        RecordDTO record = createRecordData("id", 123456, "content".getBytes(), created, modified, false, Indexer.MIMETYPE_MARCXCHANGE);
+        QueueItem job = job("id", 123456);
+        Connection connection = mock(Connection.class);
+
+        Indexer indexer = createSolrInstance();
+        indexer.rawrepoDataSource = mock(DataSource.class);
+        when(indexer.rawrepoDataSource.getConnection()).thenReturn(connection);
+        when(indexer.recordServiceConnector.getRecordData(anyInt(), anyString(), any())).thenReturn(record);
+        when(indexer.retries.takeDue(anyInt())).thenReturn(Collections.singletonList(new JobRetries.Retry(job, 1, "timeout", 0)));
+
+        assertEquals(1, indexer.retryDueJobs());
+
+        verify(indexer.queueBean).clearFailed(connection, job);
+        verify(indexer.queueBean, never()).queueFail(any(), any(), any());
+        verify(connection).commit();
+    }
+
+    @Test
+    public void testFailedRetryUpdatesTheError() throws Exception {
+        Instant created = new Date(100).toInstant();
+        Instant modified = new Date(200).toInstant();
+        RecordDTO record = createRecordData("id", 123456, "content".getBytes(), created, modified, false, Indexer.MIMETYPE_MARCXCHANGE);
+        QueueItem job = job("id", 123456);
+        Connection connection = mock(Connection.class);
+
+        Indexer indexer = createSolrInstance();
+        indexer.rawrepoDataSource = mock(DataSource.class);
+        when(indexer.rawrepoDataSource.getConnection()).thenReturn(connection);
+        when(indexer.recordServiceConnector.getRecordData(anyInt(), anyString(), any())).thenReturn(record);
+        when(resources.solrClient.add(any(SolrInputDocument.class), anyInt())).thenThrow(new SolrServerException("timeout again"));
+        when(indexer.retries.takeDue(anyInt())).thenReturn(Collections.singletonList(new JobRetries.Retry(job, 1, "timeout", 0)));
+
+        assertEquals(1, indexer.retryDueJobs());
+
+        verify(indexer.queueBean).updateFailed(eq(connection), any(RawRepoQueueDAO.class), eq(job), eq("timeout again"));
+        verify(indexer.queueBean, never()).queueFail(any(), any(), any());
+        verify(indexer.queueBean, never()).clearFailed(any(), any());
+        verify(indexer.retries).retry(job, 2, "timeout again");
+        verify(connection).commit();
+    }
+
     @Test
     public void testCreateIndexDocument() throws IOException, ParserConfigurationException, SAXException, Exception {
 
@@ -0,0 +1,147 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.rawrepo.dto.RecordDTO;
+import dk.dbc.rawrepo.queue.QueueItem;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IndexingPipelineTest {
+
+    private final IndexingPipeline pipeline = new IndexingPipeline(2, 2, 2, 16, Executors.defaultThreadFactory());
+
+    @Test
+    public void testBatchesAreWrittenInOrderForSameRecord() throws Exception {
+        final QueueItem firstJob = job("a");
+        final QueueItem secondJob = job("a");
+        final List<QueueItem> written = Collections.synchronizedList(new ArrayList<>());
+        final IndexingPipeline.Stages stages = new IndexingPipeline.Stages() {
+            @Override
+            public List<RecordDTO> fetch(List<QueueItem> jobs) {
+                return Collections.singletonList(mock(RecordDTO.class));
+            }
+
+            @Override
+            public SolrInputDocument transform(RecordDTO record) {
+                return new SolrInputDocument();
+            }
+
+            @Override
+            public CompletionStage<Void> write(IndexingPipeline.Batch batch) throws InterruptedException {
+                final QueueItem job = batch.getJobs().get(0);
+                if (job == firstJob) {
+                    Thread.sleep(100); // The first batch is slow, the second must still wait for it
+                }
+                written.add(job);
+                return CompletableFuture.completedFuture(null);
+            }
+        };
+
+        final IndexingPipeline.Run run = pipeline.newRun(stages, 4);
+        final Connection first = mock(Connection.class);
+        final Connection second = mock(Connection.class);
+        run.submit(new IndexingPipeline.Batch(CoalescedJobs.of(Collections.singletonList(firstJob)), first, null));
+        run.submit(new IndexingPipeline.Batch(CoalescedJobs.of(Collections.singletonList(secondJob)), second, null));
+        run.await();
+
+        assertThat(written, is(List.of(firstJob, secondJob)));
+        assertThat(run.hasFailed(), is(false));
+        verify(first).close();
+        verify(second).close();
+        verify(first, never()).rollback();
+    }
+
+    @Test
+    public void testFailedBatchIsRolledBack() throws Exception {
+        final SQLException failure = new SQLException("commit failed");
+        final IndexingPipeline.Stages stages = new IndexingPipeline.Stages() {
+            @Override
+            public List<RecordDTO> fetch(List<QueueItem> jobs) {
+                return Collections.singletonList(null);
+            }
+
+            @Override
+            public SolrInputDocument transform(RecordDTO record) {
+                throw new AssertionError("Records that do not exist are not transformed");
+            }
+
+            @Override
+            public CompletionStage<Void> write(IndexingPipeline.Batch batch) throws SQLException {
+                assertThat(batch.getRecord(0), nullValue());
+                throw failure;
+            }
+        };
+
+        final IndexingPipeline.Run run = pipeline.newRun(stages, 1);
+        final Connection connection = mock(Connection.class);
+        run.submit(new IndexingPipeline.Batch(CoalescedJobs.of(Collections.singletonList(job("a"))), connection, null));
+        run.await();
+
+        assertThat(run.hasFailed(), is(true));
+        assertThat(run.getFailure(), sameInstance(failure));
+        verify(connection).rollback();
+        verify(connection).close();
+    }
+
+    @Test
+    public void testAsyncWriteKeepsBatchInFlightUntilCompleted() throws Exception {
+        final CompletableFuture<Void> response = new CompletableFuture<>();
+        final CountDownLatch sent = new CountDownLatch(1);
+        final IndexingPipeline.Stages stages = new IndexingPipeline.Stages() {
+            @Override
+            public List<RecordDTO> fetch(List<QueueItem> jobs) {
+                return Collections.singletonList(mock(RecordDTO.class));
+            }
+
+            @Override
+            public SolrInputDocument transform(RecordDTO record) {
+                return new SolrInputDocument();
+            }
+
+            @Override
+            public CompletionStage<Void> write(IndexingPipeline.Batch batch) {
+                sent.countDown();
+                return response;
+            }
+        };
+
+        final IndexingPipeline.Run run = pipeline.newRun(stages, 1);
+        final Connection connection = mock(Connection.class);
+        run.submit(new IndexingPipeline.Batch(CoalescedJobs.of(Collections.singletonList(job("a"))), connection, null));
+        sent.await();
+        verify(connection, never()).close();
+
+        final SQLException failure = new SQLException("solr failed");
+        response.completeExceptionally(failure);
+        run.await();
+
+        assertThat(run.getFailure(), sameInstance(failure));
+        verify(connection).rollback();
+        verify(connection).close();
+    }
+
+    private static QueueItem job(String bibliographicRecordId) {
+        final QueueItem job = mock(QueueItem.class);
+        when(job.getBibliographicRecordId()).thenReturn(bibliographicRecordId);
+        when(job.getAgencyId()).thenReturn(870970);
+        return job;
+    }
+}
@@ -0,0 +1,61 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class JavaScriptWorkerPoolTest {
+
+    @Test
+    public void testWorkersAreCreatedLazily() throws InterruptedException {
+        final JavaScriptWorkerPool pool = new JavaScriptWorkerPool(2, () -> mock(JavaScriptWorker.class));
+        assertThat(pool.getCreated(), is(0));
+
+        final JavaScriptWorker first = pool.borrow();
+        assertThat(pool.getCreated(), is(1));
+
+        final JavaScriptWorker second = pool.borrow();
+        assertThat(pool.getCreated(), is(2));
+        assertThat(first, not(sameInstance(second)));
+    }
+
+    @Test
+    public void testReleasedWorkerIsReused() throws InterruptedException {
+        final JavaScriptWorkerPool pool = new JavaScriptWorkerPool(2, () -> mock(JavaScriptWorker.class));
+
+        final JavaScriptWorker first = pool.borrow();
+        pool.release(first);
+
+        assertThat(pool.borrow(), sameInstance(first));
+        assertThat(pool.getCreated(), is(1));
+    }
+
+    @Test
+    public void testExhaustedPoolWaitsForRelease() throws InterruptedException {
+        final JavaScriptWorkerPool pool = new JavaScriptWorkerPool(1, () -> mock(JavaScriptWorker.class));
+        final JavaScriptWorker first = pool.borrow();
+
+        final Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            pool.release(first);
+        });
+        releaser.start();
+
+        assertThat(pool.borrow(), sameInstance(first));
+        assertThat(pool.getCreated(), is(1));
+        releaser.join();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPoolMustHoldAWorker() {
+        new JavaScriptWorkerPool(0);
+    }
+}
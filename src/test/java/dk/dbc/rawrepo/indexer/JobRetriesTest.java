@@ -0,0 +1,57 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.rawrepo.queue.QueueItem;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class JobRetriesTest {
+
+    @Test
+    public void testDelayDoublesWithJitterUpToMax() throws Exception {
+        assertThat(JobRetries.delayMs(1, 1000, 60000, 0.0), is(500L));
+        assertThat(JobRetries.delayMs(1, 1000, 60000, 1.0), is(1000L));
+        assertThat(JobRetries.delayMs(3, 1000, 60000, 0.0), is(2000L));
+        assertThat(JobRetries.delayMs(3, 1000, 60000, 1.0), is(4000L));
+        assertThat(JobRetries.delayMs(10, 1000, 60000, 1.0), is(60000L));
+        assertThat(JobRetries.delayMs(100, 1000, 60000, 0.5), is(45000L));
+    }
+
+    @Test
+    public void testRetriesAreLimitedByAttemptsAndBudget() throws Exception {
+        final JobRetries retries = createRetries(2, 2);
+        final QueueItem job = mock(QueueItem.class);
+
+        assertThat(retries.retry(job, 3, "timeout"), is(false));
+        assertThat(retries.retry(job, 1, "timeout"), is(true));
+        assertThat(retries.retry(job, 2, "timeout"), is(true));
+        assertThat(retries.retry(job, 1, "timeout"), is(false));
+        assertThat(retries.getPending(), is(2));
+    }
+
+    @Test
+    public void testOnlyDueRetriesAreTaken() throws Exception {
+        final JobRetries retries = createRetries(3, 10);
+        final QueueItem job = mock(QueueItem.class);
+        retries.retry(job, 1, "timeout");
+        retries.putBack(new JobRetries.Retry(job, 2, "timeout", System.currentTimeMillis() - 1));
+
+        final List<JobRetries.Retry> due = retries.takeDue(10);
+        assertThat(due.size(), is(1));
+        assertThat(due.get(0).getAttempt(), is(2));
+        assertThat(retries.getPending(), is(1));
+    }
+
+    private static JobRetries createRetries(int maxAttempts, int budget) {
+        final JobRetries retries = new JobRetries();
+        retries.RETRY_MAX_ATTEMPTS = maxAttempts;
+        retries.RETRY_BASE_MS = 60000;
+        retries.RETRY_MAX_MS = 60000;
+        retries.RETRY_BUDGET = budget;
+        return retries;
+    }
+}
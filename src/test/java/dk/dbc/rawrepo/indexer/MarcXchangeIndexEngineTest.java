@@ -0,0 +1,120 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Verifies that the java engine produces exactly the same fields, in the same
+ * order, as indexer.js for the JavaScriptWorkerTest records and the DIT
+ * testsuite records
+ */
+@RunWith(Parameterized.class)
+public class MarcXchangeIndexEngineTest {
+
+    private static final File TESTSUITES = new File("testsuites");
+
+    private final File record;
+    private final String mimetype;
+    private final File expected;
+
+    public MarcXchangeIndexEngineTest(String name, File record, String mimetype, File expected) {
+        this.record = record;
+        this.mimetype = mimetype;
+        this.expected = expected;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> getContent() throws Exception {
+        final List<Object[]> list = new ArrayList<>();
+        final URL resource = MarcXchangeIndexEngineTest.class.getClassLoader().getResource(JavaScriptWorkerTest.class.getSimpleName());
+        if (resource == null || !resource.getProtocol().equals("file")) {
+            throw new Exception("Cannot find catalog for: " + JavaScriptWorkerTest.class.getSimpleName());
+        }
+        for (File dir : new File(resource.getPath()).listFiles(File::isDirectory)) {
+            list.add(new Object[]{dir.getName(), new File(dir, "record"), getContent(new File(dir, "mimetype")).trim(), null});
+        }
+        final File[] suites = TESTSUITES.listFiles(File::isDirectory);
+        if (suites != null) {
+            for (File suite : suites) {
+                final File[] inputs = new File(suite, "input").listFiles((dir, name) -> name.endsWith(".rr.xml"));
+                if (inputs == null) {
+                    continue;
+                }
+                for (File input : inputs) {
+                    final String name = input.getName().substring(0, input.getName().length() - ".rr.xml".length());
+                    final File expected = new File(new File(suite, "expected_state"), name + ".index.json");
+                    list.add(new Object[]{suite.getName() + "/" + name, input, Indexer.MIMETYPE_MARCXCHANGE, expected});
+                }
+            }
+        }
+        return list;
+    }
+
+    @Test
+    public void testSameFieldsAsJavaScript() throws Exception {
+        final String content = getContent(record);
+
+        final SolrInputDocument javaScriptDocument = new SolrInputDocument();
+        new JavaScriptWorker().addFields(javaScriptDocument, content, mimetype);
+        final SolrInputDocument javaDocument = new SolrInputDocument();
+        new MarcXchangeIndexEngine().addFields(javaDocument, content.getBytes(StandardCharsets.UTF_8), mimetype);
+
+        assertThat(fields(javaDocument), is(fields(javaScriptDocument)));
+    }
+
+    @Test
+    public void testExpectedIndexObject() throws Exception {
+        assumeTrue("Only the testsuites have ordered index objects", expected != null);
+
+        final SolrInputDocument javaDocument = new SolrInputDocument();
+        new MarcXchangeIndexEngine().addFields(javaDocument, Files.readAllBytes(record.toPath()), mimetype);
+
+        final Map<String, List<Object>> expectedFields = new LinkedHashMap<>();
+        try (JsonReader reader = Json.createReader(new StringReader(getContent(expected)))) {
+            final JsonObject obj = reader.readObject();
+            for (String key : obj.keySet()) {
+                final JsonArray array = obj.getJsonArray(key);
+                final List<Object> values = new ArrayList<>();
+                for (int i = 0; i < array.size(); i++) {
+                    values.add(array.getString(i));
+                }
+                expectedFields.put(key, values);
+            }
+        }
+        assertThat(new ArrayList<>(fields(javaDocument).entrySet()), is(new ArrayList<>(expectedFields.entrySet())));
+    }
+
+    private static Map<String, List<Object>> fields(SolrInputDocument document) {
+        final Map<String, List<Object>> fields = new LinkedHashMap<>();
+        for (String name : document.getFieldNames()) {
+            fields.put(name, new ArrayList<>(document.getFieldValues(name)));
+        }
+        return fields;
+    }
+
+    private static String getContent(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,37 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.jslib.SchemeURI;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ModuleBundleTest {
+
+    @Test
+    public void testResolveFollowsUse() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        String script = ModuleBundle.read(classLoader, JavaScriptWorker.INDEXER_SCRIPT);
+
+        Properties modules = ModuleBundle.resolve(classLoader, script, JavaScriptWorker.SEARCH_PATHS);
+
+        assertThat(modules.getProperty("XmlUtil.uri"), is("classpath:javascript/jscommon/xml/XmlUtil.use.js"));
+        assertThat(modules.getProperty("Log.source") != null, is(true));
+        // Provided by the indexer, not the classpath
+        assertThat(modules.getProperty("SolrFields.source"), nullValue());
+    }
+
+    @Test
+    public void testLookupOnlyFindsBundledModules() throws Exception {
+        ClassLoader classLoader = getClass().getClassLoader();
+        String script = ModuleBundle.read(classLoader, JavaScriptWorker.INDEXER_SCRIPT);
+        ModuleBundle bundle = new ModuleBundle(ModuleBundle.resolve(classLoader, script, JavaScriptWorker.SEARCH_PATHS));
+
+        SchemeURI searchPath = new SchemeURI(ModuleBundle.SCHEME + ":");
+        assertThat(bundle.lookup(searchPath, "XmlUtil").toString(), is(ModuleBundle.SCHEME + "://XmlUtil"));
+        assertThat(bundle.lookup(searchPath, "SolrFields").toString(), is(new SchemeURI().toString()));
+    }
+}
@@ -0,0 +1,90 @@
+package dk.dbc.rawrepo.indexer;
+
+import jakarta.enterprise.concurrent.ManagedThreadFactory;
+import org.junit.Test;
+import org.postgresql.PGConnection;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class QueueListenerTest {
+
+    @Test
+    public void testPollIntervalDoublesWhileIdle() {
+        assertThat(QueueListener.nextPollInterval(100, false, 100, 60000), is(200L));
+        assertThat(QueueListener.nextPollInterval(200, false, 100, 60000), is(400L));
+    }
+
+    @Test
+    public void testPollIntervalIsCapped() {
+        assertThat(QueueListener.nextPollInterval(40000, false, 100, 60000), is(60000L));
+        assertThat(QueueListener.nextPollInterval(60000, false, 100, 60000), is(60000L));
+    }
+
+    @Test
+    public void testPollIntervalResetsWhenWorkIsFound() {
+        assertThat(QueueListener.nextPollInterval(60000, true, 100, 60000), is(100L));
+    }
+
+    @Test
+    public void testPollIntervalNeverBelowMinimum() {
+        assertThat(QueueListener.nextPollInterval(0, false, 100, 60000), is(100L));
+    }
+
+    @Test(timeout = 30_000)
+    public void testDestroyDoesNotWaitForThePollInterval() throws Exception {
+        final CountDownLatch listening = new CountDownLatch(1);
+        final CountDownLatch aborted = new CountDownLatch(1);
+        final PGConnection pgConnection = mock(PGConnection.class);
+        when(pgConnection.getNotifications(anyInt())).thenAnswer(invocation -> {
+            listening.countDown();
+            aborted.await();
+            throw new SQLException("Connection aborted");
+        });
+        final Connection connection = mock(Connection.class);
+        when(connection.isWrapperFor(PGConnection.class)).thenReturn(true);
+        when(connection.unwrap(PGConnection.class)).thenReturn(pgConnection);
+        when(connection.createStatement()).thenReturn(mock(Statement.class));
+        doAnswer(invocation -> {
+            aborted.countDown();
+            return null;
+        }).when(connection).abort(any());
+
+        final QueueListener listener = new QueueListener();
+        listener.QUEUE_LISTEN_ENABLED = true;
+        listener.QUEUE_NOTIFY_CHANNEL = "queue";
+        listener.QUEUE_POLL_MIN_MS = 60_000;
+        listener.QUEUE_POLL_MAX_MS = 60_000;
+        listener.WORKER = "solr-sync";
+        listener.WORKERS = Optional.empty();
+        listener.rawrepoDataSource = mock(DataSource.class);
+        when(listener.rawrepoDataSource.getConnection()).thenReturn(connection);
+        listener.threadFactory = mock(ManagedThreadFactory.class);
+        when(listener.threadFactory.newThread(any())).thenAnswer(invocation -> new Thread((Runnable) invocation.getArgument(0)));
+        listener.indexer = mock(Indexer.class);
+        listener.warmUp = mock(WarmUp.class);
+
+        listener.create();
+        assertTrue(listening.await(10, TimeUnit.SECONDS));
+
+        final long start = System.currentTimeMillis();
+        listener.destroy();
+
+        assertTrue(System.currentTimeMillis() - start < 10_000);
+        assertThat(listener.isActive(), is(false));
+    }
+}
@@ -0,0 +1,55 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class QueueMonitorTest {
+
+    @Test
+    public void testOldestJobIsLookedUpPerWorker() throws Exception {
+        final ResultSet counts = mock(ResultSet.class);
+        when(counts.next()).thenReturn(true);
+        when(counts.getLong(1)).thenReturn(10L);
+        final PreparedStatement countStatement = mock(PreparedStatement.class);
+        when(countStatement.executeQuery()).thenReturn(counts);
+
+        final ResultSet oldest = mock(ResultSet.class);
+        when(oldest.next()).thenReturn(true);
+        // The second worker has no jobs
+        when(oldest.getTimestamp(1)).thenReturn(Timestamp.from(Instant.parse("2024-01-02T00:00:00Z")), null,
+                Timestamp.from(Instant.parse("2024-01-01T00:00:00Z")));
+        final PreparedStatement oldestStatement = mock(PreparedStatement.class);
+        when(oldestStatement.executeQuery()).thenReturn(oldest);
+
+        final Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(QueueMonitor.DEPTH_QUERY)).thenReturn(countStatement);
+        when(connection.prepareStatement(QueueMonitor.FAILED_QUERY)).thenReturn(countStatement);
+        when(connection.prepareStatement(QueueMonitor.OLDEST_QUERY)).thenReturn(oldestStatement);
+
+        final QueueMonitor monitor = new QueueMonitor();
+        monitor.QUEUE_STATS_MAX_COUNT = 100;
+        monitor.rawrepoDataSource = mock(DataSource.class);
+        when(monitor.rawrepoDataSource.getConnection()).thenReturn(connection);
+        monitor.workers = Arrays.asList("a", "b", "c");
+
+        final QueueStatus status = monitor.sample();
+
+        assertThat(status.getOldestQueued(), is("2024-01-01T00:00:00Z"));
+        verify(oldestStatement).setString(1, "a");
+        verify(oldestStatement).setString(1, "b");
+        verify(oldestStatement).setString(1, "c");
+    }
+}
@@ -0,0 +1,143 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class QueuePartitionsTest {
+
+    @Test
+    public void testFairShare() {
+        assertThat(QueuePartitions.fairShare(16, 1), is(16));
+        assertThat(QueuePartitions.fairShare(16, 2), is(8));
+        assertThat(QueuePartitions.fairShare(16, 3), is(6));
+        assertThat(QueuePartitions.fairShare(16, 16), is(1));
+        assertThat(QueuePartitions.fairShare(16, 20), is(1));
+    }
+
+    @Test
+    public void testDisabledRunsAreNotLocked() {
+        final QueuePartitions partitions = new QueuePartitions();
+        partitions.create();
+
+        assertThat(partitions.isEnabled(), is(false));
+        partitions.beginRun();
+        partitions.endRun();
+        assertThat(partitions.isHandoffPending(), is(false));
+    }
+
+    @Test
+    public void testHeldPartitionsAreNotGivenUp() throws Exception {
+        final ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getBoolean(1)).thenReturn(true);
+        // Alone at first, then joined by another indexer
+        when(resultSet.getInt(1)).thenReturn(1, 2);
+        final PreparedStatement statement = mock(PreparedStatement.class);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        final Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+
+        final QueuePartitions partitions = new QueuePartitions();
+        partitions.PARTITION_COUNT = 4;
+        partitions.PARTITION_HOLD_MAX_MS = 60000;
+        partitions.rawrepoDataSource = mock(DataSource.class);
+        when(partitions.rawrepoDataSource.getConnection()).thenReturn(connection);
+        final AtomicBoolean held = new AtomicBoolean(true);
+        partitions.holdPartitionsWhile(held::get);
+
+        partitions.rebalance();
+        assertThat(partitions.getOwned().length, is(4));
+
+        partitions.rebalance();
+        assertThat(partitions.getOwned().length, is(4));
+        assertThat(partitions.isHandoffPending(), is(true));
+
+        held.set(false);
+        partitions.rebalance();
+        assertThat(partitions.getOwned().length, is(2));
+        assertThat(partitions.isHandoffPending(), is(false));
+    }
+
+    @Test
+    public void testPartitionsAreGivenUpAfterTheMaxHold() throws Exception {
+        final ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getBoolean(1)).thenReturn(true);
+        // Alone at first, then joined by another indexer
+        when(resultSet.getInt(1)).thenReturn(1, 2);
+        final PreparedStatement statement = mock(PreparedStatement.class);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        final Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+
+        final QueuePartitions partitions = new QueuePartitions();
+        partitions.PARTITION_COUNT = 4;
+        partitions.PARTITION_HOLD_MAX_MS = 60000;
+        partitions.rawrepoDataSource = mock(DataSource.class);
+        when(partitions.rawrepoDataSource.getConnection()).thenReturn(connection);
+        final AtomicLong now = new AtomicLong(1000);
+        partitions.clock = now::get;
+        partitions.holdPartitionsWhile(() -> true);
+
+        partitions.rebalance();
+        assertThat(partitions.getOwned().length, is(4));
+        assertThat(partitions.getHeldSeconds(), is(0L));
+
+        partitions.rebalance();
+        now.addAndGet(30000);
+        partitions.rebalance();
+        assertThat(partitions.getOwned().length, is(4));
+        assertThat(partitions.isHandoffPending(), is(true));
+        assertThat(partitions.getHeldSeconds(), is(30L));
+
+        now.addAndGet(30000);
+        partitions.rebalance();
+        assertThat(partitions.getOwned().length, is(2));
+        assertThat(partitions.isHandoffPending(), is(false));
+        assertThat(partitions.getHeldSeconds(), is(0L));
+    }
+
+    @Test
+    public void testClaimsAfterTheFirstAreReported() throws Exception {
+        final ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getBoolean(1)).thenReturn(true);
+        // Alone at first, then joined by another indexer, which leaves again
+        when(resultSet.getInt(1)).thenReturn(1, 2, 1);
+        final PreparedStatement statement = mock(PreparedStatement.class);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        final Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+
+        final QueuePartitions partitions = new QueuePartitions();
+        partitions.PARTITION_COUNT = 4;
+        partitions.rawrepoDataSource = mock(DataSource.class);
+        when(partitions.rawrepoDataSource.getConnection()).thenReturn(connection);
+        final AtomicInteger claims = new AtomicInteger();
+        partitions.onPartitionsClaimed(claims::incrementAndGet);
+
+        partitions.rebalance();
+        assertThat(partitions.getOwned().length, is(4));
+        assertThat(claims.get(), is(0));
+
+        partitions.rebalance();
+        assertThat(partitions.getOwned().length, is(2));
+
+        partitions.rebalance();
+        assertThat(partitions.getOwned().length, is(4));
+        assertThat(claims.get(), is(1));
+    }
+}
@@ -0,0 +1,122 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.rawrepo.queue.QueueItem;
+import dk.dbc.rawrepo.queue.RawRepoQueueDAO;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.RETURNS_MOCKS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RawRepoQueueBeanTest {
+
+    private final QueueItem job = new QueueItem("12345678", 870970, "solr-sync", new Timestamp(1_700_000_000_123L), 1000);
+    private final RawRepoQueueDAO dao = mock(RawRepoQueueDAO.class);
+    private final Connection connection = mock(Connection.class);
+    private final PreparedStatement statement = mock(PreparedStatement.class);
+    private final RawRepoQueueBean bean = new RawRepoQueueBean();
+
+    public RawRepoQueueBeanTest() {
+        bean.metrics = new IndexerMetrics(mock(MetricRegistry.class, RETURNS_MOCKS), false);
+    }
+
+    @Test
+    public void testFailureIsClearedByTheFieldsItWasWrittenWith() throws Exception {
+        when(connection.prepareStatement(RawRepoQueueBean.CLEAR_FAILED)).thenReturn(statement);
+        when(statement.executeUpdate()).thenReturn(1);
+
+        bean.queueFail(dao, job, "timeout");
+        bean.clearFailed(connection, job);
+
+        // The dao is given the job itself, so the row has the job's queued timestamp
+        verify(dao).queueFail(job, "timeout");
+        verify(statement).setString(1, "12345678");
+        verify(statement).setInt(2, 870970);
+        verify(statement).setString(3, "solr-sync");
+        verify(statement).setTimestamp(4, new Timestamp(1_700_000_000_123L));
+    }
+
+    @Test
+    public void testErrorOfFailureIsUpdated() throws Exception {
+        when(connection.prepareStatement(RawRepoQueueBean.UPDATE_FAILED)).thenReturn(statement);
+        when(statement.executeUpdate()).thenReturn(1);
+
+        bean.updateFailed(connection, dao, job, "timeout again");
+
+        verify(statement).setString(1, "timeout again");
+        verify(statement).setString(2, "12345678");
+        verify(statement).setInt(3, 870970);
+        verify(statement).setString(4, "solr-sync");
+        verify(statement).setTimestamp(5, new Timestamp(1_700_000_000_123L));
+        verify(dao, never()).queueFail(job, "timeout again");
+    }
+
+    @Test
+    public void testMissingFailureIsWrittenAgain() throws Exception {
+        when(connection.prepareStatement(RawRepoQueueBean.UPDATE_FAILED)).thenReturn(statement);
+        when(statement.executeUpdate()).thenReturn(0);
+
+        bean.updateFailed(connection, dao, job, "timeout again");
+
+        verify(dao).queueFail(job, "timeout again");
+    }
+
+    @Test
+    public void testPartitionedDequeueTakesJobsLikeTheDao() {
+        final String sql = RawRepoQueueBean.DEQUEUE_PARTITIONED;
+
+        assertThat(sql, containsString("DELETE FROM queue WHERE ctid IN (SELECT ctid FROM queue WHERE worker = ? AND "));
+        assertThat(sql, containsString(" ORDER BY priority, queued LIMIT ? FOR UPDATE SKIP LOCKED)"));
+        assertThat(sql, containsString(" RETURNING bibliographicrecordid, agencyid, worker, queued, priority"));
+    }
+
+    @Test
+    public void testPartitionedDequeueReturnsTheRowsAsJobs() throws Exception {
+        final Array partitions = mock(Array.class);
+        when(connection.prepareStatement(RawRepoQueueBean.DEQUEUE_PARTITIONED)).thenReturn(statement);
+        when(connection.createArrayOf("int4", new Integer[] {1, 3})).thenReturn(partitions);
+        final ResultSet resultSet = mock(ResultSet.class);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true, false);
+        when(resultSet.getString(1)).thenReturn("12345678");
+        when(resultSet.getInt(2)).thenReturn(870970);
+        when(resultSet.getString(3)).thenReturn("solr-sync");
+        when(resultSet.getTimestamp(4)).thenReturn(new Timestamp(1_700_000_000_123L));
+        when(resultSet.getInt(5)).thenReturn(1000);
+
+        final List<QueueItem> jobs = bean.dequeueJobs(connection, "solr-sync", 4, new int[] {1, 3}, 10);
+
+        verify(statement).setString(1, "solr-sync");
+        verify(statement).setInt(2, 4);
+        verify(statement).setArray(3, partitions);
+        verify(statement).setInt(4, 10);
+        assertThat(jobs.size(), is(1));
+        assertThat(jobs.get(0).getBibliographicRecordId(), is(job.getBibliographicRecordId()));
+        assertThat(jobs.get(0).getAgencyId(), is(job.getAgencyId()));
+        assertThat(jobs.get(0).getWorker(), is(job.getWorker()));
+        assertThat(jobs.get(0).getQueued(), is(job.getQueued()));
+        assertThat(jobs.get(0).getPriority(), is(job.getPriority()));
+    }
+
+    @Test
+    public void testNoPartitionsDequeueNothing() throws Exception {
+        final List<QueueItem> jobs = bean.dequeueJobs(connection, "solr-sync", 4, new int[0], 10);
+
+        assertThat(jobs.isEmpty(), is(true));
+        verify(connection, never()).prepareStatement(anyString());
+    }
+}
@@ -0,0 +1,49 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class RecentRateTest {
+
+    private final AtomicLong clock = new AtomicLong(100_000);
+    private final RecentRate rate = new RecentRate(10, clock::get);
+
+    @Test
+    public void testCurrentSecondIsNotCounted() {
+        rate.add(50);
+        assertThat(rate.perSecond(), is(0.0));
+        clock.addAndGet(1000);
+        assertThat(rate.perSecond(), is(5.0));
+    }
+
+    @Test
+    public void testAverageOverWindow() {
+        for (int i = 0; i < 10; i++) {
+            rate.add(20);
+            clock.addAndGet(1000);
+        }
+        assertThat(rate.perSecond(), is(20.0));
+    }
+
+    @Test
+    public void testOldEventsExpire() {
+        rate.add(100);
+        clock.addAndGet(10_000);
+        assertThat(rate.perSecond(), is(10.0));
+        clock.addAndGet(1000);
+        assertThat(rate.perSecond(), is(0.0));
+    }
+
+    @Test
+    public void testReusedBucketIsReset() {
+        rate.add(100);
+        clock.addAndGet(11_000);
+        rate.add(1);
+        clock.addAndGet(1000);
+        assertThat(rate.perSecond(), is(0.1));
+    }
+}
@@ -0,0 +1,75 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ReindexCheckpointTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("checkpoint");
+        final ReindexCheckpoint checkpoint = new ReindexCheckpoint(870970, Instant.parse("2024-01-01T00:00:00Z"));
+        checkpoint.advance("12345678", 870970, 1000, 2);
+        checkpoint.advance("23456789", 870970, 500, 1);
+        checkpoint.save(path);
+
+        final ReindexCheckpoint loaded = ReindexCheckpoint.load(path);
+        assertThat(loaded.getAgencyId(), is(870970));
+        assertThat(loaded.getModifiedSince(), is(Instant.parse("2024-01-01T00:00:00Z")));
+        assertThat(loaded.getLastBibliographicRecordId(), is("23456789"));
+        assertThat(loaded.getLastAgencyId(), is(870970));
+        assertThat(loaded.getProcessed(), is(1500L));
+        assertThat(loaded.getFailed(), is(3L));
+        assertThat(loaded.isCompleted(), is(false));
+        assertThat(loaded.hasSameFilter(checkpoint), is(true));
+    }
+
+    @Test
+    public void testSaveAndLoadWithoutFilter() throws Exception {
+        final Path path = folder.getRoot().toPath().resolve("checkpoint");
+        final ReindexCheckpoint checkpoint = new ReindexCheckpoint(null, null);
+        checkpoint.complete();
+        checkpoint.save(path);
+
+        final ReindexCheckpoint loaded = ReindexCheckpoint.load(path);
+        assertThat(loaded.getAgencyId(), nullValue());
+        assertThat(loaded.getModifiedSince(), nullValue());
+        assertThat(loaded.getLastBibliographicRecordId(), nullValue());
+        assertThat(loaded.isCompleted(), is(true));
+    }
+
+    @Test
+    public void testLoadMissingFile() throws Exception {
+        assertThat(ReindexCheckpoint.load(folder.getRoot().toPath().resolve("missing")), nullValue());
+    }
+
+    @Test
+    public void testDifferentFilter() {
+        final ReindexCheckpoint all = new ReindexCheckpoint(null, null);
+        assertThat(all.hasSameFilter(new ReindexCheckpoint(870970, null)), is(false));
+        assertThat(all.hasSameFilter(new ReindexCheckpoint(null, Instant.EPOCH)), is(false));
+        assertThat(all.hasSameFilter(new ReindexCheckpoint(null, null)), is(true));
+    }
+
+    @Test
+    public void testQuery() {
+        assertThat(Reindexer.createQuery(false, false, false),
+                is("SELECT bibliographicrecordid, agencyid FROM records ORDER BY bibliographicrecordid, agencyid LIMIT ?"));
+        assertThat(Reindexer.createQuery(true, true, true),
+                is("SELECT bibliographicrecordid, agencyid FROM records WHERE (bibliographicrecordid, agencyid) > (?, ?)" +
+                        " AND agencyid = ? AND modified >= ? ORDER BY bibliographicrecordid, agencyid LIMIT ?"));
+        assertThat(Reindexer.createQuery(false, false, true),
+                is("SELECT bibliographicrecordid, agencyid FROM records WHERE modified >= ? ORDER BY bibliographicrecordid, agencyid LIMIT ?"));
+    }
+}
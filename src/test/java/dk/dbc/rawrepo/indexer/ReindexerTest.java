@@ -0,0 +1,63 @@
+package dk.dbc.rawrepo.indexer;
+
+import jakarta.enterprise.concurrent.ManagedThreadFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Optional;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ReindexerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test(timeout = 30_000)
+    public void testRecordsLeftOutDoNotStopTheReindex() throws Exception {
+        final ResultSet page = mock(ResultSet.class);
+        when(page.next()).thenReturn(true, true, true, false);
+        when(page.getString(1)).thenReturn("a", "b", "c");
+        when(page.getInt(2)).thenReturn(123456);
+        final ResultSet empty = mock(ResultSet.class);
+        final PreparedStatement statement = mock(PreparedStatement.class);
+        when(statement.executeQuery()).thenReturn(page, empty);
+        final Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+
+        final Reindexer reindexer = new Reindexer();
+        reindexer.REINDEX_BATCH_SIZE = 3;
+        reindexer.REINDEX_THREADS = 1;
+        reindexer.REINDEX_CHECKPOINT_FILE = Optional.of(folder.getRoot().toPath().resolve("checkpoint").toString());
+        reindexer.rawrepoDataSource = mock(DataSource.class);
+        when(reindexer.rawrepoDataSource.getConnection()).thenReturn(connection);
+        reindexer.threadFactory = mock(ManagedThreadFactory.class);
+        when(reindexer.threadFactory.newThread(any())).thenAnswer(invocation -> new Thread((Runnable) invocation.getArgument(0)));
+        reindexer.indexer = mock(Indexer.class);
+        // One record solr rejected and one that could not be transformed
+        when(reindexer.indexer.reindex(anyList())).thenReturn(2);
+
+        reindexer.start(null, null, false);
+        while (Reindexer.STATE_RUNNING.equals(reindexer.getStatus().getState())) {
+            Thread.sleep(10);
+        }
+
+        final ReindexStatus status = reindexer.getStatus();
+        assertThat(status.getState(), is(Reindexer.STATE_COMPLETED));
+        assertThat(status.getProcessed(), is(3L));
+        assertThat(status.getFailed(), is(2L));
+        verify(reindexer.indexer).commitSolr();
+    }
+}
@@ -0,0 +1,65 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SolrBatchTest {
+
+    @Test
+    public void testEmptyBatch() {
+        final SolrBatch batch = new SolrBatch();
+        assertThat(batch.isEmpty(), is(true));
+        assertThat(batch.size(), is(0));
+
+        final UpdateRequest request = batch.toUpdateRequest();
+        assertThat(request.getDocuments(), nullValue());
+        assertThat(request.getDeleteById(), nullValue());
+    }
+
+    @Test
+    public void testAddsAndDeletesInOneRequest() {
+        final SolrBatch batch = new SolrBatch();
+        final SolrInputDocument first = new SolrInputDocument();
+        first.addField("id", "a:870970");
+        final SolrInputDocument second = new SolrInputDocument();
+        second.addField("id", "b:870970");
+        batch.add(first);
+        batch.add(second);
+        batch.delete("c:191919");
+
+        assertThat(batch.isEmpty(), is(false));
+        assertThat(batch.size(), is(3));
+
+        final UpdateRequest request = batch.toUpdateRequest();
+        assertThat(request.getDocuments(), is(Arrays.asList(first, second)));
+        assertThat(request.getDeleteById(), is(Arrays.asList("c:191919")));
+    }
+
+    @Test
+    public void testSplitKeepsDocumentsBeforeDeletes() {
+        final SolrBatch batch = new SolrBatch();
+        for (String id : Arrays.asList("a:870970", "b:870970", "c:870970")) {
+            final SolrInputDocument document = new SolrInputDocument();
+            document.addField("id", id);
+            batch.add(document);
+        }
+        batch.delete("d:191919");
+        batch.delete("e:191919");
+
+        final List<SolrBatch> halves = batch.split();
+        assertThat(halves.get(0).getIds(), is(Arrays.asList("a:870970", "b:870970", "c:870970")));
+        assertThat(halves.get(1).getIds(), is(Arrays.asList("d:191919", "e:191919")));
+
+        final List<SolrBatch> quarters = halves.get(0).split();
+        assertThat(quarters.get(0).getIds(), is(Arrays.asList("a:870970", "b:870970")));
+        assertThat(quarters.get(1).getIds(), is(Arrays.asList("c:870970")));
+    }
+}
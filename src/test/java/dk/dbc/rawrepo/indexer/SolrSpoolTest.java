@@ -0,0 +1,137 @@
+package dk.dbc.rawrepo.indexer;
+
+import dk.dbc.rawrepo.queue.QueueItem;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SolrSpoolTest {
+
+    private static final int CAPACITY = 64 * 1024;
+    private static final List<QueueItem> NO_JOBS = Collections.emptyList();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEntriesSurviveReopen() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("spool");
+        try (SolrSpool spool = new SolrSpool(file, CAPACITY)) {
+            assertThat(spool.append(batch("a", "b"), NO_JOBS), is(true));
+            assertThat(spool.append(deletes("c"), NO_JOBS), is(true));
+        }
+
+        try (SolrSpool spool = new SolrSpool(file, CAPACITY)) {
+            assertThat(spool.getEntries(), is(2));
+            final SolrSpool.Replay replay = spool.peek(100);
+            assertThat(replay.getEntries(), is(2));
+            assertThat(replay.getBatch().getDocuments().get(0).getFieldValue("id"), is("a"));
+            assertThat(replay.getBatch().getDocuments().get(0).getFieldValue("title"), is("title of a"));
+            assertThat(replay.getBatch().getDocuments().get(1).getFieldValue("id"), is("b"));
+            assertThat(replay.getBatch().getDeletedIds(), is(Collections.singletonList("c")));
+        }
+    }
+
+    @Test
+    public void testJobsAreKeptWithTheirEntry() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("spool");
+        try (SolrSpool spool = new SolrSpool(file, CAPACITY)) {
+            spool.append(batch("a:870970"), Collections.singletonList(new QueueItem("a", 870970, "solr-sync", new Timestamp(1000), 1000)));
+            spool.append(deletes("b:870970"), Collections.singletonList(new QueueItem("b", 870970, "solr-sync", new Timestamp(2000), 1000)));
+        }
+
+        try (SolrSpool spool = new SolrSpool(file, CAPACITY)) {
+            final List<QueueItem> jobs = spool.peek(100).getJobs();
+            assertThat(jobs.size(), is(2));
+            assertThat(jobs.get(0).getBibliographicRecordId(), is("a"));
+            assertThat(jobs.get(0).getAgencyId(), is(870970));
+            assertThat(jobs.get(0).getWorker(), is("solr-sync"));
+            assertThat(jobs.get(0).getQueued(), is(new Timestamp(1000)));
+            assertThat(jobs.get(1).getBibliographicRecordId(), is("b"));
+            assertThat(spool.peek(1).getJobs().size(), is(1));
+        }
+    }
+
+    @Test
+    public void testPeekStopsAtSizeAndAtRepeatedIds() throws Exception {
+        try (SolrSpool spool = new SolrSpool(folder.getRoot().toPath().resolve("spool"), CAPACITY)) {
+            spool.append(batch("a", "b"), NO_JOBS);
+            spool.append(batch("c"), NO_JOBS);
+            spool.append(deletes("a"), NO_JOBS);
+
+            assertThat(spool.peek(1).getEntries(), is(1));
+            // The delete of a has to wait for the add of a
+            final SolrSpool.Replay replay = spool.peek(100);
+            assertThat(replay.getEntries(), is(2));
+            assertThat(replay.getBatch().size(), is(3));
+
+            spool.consumed(replay);
+            assertThat(spool.getEntries(), is(1));
+            assertThat(spool.peek(100).getBatch().getDeletedIds(), is(Collections.singletonList("a")));
+        }
+    }
+
+    @Test
+    public void testConsumedEntriesAreNotReplayedAfterStartingOver() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("spool");
+        try (SolrSpool spool = new SolrSpool(file, CAPACITY)) {
+            spool.append(batch("a", "b", "c"), NO_JOBS);
+            spool.append(batch("d"), NO_JOBS);
+            spool.consumed(spool.peek(100));
+            assertThat(spool.isEmpty(), is(true));
+            assertThat(spool.peek(100), nullValue());
+
+            // Shorter than the first entry, so the old second entry is still in the file
+            spool.append(deletes("e"), NO_JOBS);
+        }
+
+        try (SolrSpool spool = new SolrSpool(file, CAPACITY)) {
+            assertThat(spool.getEntries(), is(1));
+            assertThat(spool.peek(100).getBatch().getDeletedIds(), is(Collections.singletonList("e")));
+        }
+    }
+
+    @Test
+    public void testFullSpoolRefusesEntries() throws Exception {
+        try (SolrSpool spool = new SolrSpool(folder.getRoot().toPath().resolve("spool"), 256)) {
+            boolean appended = true;
+            int entries = 0;
+            while (appended) {
+                appended = spool.append(batch("id" + entries), NO_JOBS);
+                if (appended) {
+                    entries++;
+                }
+            }
+            assertThat(spool.getEntries(), is(entries));
+            assertThat(spool.append(batch("more"), NO_JOBS), is(false));
+        }
+    }
+
+    private static SolrBatch batch(String... ids) {
+        final SolrBatch batch = new SolrBatch();
+        for (String id : ids) {
+            final SolrInputDocument document = new SolrInputDocument();
+            document.addField("id", id);
+            document.addField("title", "title of " + id);
+            batch.add(document);
+        }
+        return batch;
+    }
+
+    private static SolrBatch deletes(String... ids) {
+        final SolrBatch batch = new SolrBatch();
+        Arrays.stream(ids).forEach(batch::delete);
+        return batch;
+    }
+}
@@ -0,0 +1,29 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class WarmUpTest {
+
+    @Test
+    public void testNotSettledWithTooFewRounds() throws Exception {
+        assertThat(WarmUp.isSettled(Collections.emptyList(), 3, 0.1), is(false));
+        assertThat(WarmUp.isSettled(Arrays.asList(100L, 100L), 3, 0.1), is(false));
+    }
+
+    @Test
+    public void testSettledWhenLastRoundsAgree() throws Exception {
+        assertThat(WarmUp.isSettled(Arrays.asList(900L, 400L, 105L, 100L, 110L), 3, 0.1), is(true));
+    }
+
+    @Test
+    public void testNotSettledWhileStillImproving() throws Exception {
+        assertThat(WarmUp.isSettled(Arrays.asList(900L, 400L, 200L), 3, 0.1), is(false));
+        assertThat(WarmUp.isSettled(Arrays.asList(100L, 100L, 120L), 3, 0.1), is(false));
+    }
+}
@@ -0,0 +1,91 @@
+package dk.dbc.rawrepo.indexer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class WorkerLanesTest {
+
+    @Test
+    public void testDefaultWorker() {
+        final WorkerLanes lanes = WorkerLanes.of(Collections.emptyList(), "solr-sync");
+
+        assertThat(lanes.getWorkers(), is(List.of("solr-sync")));
+    }
+
+    @Test
+    public void testWeights() {
+        final WorkerLanes lanes = WorkerLanes.of(Arrays.asList("priority:10", " solr-sync ", "bulk : 2"), "ignored");
+
+        assertThat(lanes.getWorkers(), is(List.of("priority", "solr-sync", "bulk")));
+        assertThat(lanes.getLanes().get(0).getWeight(), is(10));
+        assertThat(lanes.getLanes().get(1).getWeight(), is(1));
+        assertThat(lanes.getLanes().get(2).getWeight(), is(2));
+        assertThat(lanes.contains("bulk"), is(true));
+        assertThat(lanes.contains("ignored"), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWeight() {
+        WorkerLanes.of(Collections.singletonList("bulk:0"), "ignored");
+    }
+
+    @Test
+    public void testWeightedRoundRobin() {
+        final WorkerLanes lanes = WorkerLanes.of(Arrays.asList("priority:3", "bulk:1"), "ignored");
+        final WorkerLanes.Schedule schedule = lanes.schedule();
+
+        final List<String> order = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final WorkerLanes.Lane lane = schedule.next();
+            order.add(lane.getWorker());
+            schedule.done(lane, true);
+        }
+
+        assertThat(order, is(List.of("priority", "priority", "priority", "bulk", "priority", "priority", "priority", "bulk")));
+    }
+
+    @Test
+    public void testEmptyLaneIsAskedAgainNextRound() {
+        final WorkerLanes lanes = WorkerLanes.of(Arrays.asList("priority:3", "bulk:1"), "ignored");
+        final WorkerLanes.Schedule schedule = lanes.schedule();
+
+        final List<String> order = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final WorkerLanes.Lane lane = schedule.next();
+            order.add(lane.getWorker());
+            schedule.done(lane, lane.getWorker().equals("bulk"));
+        }
+
+        assertThat(order, is(List.of("priority", "bulk", "priority", "bulk", "priority")));
+    }
+
+    @Test
+    public void testEndsAfterRoundWithoutWork() {
+        final WorkerLanes lanes = WorkerLanes.of(Arrays.asList("priority:3", "bulk:1"), "ignored");
+        final WorkerLanes.Schedule schedule = lanes.schedule();
+
+        WorkerLanes.Lane lane = schedule.next();
+        schedule.done(lane, true);
+        lane = schedule.next();
+        schedule.done(lane, false);
+        lane = schedule.next();
+        assertThat(lane.getWorker(), is("bulk"));
+        schedule.done(lane, false);
+        lane = schedule.next();
+        assertThat(lane.getWorker(), is("priority"));
+        schedule.done(lane, false);
+        lane = schedule.next();
+        assertThat(lane.getWorker(), is("bulk"));
+        schedule.done(lane, false);
+
+        assertThat(schedule.next(), nullValue());
+    }
+}
@@ -1,16 +1,10 @@
 package dk.dbc.rawrepo.rest;
 
+import dk.dbc.rawrepo.indexer.HealthProber;
+import dk.dbc.rawrepo.indexer.WarmUp;
 import jakarta.ws.rs.core.Response;
-import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.impl.Http2SolrClient;
-import org.apache.solr.client.solrj.response.SolrPingResponse;
 import org.junit.Test;
 
-import javax.sql.DataSource;
-import java.io.IOException;
-import java.sql.SQLDataException;
-import java.sql.SQLException;
-
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.mock;
@@ -19,29 +13,40 @@ import static org.mockito.Mockito.when;
 public class StatusBeanTest {
 
     @Test
-    public void testStatusDBFail() throws SQLException {
-        final Response.Status status = Response.Status.OK;
-        final StatusBean statusBean = new StatusBean();
-        statusBean.rawrepoDataSource = mock(DataSource.class);
-        when(statusBean.rawrepoDataSource.getConnection()).thenThrow(new SQLDataException());
+    public void testStatusDBFail() {
+        final StatusBean statusBean = createStatusBean(false, true);
         assertThat(statusBean.isDbAlive(), is(false));
+        assertThat(statusBean.getStatus().getStatus(), is(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode()));
     }
 
     @Test
-    public void testStatusSOLRFail() throws IOException, SolrServerException {
-        final Response.Status status = Response.Status.OK;
-        final StatusBean statusBean = new StatusBean();
-        statusBean.solrClient = mock(Http2SolrClient.class);
-        when(statusBean.solrClient.ping()).thenThrow(new SolrServerException("Solr Exception"));
+    public void testStatusSOLRFail() {
+        final StatusBean statusBean = createStatusBean(true, false);
         assertThat(statusBean.isSolrAlive(), is(false));
+        assertThat(statusBean.getStatus().getStatus(), is(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode()));
     }
 
     @Test
-    public void testStatusSOLROk() throws IOException, SolrServerException {
-        final Response.Status status = Response.Status.OK;
-        final StatusBean statusBean = new StatusBean();
-        statusBean.solrClient = mock(Http2SolrClient.class);
-        when(statusBean.solrClient.ping()).thenReturn(new SolrPingResponse());
+    public void testStatusSOLROk() {
+        final StatusBean statusBean = createStatusBean(true, true);
         assertThat(statusBean.isSolrAlive(), is(true));
+        assertThat(statusBean.getStatus().getStatus(), is(Response.Status.OK.getStatusCode()));
+    }
+
+    @Test
+    public void testStatusWarmingUp() {
+        final StatusBean statusBean = createStatusBean(true, true);
+        when(statusBean.warmUp.isDone()).thenReturn(false);
+        assertThat(statusBean.getStatus().getStatus(), is(Response.Status.SERVICE_UNAVAILABLE.getStatusCode()));
+    }
+
+    private static StatusBean createStatusBean(boolean dbAlive, boolean solrAlive) {
+        final StatusBean statusBean = new StatusBean();
+        statusBean.warmUp = mock(WarmUp.class);
+        when(statusBean.warmUp.isDone()).thenReturn(true);
+        statusBean.healthProber = mock(HealthProber.class);
+        when(statusBean.healthProber.isDbAlive()).thenReturn(dbAlive);
+        when(statusBean.healthProber.isSolrAlive()).thenReturn(solrAlive);
+        return statusBean;
     }
 }